@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.api;
+
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.lookup.LookupService;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A LookupService that can resolve many coordinates with as few round trips as possible.
+ *
+ * @param <T> the type of value returned by a lookup
+ */
+public interface BatchLookupService<T> extends LookupService<T> {
+
+    /**
+     * Looks up every set of coordinates.
+     *
+     * @param coordinates the coordinates to look up
+     * @return one result per coordinates, in iteration order
+     * @throws LookupFailureException if the lookups could not be performed
+     */
+    List<Optional<T>> lookupAll(Collection<Map<String, Object>> coordinates) throws LookupFailureException;
+}
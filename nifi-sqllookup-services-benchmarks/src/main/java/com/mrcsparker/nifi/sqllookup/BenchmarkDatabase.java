@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.NoOpProcessor;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An embedded H2 database with a lookup table, and the NiFi mock framework to enable the lookup services against it.
+ */
+final class BenchmarkDatabase implements AutoCloseable {
+
+    static final String LOOKUP_QUERY = "SELECT * FROM LOOKUP WHERE NAME = :name";
+
+    private static final String POOL_ID = "benchmark-pool";
+
+    private final String url;
+    // keeps the in-memory database open until the benchmark is done with it
+    private final Connection connection;
+    private final TestRunner runner;
+    private final List<AbstractSQLLookupService<?>> services = new ArrayList<>();
+
+    /**
+     * Creates a database named {@code name} whose lookup table has {@code rows} rows, keyed by {@link #key}.
+     */
+    BenchmarkDatabase(String name, int rows) throws SQLException, InitializationException {
+        this.url = "jdbc:h2:mem:" + name;
+        this.connection = DriverManager.getConnection(url);
+
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE LOOKUP (ID INT PRIMARY KEY, NAME VARCHAR(30), VALUE VARCHAR(255), " +
+                            "PERIOD INT, ADDRESS VARCHAR(255), PRICE DOUBLE)");
+        }
+        try (final PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO LOOKUP (ID, NAME, VALUE, PERIOD, ADDRESS, PRICE) VALUES (?, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < rows; i++) {
+                insert.setInt(1, i);
+                insert.setString(2, key(i));
+                insert.setString(3, "Value of row " + i);
+                insert.setInt(4, i % 12);
+                insert.setString(5, i + " Benchmark Street");
+                insert.setDouble(6, i / 100.0);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+
+        this.runner = TestRunners.newTestRunner(NoOpProcessor.class);
+        final ConnectionPool pool = new ConnectionPool(url);
+        runner.addControllerService(POOL_ID, pool);
+        runner.enableControllerService(pool);
+    }
+
+    static String key(int row) {
+        return "name-" + row;
+    }
+
+    /**
+     * Returns the coordinates of the first {@code rows} rows.
+     */
+    static List<Map<String, Object>> coordinates(int rows) {
+        final List<Map<String, Object>> coordinates = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            coordinates.add(Collections.singletonMap("name", key(i)));
+        }
+        return coordinates;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Enables the service with the lookup query and the given properties. It is disabled again by {@link #close}.
+     */
+    <S extends AbstractSQLLookupService<?>> S enable(S service, Map<PropertyDescriptor, String> properties)
+                    throws InitializationException {
+        runner.addControllerService(service.getClass().getSimpleName(), service);
+        runner.setProperty(service, AbstractSQLLookupService.CONNECTION_POOL, POOL_ID);
+        runner.setProperty(service, AbstractSQLLookupService.SQL_QUERY, LOOKUP_QUERY);
+        for (final Map.Entry<PropertyDescriptor, String> property : properties.entrySet()) {
+            runner.setProperty(service, property.getKey(), property.getValue());
+        }
+        runner.enableControllerService(service);
+        services.add(service);
+        return service;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (final AbstractSQLLookupService<?> service : services) {
+            runner.disableControllerService(service);
+        }
+        connection.close();
+    }
+
+    private static final class ConnectionPool extends AbstractControllerService implements DBCPService {
+        private final String url;
+
+        ConnectionPool(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public Connection getConnection() throws ProcessException {
+            try {
+                return DriverManager.getConnection(url);
+            } catch (final SQLException e) {
+                throw new ProcessException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.CacheAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.CacheAdapterFactories;
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import com.mrcsparker.nifi.sqllookup.cache.CacheRequest;
+import com.mrcsparker.nifi.sqllookup.cache.CacheSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cache adapters alone, without a lookup service in front, read by as many threads as there are cores. Keys
+ * are drawn with a skew towards the first keys, as lookups of real data are.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheContentionBenchmark {
+
+    private static final int KEYS = 1 << 16;
+
+    @Param({ "Caffeine", "Cache2k", "Guava", "Clock" })
+    public String cachingLibrary;
+
+    private CacheKey[] keys;
+    private CacheAdapter<String> cache;
+
+    @Setup
+    public void setUp() throws Exception {
+        keys = new CacheKey[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new CacheKey(BenchmarkDatabase.LOOKUP_QUERY, new String[] { "name" }, new Object[] { BenchmarkDatabase.key(i) });
+        }
+
+        // holds a quarter of the keys, so the writes of readMostly evict
+        cache = CacheAdapterFactories.get(cachingLibrary)
+                        .create(new CacheRequest.Builder<>(CacheSettings.ofSize(KEYS / 4), String.class).build());
+        for (int i = 0; i < KEYS / 4; i++) {
+            cache.set(keys[i], "value" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.cleanUp();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String read() {
+        return cache.get(keys[ThreadLocalRandom.current().nextInt(KEYS / 4)]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String readMostly() {
+        final CacheKey key = keys[skewed()];
+        final String value = cache.get(key);
+        if (value == null) {
+            cache.set(key, "value");
+        }
+        return value;
+    }
+
+    private static int skewed() {
+        final double uniform = ThreadLocalRandom.current().nextDouble();
+        return (int) (KEYS * uniform * uniform * uniform);
+    }
+}
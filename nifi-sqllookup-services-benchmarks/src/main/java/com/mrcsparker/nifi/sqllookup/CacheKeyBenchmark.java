@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building cache keys and binding parameters from lookup coordinates, which every lookup does before it reaches
+ * the cache or the database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheKeyBenchmark {
+
+    private SQLQueryPlan singlePlan;
+    private SQLQueryPlan compositePlan;
+    private SQLQueryPlan inPlan;
+
+    private Map<String, Object> single;
+    private Map<String, Object> composite;
+    private Map<String, Object> in;
+
+    @Setup
+    public void setUp() {
+        singlePlan = SQLQueryPlan.compile(BenchmarkDatabase.LOOKUP_QUERY);
+        compositePlan = SQLQueryPlan.compile("SELECT * FROM LOOKUP WHERE NAME = :name AND PERIOD = :period AND ADDRESS = :address");
+        inPlan = SQLQueryPlan.compile("SELECT * FROM LOOKUP WHERE NAME IN (:names)");
+
+        single = Collections.singletonMap("name", BenchmarkDatabase.key(42));
+
+        composite = new HashMap<>();
+        composite.put("name", BenchmarkDatabase.key(42));
+        composite.put("period", 6);
+        composite.put("address", "42 Benchmark Street");
+
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            names.add(BenchmarkDatabase.key(i));
+        }
+        in = Collections.singletonMap("names", names);
+    }
+
+    @Benchmark
+    public CacheKey singleKey() throws Exception {
+        return singlePlan.cacheKey(single);
+    }
+
+    @Benchmark
+    public CacheKey compositeKey() throws Exception {
+        return compositePlan.cacheKey(composite);
+    }
+
+    @Benchmark
+    public CacheKey inListKey() throws Exception {
+        return inPlan.cacheKey(in);
+    }
+
+    @Benchmark
+    public int keyHash() throws Exception {
+        return compositePlan.cacheKey(composite).hashCode();
+    }
+
+    @Benchmark
+    public SQLQueryPlan.BoundQuery bindSingle() throws Exception {
+        return singlePlan.bind(single);
+    }
+
+    @Benchmark
+    public SQLQueryPlan.BoundQuery bindInList() throws Exception {
+        return inPlan.bind(in);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups answered by the cache, for every caching library and both services. All keys are loaded before the
+ * measurement, so the database is not queried.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheLookupBenchmark {
+
+    private static final int ROWS = 10_000;
+
+    // few enough keys that contending threads keep hitting the same entries
+    private static final int HOT_KEYS = 16;
+
+    @Param({ "Caffeine", "Cache2k", "Guava", "Clock" })
+    public String cachingLibrary;
+
+    @Param({ "String", "Record" })
+    public String valueType;
+
+    private BenchmarkDatabase database;
+    private AbstractSQLLookupService<?> service;
+    private List<Map<String, Object>> coordinates;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase("cache_lookup", ROWS);
+
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(AbstractSQLLookupService.CACHING_LIBRARY, cachingLibrary);
+        properties.put(AbstractSQLLookupService.CACHE_SIZE, String.valueOf(ROWS));
+        if ("String".equals(valueType)) {
+            properties.put(SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+            service = database.enable(new SQLLookupService(), properties);
+        } else {
+            service = database.enable(new SQLRecordLookupService(), properties);
+        }
+
+        coordinates = BenchmarkDatabase.coordinates(ROWS);
+        for (final Map<String, Object> key : coordinates) {
+            service.lookup(key);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Benchmark
+    public Optional<?> cacheHit() throws Exception {
+        return service.lookup(coordinates.get(ThreadLocalRandom.current().nextInt(ROWS)));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Optional<?> cacheHitContended() throws Exception {
+        return service.lookup(coordinates.get(ThreadLocalRandom.current().nextInt(HOT_KEYS)));
+    }
+}
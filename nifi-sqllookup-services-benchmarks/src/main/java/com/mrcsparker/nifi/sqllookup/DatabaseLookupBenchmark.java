@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups that miss the cache and query the embedded H2 database, one at a time and through the batch API.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseLookupBenchmark {
+
+    private static final int ROWS = 10_000;
+    private static final int BATCH = 100;
+
+    @Param({ "String", "Record" })
+    public String valueType;
+
+    @Param({ "0", "8" })
+    public String statementCacheSize;
+
+    private BenchmarkDatabase database;
+    private AbstractSQLLookupService<?> service;
+    private List<Map<String, Object>> coordinates;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase("database_lookup", ROWS);
+
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(AbstractSQLLookupService.STATEMENT_CACHE_SIZE, statementCacheSize);
+        properties.put(AbstractSQLLookupService.BATCH_SIZE, String.valueOf(BATCH));
+        if ("String".equals(valueType)) {
+            properties.put(SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+            service = database.enable(new SQLLookupService(), properties);
+        } else {
+            service = database.enable(new SQLRecordLookupService(), properties);
+        }
+
+        coordinates = BenchmarkDatabase.coordinates(ROWS);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Benchmark
+    public Optional<?> cacheMiss() throws Exception {
+        return service.lookup(coordinates.get(ThreadLocalRandom.current().nextInt(ROWS)));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<? extends Optional<?>> batchMiss() throws Exception {
+        final int from = ThreadLocalRandom.current().nextInt(ROWS - BATCH);
+        return service.lookupAll(coordinates.subList(from, from + BATCH));
+    }
+}
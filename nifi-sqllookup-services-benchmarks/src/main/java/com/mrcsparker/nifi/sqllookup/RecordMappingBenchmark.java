@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.ResultSetRecordSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a result row into a record: inferring the schema through {@code ResultSetRecordSet} for every row, as
+ * lookups used to, reusing the inferred schema, and reading typed columns with {@code Use JDBC types}.
+ * {@link #queryOnly} is the cost of the query without mapping.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordMappingBenchmark {
+
+    @Param({ "ResultSetRecordSet", "RecordMapper", "JdbcTypes" })
+    public String mapping;
+
+    private BenchmarkDatabase database;
+    private PreparedStatement statement;
+    // null when every row goes through ResultSetRecordSet
+    private RecordMapper mapper;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase("record_mapping", 1000);
+        statement = database.getConnection().prepareStatement("SELECT * FROM LOOKUP WHERE ID = ?");
+        statement.setInt(1, 42);
+
+        try (final ResultSet resultSet = statement.executeQuery()) {
+            final ResultSetMetaData metaData = resultSet.getMetaData();
+            if ("RecordMapper".equals(mapping)) {
+                try (final ResultSetRecordSet recordSet = new ResultSetRecordSet(resultSet, new SimpleRecordSchema(Collections.emptyList()))) {
+                    mapper = RecordMapper.of(recordSet.next().getSchema(), metaData, 0);
+                }
+            } else if ("JdbcTypes".equals(mapping)) {
+                resultSet.next();
+                mapper = RecordMapper.forJdbcTypes(metaData, resultSet, 0);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        statement.close();
+        database.close();
+    }
+
+    @Benchmark
+    public Record mapRow() throws Exception {
+        try (final ResultSet resultSet = statement.executeQuery()) {
+            if (mapper == null) {
+                try (final ResultSetRecordSet recordSet = new ResultSetRecordSet(resultSet, new SimpleRecordSchema(Collections.emptyList()))) {
+                    return recordSet.next();
+                }
+            }
+            resultSet.next();
+            return mapper.map(resultSet);
+        }
+    }
+
+    @Benchmark
+    public boolean queryOnly() throws Exception {
+        try (final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next();
+        }
+    }
+}
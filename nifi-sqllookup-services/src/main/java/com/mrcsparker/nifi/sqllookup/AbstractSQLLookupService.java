@@ -1,24 +1,78 @@
 package com.mrcsparker.nifi.sqllookup;
 
+import com.mrcsparker.nifi.sqllookup.api.BatchLookupService;
 import com.mrcsparker.nifi.sqllookup.cache.CacheAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.CacheAdapterFactories;
+import com.mrcsparker.nifi.sqllookup.cache.CacheAdapterFactory;
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import com.mrcsparker.nifi.sqllookup.cache.CacheLoader;
+import com.mrcsparker.nifi.sqllookup.cache.CacheRequest;
+import com.mrcsparker.nifi.sqllookup.cache.CacheSettings;
+import com.mrcsparker.nifi.sqllookup.cache.CaffeineAdapter;
 import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnShutdown;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.dbcp.DBCPService;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.lookup.LookupFailureException;
-import org.apache.nifi.lookup.LookupService;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+import org.springframework.jdbc.support.JdbcUtils;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-abstract class AbstractSQLLookupService<T> extends AbstractControllerService implements LookupService<T> {
+abstract class AbstractSQLLookupService<T> extends AbstractControllerService implements BatchLookupService<T> {
+
+    // keeps batch statements below the bind parameter limits of common databases
+    static final int MAX_BATCH_PARAMETERS = 2000;
+
+    private static final int REFRESH_THREADS = 2;
+
+    private static final int PRELOAD_PROGRESS_ROWS = 100000;
+
+    static final String WATERMARK_PARAMETER = "watermark";
+
+    // publishes a reloaded snapshot only over the one it was loaded for
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<AbstractSQLLookupService, PreloadSnapshot> SNAPSHOT =
+                    AtomicReferenceFieldUpdater.newUpdater(AbstractSQLLookupService.class, PreloadSnapshot.class, "snapshot");
 
     static final PropertyDescriptor CONNECTION_POOL =
                     new PropertyDescriptor.Builder()
@@ -50,6 +104,23 @@ abstract class AbstractSQLLookupService<T> extends AbstractControllerService imp
                                     .sensitive(false)
                                     .build();
 
+    static final AllowableValue ROW_POLICY_FIRST =
+                    new AllowableValue("first", "First Row", "Use the first row and do not fetch the others");
+
+    static final AllowableValue ROW_POLICY_FAIL =
+                    new AllowableValue("fail", "Fail on Multiple Rows", "Fail the lookup when the query returns more than one row");
+
+    static final PropertyDescriptor ROW_POLICY =
+                    new PropertyDescriptor.Builder()
+                                    .name("row-policy")
+                                    .displayName("Row Policy")
+                                    .description("What a lookup does when the query returns more than one row. The database is " +
+                                                    "asked for no more rows than the policy needs.")
+                                    .allowableValues(ROW_POLICY_FIRST, ROW_POLICY_FAIL)
+                                    .defaultValue(ROW_POLICY_FIRST.getValue())
+                                    .required(true)
+                                    .build();
+
     static final AllowableValue CACHING_LIBRARY_CAFFEINE =
                     new AllowableValue("Caffeine", "Caffeine", "Use Caffeine");
 
@@ -59,15 +130,36 @@ abstract class AbstractSQLLookupService<T> extends AbstractControllerService imp
     static final AllowableValue CACHING_LIBRARY_GUAVA =
                     new AllowableValue("Guava", "Guava", "Use Guava");
 
+    static final AllowableValue CACHING_LIBRARY_OFF_HEAP =
+                    new AllowableValue("OffHeap", "Off-heap", "Serialize cached values into direct memory outside the Java heap");
+
+    static final AllowableValue CACHING_LIBRARY_PERSISTENT =
+                    new AllowableValue("Persistent", "Persistent",
+                                    "Serialize cached values into a memory-mapped file that is reused after a restart");
+
+    static final AllowableValue CACHING_LIBRARY_CLOCK =
+                    new AllowableValue("Clock", "Striped CLOCK",
+                                    "Lock-free reads and CLOCK eviction in lock-striped segments, for read-mostly lookups on many cores");
+
     static final PropertyDescriptor CACHING_LIBRARY =
                     new PropertyDescriptor.Builder()
                                     .name("caching-library")
-                                    .displayName("Caching library").description("Library to use for caching.")
-                                    .allowableValues(CACHING_LIBRARY_CAFFEINE, CACHING_LIBRARY_CACHE2k, CACHING_LIBRARY_GUAVA)
+                                    .displayName("Caching library")
+                                    .description("Library to use for caching. Besides the bundled libraries, any "
+                                                    + CacheAdapterFactory.class.getSimpleName() + " registered with the ServiceLoader is offered.")
+                                    .allowableValues(cachingLibraries())
                                     .defaultValue(CACHING_LIBRARY_CAFFEINE.getValue())
                                     .required(true)
                                     .build();
 
+    private static AllowableValue[] cachingLibraries() {
+        final List<AllowableValue> libraries = new ArrayList<>();
+        for (final CacheAdapterFactory factory : CacheAdapterFactories.all()) {
+            libraries.add(new AllowableValue(factory.getName(), factory.getDisplayName(), factory.getDescription()));
+        }
+        return libraries.toArray(new AllowableValue[0]);
+    }
+
     static final PropertyDescriptor CACHE_SIZE =
                     new PropertyDescriptor.Builder()
                                     .name("cache-size")
@@ -78,17 +170,314 @@ abstract class AbstractSQLLookupService<T> extends AbstractControllerService imp
                                     .addValidator(StandardValidators.INTEGER_VALIDATOR)
                                     .build();
 
+    static final PropertyDescriptor CACHE_MAX_MEMORY =
+                    new PropertyDescriptor.Builder()
+                                    .name("cache-max-memory")
+                                    .displayName("Cache Max Memory")
+                                    .description("Bounds the lookup cache by the estimated heap size of its keys and values " +
+                                                    "instead of by their number, so Cache size only needs to be above zero. " +
+                                                    "Not used by the Off-heap and Persistent caches, which are bounded by " +
+                                                    "Off-heap Memory.")
+                                    .required(false)
+                                    .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor OFF_HEAP_MEMORY =
+                    new PropertyDescriptor.Builder()
+                                    .name("off-heap-memory")
+                                    .displayName("Off-heap Memory")
+                                    .description("Direct memory used by the Off-heap cache, or size of the file of the " +
+                                                    "Persistent cache. Once it is full the oldest cached values are evicted, so " +
+                                                    "Cache size only needs to be above zero. The JVM must allow this much direct " +
+                                                    "memory for the Off-heap cache, see -XX:MaxDirectMemorySize.")
+                                    .defaultValue("256 MB")
+                                    .required(true)
+                                    .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor OFF_HEAP_FRONT_CACHE_SIZE =
+                    new PropertyDescriptor.Builder()
+                                    .name("off-heap-front-cache-size")
+                                    .displayName("Off-heap Front Cache Size")
+                                    .description("Number of the most used values the Off-heap and Persistent caches also keep on the heap, " +
+                                                    "so they are not decoded on every lookup. Zero disables the front cache.")
+                                    .defaultValue("0")
+                                    .required(true)
+                                    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor PERSISTENT_CACHE_DIRECTORY =
+                    new PropertyDescriptor.Builder()
+                                    .name("persistent-cache-directory")
+                                    .displayName("Persistent Cache Directory")
+                                    .description("Local directory of the Persistent cache files. Each service uses its own " +
+                                                    "files, named after the service identifier. The cached values are reused " +
+                                                    "after a restart unless the query or its result columns changed.")
+                                    .required(false)
+                                    .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+                                    .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+                                    .build();
+
+    static final PropertyDescriptor CACHE_EXPIRE_AFTER_WRITE =
+                    new PropertyDescriptor.Builder()
+                                    .name("cache-expire-after-write")
+                                    .displayName("Cache Expire After Write")
+                                    .description("Cached values are dropped this long after they were loaded, so changed " +
+                                                    "reference data is picked up by the next lookup. Zero keeps values until " +
+                                                    "they are evicted by size.")
+                                    .defaultValue("0 secs")
+                                    .required(true)
+                                    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor CACHE_EXPIRE_AFTER_ACCESS =
+                    new PropertyDescriptor.Builder()
+                                    .name("cache-expire-after-access")
+                                    .displayName("Cache Expire After Access")
+                                    .description("Cached values are dropped when they have not been looked up for this long. " +
+                                                    "Zero disables it. Not supported by Cache2k and Off-heap.")
+                                    .defaultValue("0 secs")
+                                    .required(true)
+                                    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor CACHE_REFRESH_AFTER_WRITE =
+                    new PropertyDescriptor.Builder()
+                                    .name("cache-refresh-after-write")
+                                    .displayName("Cache Refresh After Write")
+                                    .description("Cached values older than this are reloaded from the database in the " +
+                                                    "background, while lookups keep returning the old value. With Caffeine and " +
+                                                    "Guava the reload starts on the next lookup of the value; Cache2k reloads " +
+                                                    "every value when it reaches this age and ignores Cache Expire After Write. " +
+                                                    "Zero disables refresh.")
+                                    .defaultValue("0 secs")
+                                    .required(true)
+                                    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor NEGATIVE_CACHE_SIZE =
+                    new PropertyDescriptor.Builder()
+                                    .name("negative-cache-size")
+                                    .displayName("Negative Cache Size")
+                                    .description("Number of lookups without a result that are remembered, so repeated lookups " +
+                                                    "of keys that do not match are answered without querying the database. " +
+                                                    "Zero disables negative caching.")
+                                    .defaultValue("0")
+                                    .required(true)
+                                    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor NEGATIVE_CACHE_EXPIRATION =
+                    new PropertyDescriptor.Builder()
+                                    .name("negative-cache-expiration")
+                                    .displayName("Negative Cache Expiration")
+                                    .description("How long a lookup without a result is remembered. Rows added to the database " +
+                                                    "are not seen for these keys until then.")
+                                    .defaultValue("5 mins")
+                                    .required(true)
+                                    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor SHARED_CACHE_REGION =
+                    new PropertyDescriptor.Builder()
+                                    .name("shared-cache-region")
+                                    .displayName("Shared Cache Region")
+                                    .description("Name of a cache region shared with other lookup services. Services of the same type " +
+                                                    "with the same region name, connection pool, query and value settings use one lookup " +
+                                                    "cache and one negative cache instead of each keeping their own, so every row is cached " +
+                                                    "and loaded once. The caches are created with the settings of the first service to " +
+                                                    "attach and are released when the last one is disabled. Leave empty to give the service " +
+                                                    "its own caches.")
+                                    .required(false)
+                                    .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor STATEMENT_CACHE_SIZE =
+                    new PropertyDescriptor.Builder()
+                                    .name("statement-cache-size")
+                                    .displayName("Prepared Statement Cache Size")
+                                    .description("Maximum number of prepared statements kept open per connection. " +
+                                                    "When greater than zero the service keeps connections checked out of the " +
+                                                    "connection pool and reuses their prepared statements, so a lookup only binds " +
+                                                    "parameters and executes. Up to 8 idle connections stay checked out for up to " +
+                                                    "30 seconds, so size the connection pool for them. Zero disables statement reuse.")
+                                    .defaultValue("0")
+                                    .required(true)
+                                    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor STATEMENT_CACHE_MAX_CONNECTION_AGE =
+                    new PropertyDescriptor.Builder()
+                                    .name("statement-cache-max-connection-age")
+                                    .displayName("Prepared Statement Connection Max Age")
+                                    .description("Connections held for prepared statement reuse are returned to the connection " +
+                                                    "pool once they are older than this, or have not been used for 30 seconds, " +
+                                                    "so the pool can validate and evict them.")
+                                    .defaultValue("5 mins")
+                                    .required(true)
+                                    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor BATCH_SIZE =
+                    new PropertyDescriptor.Builder()
+                                    .name("batch-size")
+                                    .displayName("Lookup Batch Size")
+                                    .description("Maximum number of coordinates resolved by one SQL query when lookups are " +
+                                                    "made through the batch API. Each coordinate runs the configured query as a " +
+                                                    "derived table, and the tables are combined with UNION ALL. Queries that order " +
+                                                    "or limit their rows with ORDER BY, TOP, FETCH, OFFSET or LIMIT are run once " +
+                                                    "per coordinate instead.")
+                                    .defaultValue("100")
+                                    .required(true)
+                                    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor PRELOAD_QUERY =
+                    new PropertyDescriptor.Builder()
+                                    .name("preload-query")
+                                    .displayName("Preload Query")
+                                    .description("SQL query that selects the whole lookup table. When set, all rows are read " +
+                                                    "into memory when the service is enabled and lookups never query the database. " +
+                                                    "The query must return a column for every placeholder of the SQL Query, named " +
+                                                    "like the placeholder, together with the lookup value columns.")
+                                    .required(false)
+                                    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                                    .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+                                    .build();
+
+    static final PropertyDescriptor PRELOAD_FETCH_SIZE =
+                    new PropertyDescriptor.Builder()
+                                    .name("preload-fetch-size")
+                                    .displayName("Preload Fetch Size")
+                                    .description("Number of rows fetched from the database per round trip while preloading.")
+                                    .defaultValue("10000")
+                                    .required(true)
+                                    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor PRELOAD_MAX_MEMORY =
+                    new PropertyDescriptor.Builder()
+                                    .name("preload-max-memory")
+                                    .displayName("Preload Max Memory")
+                                    .description("Upper bound for the estimated heap used by the preloaded table. Enabling the " +
+                                                    "service fails when the table is larger.")
+                                    .defaultValue("256 MB")
+                                    .required(true)
+                                    .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor PRELOAD_RELOAD_INTERVAL =
+                    new PropertyDescriptor.Builder()
+                                    .name("preload-reload-interval")
+                                    .displayName("Preload Reload Interval")
+                                    .description("How often the preloaded table is read again in the background. Lookups use " +
+                                                    "the previous table until the new one is complete, so up to twice the " +
+                                                    "table's memory is needed during a reload. A failed reload is logged and the " +
+                                                    "previous table is kept. Zero disables reloading.")
+                                    .defaultValue("0 secs")
+                                    .required(true)
+                                    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor WATERMARK_COLUMN =
+                    new PropertyDescriptor.Builder()
+                                    .name("watermark-column")
+                                    .displayName("Watermark Column")
+                                    .description("Column that increases whenever a row changes, such as an update timestamp or " +
+                                                    "a version number. Preload Query and Delta Query must both return it.")
+                                    .required(false)
+                                    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor DELTA_QUERY =
+                    new PropertyDescriptor.Builder()
+                                    .name("delta-query")
+                                    .displayName("Delta Query")
+                                    .description("SQL query that returns the rows changed since the last refresh, with the same " +
+                                                    "columns as Preload Query. The :" + WATERMARK_PARAMETER + " placeholder is " +
+                                                    "bound to the highest Watermark Column value read so far, for example " +
+                                                    "SELECT * FROM foo WHERE updated_at > :" + WATERMARK_PARAMETER + ".")
+                                    .required(false)
+                                    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                                    .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+                                    .build();
+
+    static final PropertyDescriptor DELTA_DELETED_COLUMN =
+                    new PropertyDescriptor.Builder()
+                                    .name("delta-deleted-column")
+                                    .displayName("Delta Deleted Column")
+                                    .description("Column of Delta Query that marks deleted rows. Rows where it is true, or a " +
+                                                    "non-zero number, are removed from the preloaded table. Rows without a lookup " +
+                                                    "value are always removed.")
+                                    .required(false)
+                                    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor DELTA_REFRESH_INTERVAL =
+                    new PropertyDescriptor.Builder()
+                                    .name("delta-refresh-interval")
+                                    .displayName("Delta Refresh Interval")
+                                    .description("How often Delta Query is run to update the preloaded table.")
+                                    .defaultValue("1 min")
+                                    .required(true)
+                                    .addValidator(StandardValidators.createTimePeriodValidator(1, TimeUnit.MILLISECONDS, Long.MAX_VALUE, TimeUnit.MILLISECONDS))
+                                    .build();
+
+    static final PropertyDescriptor STATS_REPORTING_INTERVAL =
+                    new PropertyDescriptor.Builder()
+                                    .name("stats-reporting-interval")
+                                    .displayName("Statistics Reporting Interval")
+                                    .description("How often the lookup statistics (hits, misses, negative hits, database loads and their "
+                                                    + "latency, evictions) are logged and written to the local state of the service. "
+                                                    + "A last report is made when the service is disabled. The default of 0 sec "
+                                                    + "disables reporting; the statistics are still counted.")
+                                    .defaultValue("0 sec")
+                                    .required(true)
+                                    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+                                    .build();
+
     String sqlQuery;
     Integer queryTimeout;
+    Integer batchSize;
     DBCPService dbcpService;
+    SQLQueryPlan queryPlan;
+    PreparedStatementPool statementPool;
+    ScheduledExecutorService statementPoolExecutor;
+
+    String preloadQuery;
+    Integer preloadFetchSize;
+    long preloadMaxBytes;
+    long preloadReloadMillis;
+    SQLQueryPlan deltaPlan;
+    String watermarkColumn;
+    String deletedColumn;
+    long deltaRefreshMillis;
+    // the preloaded table, null unless a preload query is configured. Reloads replace it as a whole.
+    volatile PreloadSnapshot<T> snapshot;
+    ScheduledExecutorService reloadExecutor;
 
     CacheAdapter<T> cache;
+    CacheSettings cacheSettings;
+    ExecutorService refreshExecutor;
+    // holds Boolean.TRUE for every key known to have no result, null when negative caching is disabled
+    CacheAdapter<Boolean> negativeCache;
 
     String cachingLibrary;
     Integer cacheSize;
+    String sharedCacheRegion;
+    String connectionPoolId;
+    long offHeapBytes;
+    int offHeapFrontCacheSize;
+    String persistentCacheDirectory;
 
     Boolean useJDBCTypes;
 
+    String rowPolicy;
+
+    volatile LookupMetrics metrics = new LookupMetrics();
+    long statsReportingMillis;
+    ScheduledExecutorService statsExecutor;
+
     @Override
     public Optional<T> lookup(Map<String, Object> coordinates) throws LookupFailureException {
 
@@ -96,36 +485,988 @@ abstract class AbstractSQLLookupService<T> extends AbstractControllerService imp
             return Optional.empty();
         }
 
-        if (cacheSize > 0) {
+        final PreloadSnapshot<T> preloaded = snapshot;
+        if (preloaded != null) {
+            final T value = preloadLookup(preloaded, coordinates);
+            countPreloaded(value);
+            return Optional.ofNullable(value);
+        }
+
+        if (cacheSize > 0 || negativeCache != null) {
             return cacheLookup(coordinates);
         }
 
-        return databaseLookup(coordinates);
+        metrics.miss();
+        return loadFromDatabase(coordinates);
+    }
+
+    /**
+     * Looks up every set of coordinates, combining the cache misses into batch queries. Coordinates that match more
+     * rows than the row policy allows fail on their own: the others are still loaded and cached, and the lookup then
+     * fails naming only the offending coordinates.
+     */
+    @Override
+    public List<Optional<T>> lookupAll(Collection<Map<String, Object>> coordinatesList) throws LookupFailureException {
+        final List<Optional<T>> results = new ArrayList<>(coordinatesList.size());
+
+        final PreloadSnapshot<T> preloaded = snapshot;
+        if (preloaded != null) {
+            for (final Map<String, Object> coordinates : coordinatesList) {
+                if (coordinates == null || coordinates.size() == 0) {
+                    results.add(Optional.empty());
+                    continue;
+                }
+                final T value = preloadLookup(preloaded, coordinates);
+                countPreloaded(value);
+                results.add(Optional.ofNullable(value));
+            }
+            return results;
+        }
+
+        final LookupMetrics lookupMetrics = metrics;
+        final Map<CacheKey, List<Integer>> misses = new LinkedHashMap<>();
+
+        for (final Map<String, Object> coordinates : coordinatesList) {
+            if (coordinates == null || coordinates.size() == 0) {
+                results.add(Optional.empty());
+                continue;
+            }
+
+            final CacheKey cacheKey = queryPlan.cacheKey(coordinates);
+            final T cached = cacheSize > 0 ? cache.get(cacheKey) : null;
+            if (cached != null) {
+                lookupMetrics.hit();
+                results.add(Optional.of(cached));
+            } else if (negativeCache != null && negativeCache.get(cacheKey) != null) {
+                lookupMetrics.negativeHit();
+                results.add(Optional.empty());
+            } else {
+                lookupMetrics.miss();
+                misses.computeIfAbsent(cacheKey, k -> new ArrayList<>()).add(results.size());
+                results.add(Optional.empty());
+            }
+        }
+
+        if (misses.isEmpty()) {
+            return results;
+        }
+
+        final Set<CacheKey> violations = new LinkedHashSet<>();
+        final Map<CacheKey, T> loaded = databaseLookupAll(misses.keySet(), violations);
+        for (final Map.Entry<CacheKey, List<Integer>> miss : misses.entrySet()) {
+            final T value = loaded.get(miss.getKey());
+            if (violations.contains(miss.getKey())) {
+                continue;
+            }
+            if (value == null) {
+                if (negativeCache != null) {
+                    negativeCache.set(miss.getKey(), Boolean.TRUE);
+                }
+                continue;
+            }
+
+            if (cacheSize > 0) {
+                cache.set(miss.getKey(), value);
+            }
+            for (final Integer index : miss.getValue()) {
+                results.set(index, Optional.of(value));
+            }
+        }
+
+        if (!violations.isEmpty()) {
+            final List<Map<String, Object>> failed = new ArrayList<>(violations.size());
+            for (final CacheKey cacheKey : violations) {
+                failed.add(coordinates(cacheKey));
+            }
+            final SQLException e = rowCountViolation();
+            getLogger().error("Error during lookup: {}", new Object[] { failed.toString() }, e);
+            throw new LookupFailureException("Failed " + failed.size() + " of " + coordinatesList.size()
+                            + " coordinates: " + failed, e);
+        }
+
+        return results;
+    }
+
+    /**
+     * Loads the values of the keys from the database. Keys that match more rows than the row policy allows are
+     * added to {@code violations} and left out of the result.
+     */
+    Map<CacheKey, T> databaseLookupAll(Collection<CacheKey> cacheKeys, Set<CacheKey> violations) throws LookupFailureException {
+        final Map<CacheKey, T> results = new HashMap<>();
+        if (!queryPlan.isBatchable()) {
+            // the query orders or limits its rows, which does not survive being combined with UNION ALL
+            for (final CacheKey cacheKey : cacheKeys) {
+                final Optional<T> value = loadFromDatabase(coordinates(cacheKey));
+                if (value.isPresent()) {
+                    results.put(cacheKey, value.get());
+                }
+            }
+            return results;
+        }
+
+        final List<CacheKey> chunk = new ArrayList<>(Math.min(batchSize, cacheKeys.size()));
+        int parameterCount = 0;
+
+        for (final CacheKey cacheKey : cacheKeys) {
+            final int keyParameters = parameterCount(cacheKey);
+            if (!chunk.isEmpty() && (chunk.size() >= batchSize || parameterCount + keyParameters > MAX_BATCH_PARAMETERS)) {
+                databaseLookupChunk(chunk, results, violations);
+                chunk.clear();
+                parameterCount = 0;
+            }
+            chunk.add(cacheKey);
+            parameterCount += keyParameters;
+        }
+
+        if (!chunk.isEmpty()) {
+            databaseLookupChunk(chunk, results, violations);
+        }
+
+        return results;
+    }
+
+    private void databaseLookupChunk(final List<CacheKey> chunk, final Map<CacheKey, T> results,
+                    final Set<CacheKey> violations) throws LookupFailureException {
+        final List<Object[]> valuesList = new ArrayList<>(chunk.size());
+        for (final CacheKey cacheKey : chunk) {
+            valuesList.add(cacheKey.getValues());
+        }
+
+        final LookupMetrics lookupMetrics = metrics;
+        final long start = System.nanoTime();
+        try {
+            executeQuery(queryPlan.bindAll(valuesList), resultSet -> {
+                readBatch(resultSet, chunk, results, violations);
+                return null;
+            });
+            lookupMetrics.loaded(System.nanoTime() - start);
+        } catch (final ProcessException | SQLException | IOException e) {
+            lookupMetrics.loadFailed();
+            getLogger().error("Error during batch lookup of {} coordinates", new Object[] { chunk.size() }, e);
+            throw new LookupFailureException(e);
+        }
     }
 
+    private static int parameterCount(CacheKey cacheKey) {
+        int count = 0;
+        for (final Object value : cacheKey.getValues()) {
+            count += value instanceof Collection ? ((Collection<?>) value).size() : 1;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the rows of a batch query. The first column holds the position of the coordinates in {@code keys};
+     * the rows of each position are used the same as by a single lookup, following the row policy. Keys with more
+     * rows than the row policy allows are added to {@code violations} instead of {@code results}, so that they
+     * fail without the rest of the batch.
+     */
+    abstract void readBatch(ResultSet resultSet, List<CacheKey> keys, Map<CacheKey, T> results, Set<CacheKey> violations)
+                    throws SQLException, IOException;
+
     abstract Optional<T> databaseLookup(Map<String, Object> coordinates) throws LookupFailureException;
 
-    abstract Optional<T> cacheLookup(Map<String, Object> coordinates) throws LookupFailureException;
+    /**
+     * Runs {@link #databaseLookup(Map)}, timing the query for the statistics.
+     */
+    Optional<T> loadFromDatabase(Map<String, Object> coordinates) throws LookupFailureException {
+        final LookupMetrics lookupMetrics = metrics;
+        final long start = System.nanoTime();
+        try {
+            final Optional<T> value = databaseLookup(coordinates);
+            lookupMetrics.loaded(System.nanoTime() - start);
+            return value;
+        } catch (final LookupFailureException | RuntimeException e) {
+            lookupMetrics.loadFailed();
+            throw e;
+        }
+    }
+
+    private void countPreloaded(final T value) {
+        if (value == null) {
+            metrics.negativeHit();
+        } else {
+            metrics.hit();
+        }
+    }
+
+    /**
+     * Looks the coordinates up through the caches. Threads missing on the same key wait for one database lookup
+     * instead of each querying the database, and keys without a result are remembered in the negative cache.
+     */
+    Optional<T> cacheLookup(Map<String, Object> coordinates) throws LookupFailureException {
+        final LookupMetrics lookupMetrics = metrics;
+        final CacheKey cacheKey = queryPlan.cacheKey(coordinates);
+        if (negativeCache != null && negativeCache.get(cacheKey) != null) {
+            lookupMetrics.negativeHit();
+            return Optional.empty();
+        }
+
+        // the loader runs on the calling thread, or not at all when the value is cached or loaded by another thread
+        final boolean[] missed = new boolean[1];
+        final CacheLoader<T> loader = key -> {
+            missed[0] = true;
+            lookupMetrics.miss();
+            final T value = loadFromDatabase(coordinates).orElse(null);
+            if (value == null && negativeCache != null) {
+                negativeCache.set(key, Boolean.TRUE);
+            }
+            return value;
+        };
+
+        final T value = cacheSize > 0 ? cache.get(cacheKey, loader) : loader.load(cacheKey);
+        if (!missed[0]) {
+            lookupMetrics.hit();
+        }
+        return Optional.ofNullable(value);
+    }
+
+    private T preloadLookup(final PreloadSnapshot<T> preloaded, final Map<String, Object> coordinates)
+                    throws LookupFailureException {
+        final Object[] values = queryPlan.values(coordinates);
+        for (final Object value : values) {
+            if (value instanceof Collection) {
+                throw new LookupFailureException("Collection coordinates are not supported with " + PRELOAD_QUERY.getDisplayName());
+            }
+        }
+        return preloaded.get(values);
+    }
+
+    /**
+     * Reads the whole lookup table with the preload query. Rows are streamed with the configured fetch size and,
+     * as with a single lookup, only the first row for each key is kept.
+     */
+    PreloadSnapshot<T> loadSnapshot() throws SQLException, IOException, LookupFailureException {
+        final long start = System.nanoTime();
+        final String[] keyNames = queryPlan.getKeyNames();
+        final ConcurrentMap<CacheKey, T> values = new ConcurrentHashMap<>();
+        Object watermark = null;
+        long estimatedBytes = 0;
+        long rows = 0;
+
+        try (final Connection connection = dbcpService.getConnection()) {
+            final boolean autoCommit = connection.getAutoCommit();
+            // several drivers, PostgreSQL among them, only honour the fetch size inside a transaction
+            connection.setAutoCommit(false);
+            try (final PreparedStatement preparedStatement = connection.prepareStatement(preloadQuery)) {
+                preparedStatement.setFetchSize(preloadFetchSize);
+                preparedStatement.setQueryTimeout(queryTimeout);
+
+                try (final ResultSet resultSet = preparedStatement.executeQuery()) {
+                    final RowReader<T> reader = rowReader(resultSet, deltaColumns(keyNames, false));
+
+                    while (reader.next()) {
+                        rows++;
+                        final Object[] columnValues = reader.columnValues();
+                        final Object[] keyValues = Arrays.copyOf(columnValues, keyNames.length);
+                        if (watermarkColumn != null) {
+                            watermark = PreloadSnapshot.maxWatermark(watermark, columnValues[keyNames.length]);
+                        }
+
+                        final T value = reader.value();
+                        final CacheKey key = PreloadSnapshot.key(sqlQuery, keyNames, keyValues);
+                        if (value != null && values.putIfAbsent(key, value) == null) {
+                            estimatedBytes += EntrySizeEstimator.estimate(key, value);
+                            if (estimatedBytes > preloadMaxBytes) {
+                                throw new LookupFailureException(String.format("Preloaded table exceeds %s of %d bytes after %d rows",
+                                                PRELOAD_MAX_MEMORY.getDisplayName(), preloadMaxBytes, rows));
+                            }
+                        }
+
+                        if (rows % PRELOAD_PROGRESS_ROWS == 0) {
+                            getLogger().info("Preloaded {} rows, about {} MB", new Object[] { rows, estimatedBytes >> 20 });
+                        }
+                    }
+                }
+            } finally {
+                // ends the read transaction, which a connection that was not in auto-commit mode would keep open
+                try {
+                    connection.rollback();
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            }
+        }
+
+        getLogger().info("Preloaded {} keys from {} rows in {} ms, about {} MB", new Object[] { values.size(), rows,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), estimatedBytes >> 20 });
+        return new PreloadSnapshot<>(sqlQuery, keyNames, values, estimatedBytes, watermark);
+    }
+
+    /**
+     * Applies the rows changed since the snapshot's watermark to the snapshot. Changed rows replace the preloaded
+     * ones, and deleted rows or rows without a lookup value are removed.
+     */
+    void refreshDelta(final PreloadSnapshot<T> preloaded) throws SQLException, IOException, LookupFailureException {
+        final String[] keyNames = queryPlan.getKeyNames();
+        final SQLQueryPlan.BoundQuery boundQuery = deltaPlan.bind(
+                        Collections.singletonMap(WATERMARK_PARAMETER, preloaded.getWatermark()));
+
+        final long[] counts = executeQuery(boundQuery, resultSet -> {
+            final RowReader<T> reader = rowReader(resultSet, deltaColumns(keyNames, deletedColumn != null));
+            Object watermark = preloaded.getWatermark();
+            long upserts = 0;
+            long deletes = 0;
+
+            while (reader.next()) {
+                final Object[] columnValues = reader.columnValues();
+                final Object[] keyValues = Arrays.copyOf(columnValues, keyNames.length);
+                watermark = PreloadSnapshot.maxWatermark(watermark, columnValues[keyNames.length]);
+
+                final T value = reader.value();
+                if (value == null || (deletedColumn != null && isDeleted(columnValues[keyNames.length + 1]))) {
+                    preloaded.remove(keyValues);
+                    deletes++;
+                } else {
+                    preloaded.put(keyValues, value);
+                    upserts++;
+                }
+            }
+
+            preloaded.setWatermark(watermark);
+            return new long[] { upserts, deletes };
+        });
+
+        getLogger().debug("Applied {} changed and {} deleted rows to the preloaded table", new Object[] { counts[0], counts[1] });
+        if (preloaded.getEstimatedBytes() > preloadMaxBytes) {
+            getLogger().warn("Preloaded table has grown to about {} MB, above {}", new Object[] {
+                            preloaded.getEstimatedBytes() >> 20, PRELOAD_MAX_MEMORY.getDisplayName() });
+        }
+    }
+
+    private String[] deltaColumns(final String[] keyNames, final boolean withDeleted) {
+        if (watermarkColumn == null) {
+            return keyNames;
+        }
+
+        final String[] columns = Arrays.copyOf(keyNames, keyNames.length + (withDeleted ? 2 : 1));
+        columns[keyNames.length] = watermarkColumn;
+        if (withDeleted) {
+            columns[keyNames.length + 1] = deletedColumn;
+        }
+        return columns;
+    }
+
+    private static boolean isDeleted(final Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+        }
+        return value != null && Boolean.parseBoolean(value.toString());
+    }
+
+    static int[] findColumns(final ResultSetMetaData metaData, final String[] keyNames) throws SQLException {
+        final int[] columns = new int[keyNames.length];
+        for (int i = 0; i < keyNames.length; i++) {
+            for (int column = 1; column <= metaData.getColumnCount(); column++) {
+                if (keyNames[i].equalsIgnoreCase(JdbcUtils.lookupColumnName(metaData, column))) {
+                    columns[i] = column;
+                    break;
+                }
+            }
+            if (columns[i] == 0) {
+                throw missingColumn(keyNames[i]);
+            }
+        }
+        return columns;
+    }
+
+    static SQLException missingColumn(final String column) {
+        return new SQLException(PRELOAD_QUERY.getDisplayName() + " does not return a column named " + column);
+    }
+
+    /**
+     * Creates the reader that turns the rows of the preload query into lookup values and the values of the
+     * key columns, in the order of {@code keyNames}.
+     */
+    abstract RowReader<T> rowReader(ResultSet resultSet, String[] keyNames) throws SQLException;
+
+    /**
+     * Reads the preloaded table when a preload query is configured.
+     */
+    void preload() throws InitializationException {
+        if (preloadQuery == null) {
+            return;
+        }
+
+        try {
+            snapshot = loadSnapshot();
+        } catch (final ProcessException | SQLException | IOException | LookupFailureException e) {
+            throw new InitializationException("Failed to preload the lookup table", e);
+        }
+
+        if (preloadReloadMillis > 0 || deltaPlan != null) {
+            // a single thread, so full reloads and delta refreshes never overlap
+            reloadExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory("preload-reload"));
+        }
+        if (preloadReloadMillis > 0) {
+            reloadExecutor.scheduleWithFixedDelay(this::reloadSnapshot, preloadReloadMillis, preloadReloadMillis,
+                            TimeUnit.MILLISECONDS);
+        }
+        if (deltaPlan != null) {
+            reloadExecutor.scheduleWithFixedDelay(this::refreshSnapshot, deltaRefreshMillis, deltaRefreshMillis,
+                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reads the table again and publishes it in one step. Lookups running meanwhile keep using the old table. The
+     * reloaded table only replaces the snapshot it was loaded for: when the service was disabled meanwhile, and
+     * perhaps enabled again with a fresh snapshot, it is dropped.
+     */
+    void reloadSnapshot() {
+        final PreloadSnapshot<T> current = snapshot;
+        if (current == null) {
+            return;
+        }
+
+        try {
+            SNAPSHOT.compareAndSet(this, current, loadSnapshot());
+        } catch (final ProcessException | SQLException | IOException | LookupFailureException e) {
+            getLogger().warn("Failed to reload the preloaded lookup table, keeping the previous one", e);
+        }
+    }
+
+    /**
+     * Runs the delta query against the current snapshot, keeping the snapshot unchanged when it fails. Without a
+     * watermark, because the preload saw no rows or only rows without one, the delta query cannot select the
+     * changes, as comparisons with NULL match nothing; the table is read again in full instead.
+     */
+    void refreshSnapshot() {
+        final PreloadSnapshot<T> preloaded = snapshot;
+        if (preloaded == null) {
+            return;
+        }
+
+        if (preloaded.getWatermark() == null) {
+            getLogger().debug("The preloaded table has no watermark yet, reloading it in full");
+            reloadSnapshot();
+            return;
+        }
+
+        try {
+            refreshDelta(preloaded);
+        } catch (final ProcessException | SQLException | IOException | LookupFailureException e) {
+            getLogger().warn("Failed to refresh the preloaded lookup table from {}", new Object[] { DELTA_QUERY.getDisplayName() }, e);
+        }
+    }
+
+    int getPreloadedSize() {
+        final PreloadSnapshot<T> preloaded = snapshot;
+        return preloaded == null ? 0 : preloaded.size();
+    }
 
     @Override
     public Set<String> getRequiredKeys() {
-        return Collections.emptySet();
+        final SQLQueryPlan plan = queryPlan;
+        return plan == null ? Collections.emptySet() : plan.getRequiredKeys();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+
+        final String query = context.getProperty(SQL_QUERY).evaluateAttributeExpressions().getValue();
+        if (query != null) {
+            try {
+                SQLQueryPlan.compile(query);
+            } catch (final IllegalArgumentException e) {
+                results.add(new ValidationResult.Builder()
+                                .subject(SQL_QUERY.getDisplayName())
+                                .input(query)
+                                .valid(false)
+                                .explanation(e.getMessage())
+                                .build());
+            }
+        }
+
+        final String preload = context.getProperty(PRELOAD_QUERY).evaluateAttributeExpressions().getValue();
+        if (context.getProperty(SHARED_CACHE_REGION).isSet()) {
+            String explanation = null;
+            if (preload != null) {
+                explanation = "the preloaded table belongs to one service and is not shared";
+            } else if (CACHING_LIBRARY_PERSISTENT.getValue().equals(context.getProperty(CACHING_LIBRARY).getValue())) {
+                explanation = "the " + CACHING_LIBRARY_PERSISTENT.getDisplayName() + " cache file belongs to one service and is not shared";
+            } else if (context.getProperty(CACHE_REFRESH_AFTER_WRITE).asTimePeriod(TimeUnit.MILLISECONDS) > 0) {
+                explanation = "refreshes would run through the service that created the shared cache, even after it is disabled";
+            }
+            if (explanation != null) {
+                results.add(new ValidationResult.Builder()
+                                .subject(SHARED_CACHE_REGION.getDisplayName())
+                                .valid(false)
+                                .explanation(explanation)
+                                .build());
+            }
+        }
+
+        if (preload != null) {
+            String explanation = null;
+            try {
+                if (SQLQueryPlan.compile(preload).getKeyNames().length > 0) {
+                    explanation = "the preload query selects the whole table and cannot use placeholders";
+                }
+            } catch (final IllegalArgumentException e) {
+                explanation = e.getMessage();
+            }
+            if (explanation != null) {
+                results.add(new ValidationResult.Builder()
+                                .subject(PRELOAD_QUERY.getDisplayName())
+                                .input(preload)
+                                .valid(false)
+                                .explanation(explanation)
+                                .build());
+            }
+        } else if (context.getProperty(PRELOAD_RELOAD_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS) > 0) {
+            results.add(new ValidationResult.Builder()
+                            .subject(PRELOAD_RELOAD_INTERVAL.getDisplayName())
+                            .valid(false)
+                            .explanation("a reload interval requires " + PRELOAD_QUERY.getDisplayName())
+                            .build());
+        }
+
+        final String delta = context.getProperty(DELTA_QUERY).evaluateAttributeExpressions().getValue();
+        if (delta != null) {
+            String explanation = null;
+            if (preload == null) {
+                explanation = "delta refreshes update the preloaded table and require " + PRELOAD_QUERY.getDisplayName();
+            } else if (!context.getProperty(WATERMARK_COLUMN).isSet()) {
+                explanation = "delta refreshes require " + WATERMARK_COLUMN.getDisplayName();
+            } else {
+                try {
+                    if (!Arrays.equals(new String[] { WATERMARK_PARAMETER }, SQLQueryPlan.compile(delta).getKeyNames())) {
+                        explanation = "the delta query must use the :" + WATERMARK_PARAMETER + " placeholder and no other";
+                    }
+                } catch (final IllegalArgumentException e) {
+                    explanation = e.getMessage();
+                }
+            }
+            if (explanation != null) {
+                results.add(new ValidationResult.Builder()
+                                .subject(DELTA_QUERY.getDisplayName())
+                                .input(delta)
+                                .valid(false)
+                                .explanation(explanation)
+                                .build());
+            }
+        }
+
+        final long expireAfterWrite = context.getProperty(CACHE_EXPIRE_AFTER_WRITE).asTimePeriod(TimeUnit.MILLISECONDS);
+        final long expireAfterAccess = context.getProperty(CACHE_EXPIRE_AFTER_ACCESS).asTimePeriod(TimeUnit.MILLISECONDS);
+        final long refreshAfterWrite = context.getProperty(CACHE_REFRESH_AFTER_WRITE).asTimePeriod(TimeUnit.MILLISECONDS);
+
+        final String library = context.getProperty(CACHING_LIBRARY).getValue();
+        if (expireAfterAccess > 0 && !CacheAdapterFactories.get(library).supportsExpireAfterAccess()) {
+            results.add(new ValidationResult.Builder()
+                            .subject(CACHE_EXPIRE_AFTER_ACCESS.getDisplayName())
+                            .valid(false)
+                            .explanation(library + " does not support expiry after access")
+                            .build());
+        }
+
+        if (CACHING_LIBRARY_PERSISTENT.getValue().equals(library) && !context.getProperty(PERSISTENT_CACHE_DIRECTORY).isSet()) {
+            results.add(new ValidationResult.Builder()
+                            .subject(PERSISTENT_CACHE_DIRECTORY.getDisplayName())
+                            .valid(false)
+                            .explanation("the " + CACHING_LIBRARY_PERSISTENT.getDisplayName() + " cache requires a directory")
+                            .build());
+        }
+
+        if (preload != null && !ROW_POLICY_FIRST.getValue().equals(context.getProperty(ROW_POLICY).getValue())) {
+            results.add(new ValidationResult.Builder()
+                            .subject(ROW_POLICY.getDisplayName())
+                            .valid(false)
+                            .explanation("the preloaded table keeps one row per lookup key and requires "
+                                            + ROW_POLICY_FIRST.getDisplayName())
+                            .build());
+        }
+
+        if (refreshAfterWrite > 0 && expireAfterWrite > 0 && refreshAfterWrite >= expireAfterWrite) {
+            results.add(new ValidationResult.Builder()
+                            .subject(CACHE_REFRESH_AFTER_WRITE.getDisplayName())
+                            .valid(false)
+                            .explanation("values would expire before they are refreshed, refresh must be shorter than "
+                                            + CACHE_EXPIRE_AFTER_WRITE.getDisplayName())
+                            .build());
+        }
+
+        return results;
+    }
+
+    <R> R executeQuery(final SQLQueryPlan.BoundQuery boundQuery, final ResultSetHandler<R> handler)
+                    throws SQLException, IOException {
+        return executeQuery(boundQuery, 0, handler);
+    }
+
+    /**
+     * Runs the query, asking the database for at most {@code maxRows} rows, zero for all of them.
+     */
+    <R> R executeQuery(final SQLQueryPlan.BoundQuery boundQuery, final int maxRows, final ResultSetHandler<R> handler)
+                    throws SQLException, IOException {
+        final PreparedStatementPool pool = statementPool;
+        if (pool == null) {
+            try (final Connection connection = dbcpService.getConnection();
+                 final PreparedStatement preparedStatement = connection.prepareStatement(boundQuery.getSql())) {
+                return executeQuery(preparedStatement, boundQuery, maxRows, handler);
+            }
+        }
+
+        final PreparedStatementPool.Lease lease = pool.borrow();
+        boolean discard = false;
+        try {
+            return executeQuery(lease.prepare(boundQuery.getSql()), boundQuery, maxRows, handler);
+        } catch (final SQLException e) {
+            // only a broken connection is discarded, a failed query or a row policy violation keeps it
+            discard = lease.isBroken(e);
+            throw e;
+        } finally {
+            pool.release(lease, discard);
+        }
+    }
+
+    private <R> R executeQuery(final PreparedStatement preparedStatement, final SQLQueryPlan.BoundQuery boundQuery,
+                    final int maxRows, final ResultSetHandler<R> handler) throws SQLException, IOException {
+        boundQuery.setValues(preparedStatement);
+        preparedStatement.setQueryTimeout(queryTimeout);
+        // always set, pooled statements keep the limits of their previous query
+        preparedStatement.setMaxRows(maxRows);
+        preparedStatement.setFetchSize(maxRows);
+
+        try (final ResultSet resultSet = preparedStatement.executeQuery()) {
+            return handler.handle(resultSet);
+        }
+    }
+
+    /**
+     * Returns the number of rows a single lookup reads under the row policy, zero for all of them. Failing on
+     * multiple rows only needs to see whether there is a second one.
+     */
+    int lookupRowLimit() {
+        return ROW_POLICY_FAIL.getValue().equals(rowPolicy) ? 2 : ROW_POLICY_FIRST.getValue().equals(rowPolicy) ? 1 : 0;
+    }
+
+    /**
+     * Fails the lookup when it matched more rows than the row policy allows.
+     */
+    void checkRowCount(final boolean multipleRows) throws SQLException {
+        if (multipleRows && failsOnMultipleRows()) {
+            throw rowCountViolation();
+        }
+    }
+
+    boolean failsOnMultipleRows() {
+        return ROW_POLICY_FAIL.getValue().equals(rowPolicy);
+    }
+
+    private SQLException rowCountViolation() {
+        return new SQLException("The lookup query returned more than one row and " + ROW_POLICY.getDisplayName()
+                        + " is " + ROW_POLICY_FAIL.getDisplayName());
     }
 
     long getCacheSize() {
-        return cache.estimatedSize();
+        final CacheAdapter<T> currentCache = cache;
+        return currentCache == null ? 0 : currentCache.estimatedSize();
+    }
+
+    long getNegativeCacheSize() {
+        return negativeCache == null ? 0 : negativeCache.estimatedSize();
+    }
+
+    /**
+     * Returns the lookup statistics since the service was enabled.
+     */
+    public LookupStats getStats() {
+        final CacheAdapter<T> currentCache = cache;
+        return currentCache == null
+                        ? metrics.snapshot(0, 0)
+                        : metrics.snapshot(currentCache.evictionCount(), currentCache.estimatedSize());
+    }
+
+    /**
+     * Starts logging the statistics and writing them to the local state every reporting interval.
+     */
+    void scheduleStatsReporting() {
+        if (statsReportingMillis > 0) {
+            statsExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory("stats"));
+            statsExecutor.scheduleWithFixedDelay(this::reportStats, statsReportingMillis, statsReportingMillis,
+                            TimeUnit.MILLISECONDS);
+        }
     }
 
+    void reportStats() {
+        final LookupStats stats = getStats();
+        getLogger().info("Lookup statistics: {}", new Object[] { stats });
+        try {
+            getStateManager().setState(stats.toMap(), Scope.LOCAL);
+        } catch (final IOException e) {
+            getLogger().warn("Failed to write the lookup statistics to the local state", e);
+        }
+    }
+
+    /**
+     * Stops the background work and releases the caches and statements. Also runs when enabling fails, as NiFi does
+     * not disable a service that failed to enable, so it only releases what was set up.
+     */
     @OnDisabled
     public void onDisabled() {
-        cache.cleanUp();
+        if (statsExecutor != null) {
+            statsExecutor.shutdownNow();
+            statsExecutor = null;
+            reportStats();
+        }
+
+        if (cache != null) {
+            releaseCache(cache, "values");
+        }
+
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdownNow();
+            reloadExecutor = null;
+        }
+        snapshot = null;
+
+        if (negativeCache != null) {
+            releaseCache(negativeCache, "negative");
+            negativeCache = null;
+        }
+
+        if (statementPoolExecutor != null) {
+            statementPoolExecutor.shutdownNow();
+            statementPoolExecutor = null;
+        }
+        if (statementPool != null) {
+            statementPool.close();
+            statementPool = null;
+        }
+
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+    }
+
+    /**
+     * NiFi does not disable services when it shuts down, so the cache is flushed here to be reused after the
+     * restart.
+     */
+    @OnShutdown
+    public void onShutdown() {
+        final CacheAdapter<T> currentCache = cache;
+        if (currentCache != null) {
+            currentCache.flush();
+        }
     }
 
-    void setDefaultValues(final ConfigurationContext context) {
+    void setDefaultValues(final ConfigurationContext context) throws InitializationException {
+        // set by the subclass once the rest is set up, so that a failed enable does not release it twice
+        this.cache = null;
         this.dbcpService = context.getProperty(CONNECTION_POOL).asControllerService(DBCPService.class);
-        this.sqlQuery = context.getProperty(SQL_QUERY).evaluateAttributeExpressions().getValue();
+        // interned so that every cache key shares one query instance
+        this.sqlQuery = context.getProperty(SQL_QUERY).evaluateAttributeExpressions().getValue().intern();
         this.queryTimeout = context.getProperty(QUERY_TIMEOUT).asTimePeriod(TimeUnit.SECONDS).intValue();
+        this.rowPolicy = context.getProperty(ROW_POLICY).getValue();
+        this.statsReportingMillis = context.getProperty(STATS_REPORTING_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        this.metrics = new LookupMetrics();
         this.cachingLibrary = context.getProperty(CACHING_LIBRARY).getValue();
         this.cacheSize = context.getProperty(CACHE_SIZE).asInteger();
+        this.sharedCacheRegion = context.getProperty(SHARED_CACHE_REGION).getValue();
+        this.connectionPoolId = context.getProperty(CONNECTION_POOL).getValue();
+        this.offHeapBytes = context.getProperty(OFF_HEAP_MEMORY).asDataSize(DataUnit.B).longValue();
+        this.offHeapFrontCacheSize = context.getProperty(OFF_HEAP_FRONT_CACHE_SIZE).asInteger();
+        this.persistentCacheDirectory = context.getProperty(PERSISTENT_CACHE_DIRECTORY).evaluateAttributeExpressions().getValue();
+        this.batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        this.preloadQuery = context.getProperty(PRELOAD_QUERY).evaluateAttributeExpressions().getValue();
+        this.preloadFetchSize = context.getProperty(PRELOAD_FETCH_SIZE).asInteger();
+        this.preloadMaxBytes = context.getProperty(PRELOAD_MAX_MEMORY).asDataSize(DataUnit.B).longValue();
+        this.preloadReloadMillis = context.getProperty(PRELOAD_RELOAD_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        this.watermarkColumn = context.getProperty(WATERMARK_COLUMN).getValue();
+        this.deletedColumn = context.getProperty(DELTA_DELETED_COLUMN).getValue();
+        this.deltaRefreshMillis = context.getProperty(DELTA_REFRESH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        final String deltaQuery = context.getProperty(DELTA_QUERY).evaluateAttributeExpressions().getValue();
+        this.deltaPlan = deltaQuery == null || preloadQuery == null ? null : SQLQueryPlan.compile(deltaQuery);
+
+        // compiled once so lookups only bind values
+        this.queryPlan = SQLQueryPlan.compile(sqlQuery);
+
+        final long refreshAfterWrite = context.getProperty(CACHE_REFRESH_AFTER_WRITE).asTimePeriod(TimeUnit.MILLISECONDS);
+        final Double cacheMaxBytes = context.getProperty(CACHE_MAX_MEMORY).asDataSize(DataUnit.B);
+        this.refreshExecutor = refreshAfterWrite > 0 && cacheSize > 0
+                        ? Executors.newFixedThreadPool(REFRESH_THREADS, threadFactory("cache-refresh"))
+                        : null;
+        this.cacheSettings = new CacheSettings.Builder()
+                        .maximumSize(cacheSize)
+                        .maximumWeight(cacheMaxBytes == null ? 0 : cacheMaxBytes.longValue(), AbstractSQLLookupService::weigh)
+                        .expireAfterWrite(context.getProperty(CACHE_EXPIRE_AFTER_WRITE).asTimePeriod(TimeUnit.MILLISECONDS))
+                        .expireAfterAccess(context.getProperty(CACHE_EXPIRE_AFTER_ACCESS).asTimePeriod(TimeUnit.MILLISECONDS))
+                        .refreshAfterWrite(refreshAfterWrite, refreshExecutor)
+                        .build();
+
+        final int negativeCacheSize = context.getProperty(NEGATIVE_CACHE_SIZE).asInteger();
+        final CacheSettings negativeCacheSettings = new CacheSettings.Builder()
+                        .maximumSize(negativeCacheSize)
+                        .expireAfterWrite(context.getProperty(NEGATIVE_CACHE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS))
+                        .build();
+        if (negativeCacheSize <= 0) {
+            this.negativeCache = null;
+        } else if (cacheFactory().isOffHeap()) {
+            // the negative cache only holds keys, it stays on the heap
+            this.negativeCache = regionCache("negative", negativeCacheSettings, () -> new CaffeineAdapter<>(negativeCacheSettings, null));
+        } else {
+            this.negativeCache = regionCache("negative", negativeCacheSettings, () -> createCache(negativeCacheSettings, Boolean.class, null));
+        }
+
+        final int statementCacheSize = context.getProperty(STATEMENT_CACHE_SIZE).asInteger();
+        this.statementPool = statementCacheSize > 0
+                        ? new PreparedStatementPool(dbcpService, statementCacheSize,
+                                        context.getProperty(STATEMENT_CACHE_MAX_CONNECTION_AGE).asTimePeriod(TimeUnit.MILLISECONDS))
+                        : null;
+        if (statementPool != null) {
+            statementPoolExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory("statement-pool"));
+            statementPoolExecutor.scheduleWithFixedDelay(statementPool::reap, statementPool.reapIntervalMillis(),
+                            statementPool.reapIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the cache of the shared cache region when one is configured, attaching to it, and otherwise a cache
+     * of this service. The subclasses set up their own value settings before calling this, as they are part of the
+     * region's identity.
+     */
+    <V> CacheAdapter<V> regionCache(final String part, final CacheSettings settings, final SharedCacheRegions.CacheFactory<V> factory)
+                    throws InitializationException {
+        if (sharedCacheRegion == null) {
+            return factory.create();
+        }
+
+        final String description = String.format("library=%s, size=%d, weight=%d, expireAfterWrite=%dms, expireAfterAccess=%dms",
+                        cachingLibrary, settings.getMaximumSize(), settings.getMaximumWeight(), settings.getExpireAfterWriteMillis(),
+                        settings.getExpireAfterAccessMillis());
+        return SharedCacheRegions.attach(regionKey(part), description, factory, getLogger());
+    }
+
+    private void releaseCache(final CacheAdapter<?> adapter, final String part) {
+        if (sharedCacheRegion == null) {
+            adapter.cleanUp();
+        } else {
+            SharedCacheRegions.detach(regionKey(part));
+        }
+    }
+
+    /**
+     * Identifies a cache of the shared region: services share it only when they would cache the same values.
+     */
+    String regionKey(final String part) {
+        return String.join("\n", sharedCacheRegion, connectionPoolId, getClass().getName(), queryPlan.getKeyQuery(),
+                        cacheValueSettings(), part);
+    }
+
+    CacheAdapterFactory cacheFactory() {
+        return CacheAdapterFactories.get(cachingLibrary);
+    }
+
+    /**
+     * Creates a cache of the configured caching library, so that both services get the same caches for the same
+     * settings.
+     */
+    <V> CacheAdapter<V> createCache(final CacheSettings settings, final Class<V> valueType, final CacheLoader<V> refreshLoader)
+                    throws InitializationException {
+        final CacheRequest<V> request = new CacheRequest.Builder<>(settings, valueType)
+                        .refreshLoader(refreshLoader)
+                        .offHeap(offHeapBytes, offHeapFrontCacheSize)
+                        .persistent(persistentCacheDirectory == null ? null : Paths.get(persistentCacheDirectory), getIdentifier(),
+                                        () -> cacheFingerprint(valueType))
+                        .build();
+        try {
+            return cacheFactory().create(request);
+        } catch (final IOException e) {
+            throw new InitializationException("Failed to create the " + cachingLibrary + " cache", e);
+        }
+    }
+
+    // weights are estimated bytes, capped to the int range of the cache libraries
+    private static int weigh(final CacheKey key, final Object value) {
+        return (int) Math.min(Integer.MAX_VALUE, EntrySizeEstimator.estimate(key, value));
+    }
+
+    /**
+     * Identifies what persisted cache values were loaded with: the service type, the query and the columns of its
+     * results, as reported by the driver.
+     */
+    byte[] cacheFingerprint(final Class<?> valueType) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final StringBuilder description = new StringBuilder()
+                        .append(getClass().getName()).append('\n')
+                        .append(valueType.getName()).append('\n')
+                        .append(sqlQuery).append('\n')
+                        .append(cacheValueSettings()).append('\n');
+
+        final String sql = queryPlan.bind(new Object[queryPlan.getKeyNames().length]).getSql();
+        try (final Connection connection = dbcpService.getConnection();
+             final PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            final ResultSetMetaData metaData = preparedStatement.getMetaData();
+            if (metaData != null) {
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                    description.append(metaData.getColumnLabel(i)).append(' ')
+                                    .append(metaData.getColumnType(i)).append(' ')
+                                    .append(metaData.getPrecision(i)).append(' ')
+                                    .append(metaData.getScale(i)).append('\n');
+                }
+            }
+        } catch (final ProcessException | SQLException e) {
+            getLogger().warn("Failed to read the result columns of the query, persisted cache values are only matched by query", e);
+        }
+
+        return digest.digest(description.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Settings of the service that change the cached values, part of the persistent cache fingerprint.
+     */
+    String cacheValueSettings() {
+        return "";
+    }
+
+    /**
+     * Reloads a cached value from the database, rebuilding the coordinates from the cache key.
+     */
+    CacheLoader<T> refreshLoader() {
+        return key -> loadFromDatabase(coordinates(key)).orElse(null);
+    }
+
+    private static Map<String, Object> coordinates(final CacheKey key) {
+        final Map<String, Object> coordinates = new HashMap<>();
+        for (int i = 0; i < key.getNames().length; i++) {
+            coordinates.put(key.getNames()[i], key.getValues()[i]);
+        }
+        return coordinates;
+    }
+
+    private ThreadFactory threadFactory(final String purpose) {
+        final String name = getClass().getSimpleName() + "[" + getIdentifier() + "]-" + purpose + "-";
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    interface ResultSetHandler<R> {
+        R handle(ResultSet resultSet) throws SQLException, IOException;
+    }
+
+    interface RowReader<R> {
+        boolean next() throws SQLException, IOException;
+
+        Object[] columnValues() throws SQLException;
+
+        R value() throws SQLException;
     }
 }
@@ -0,0 +1,449 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.api.BatchLookupService;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+@Tags({"lookup", "enrich", "record", "sql", "batch"})
+@CapabilityDescription("Enriches each record of a FlowFile with a value from a batch lookup service such as the " +
+                "SQLLookupService or SQLRecordLookupService. Records are read in batches, and each batch is resolved with " +
+                "one call to the lookup service, which answers it from its cache and a few multi-key SQL queries. " +
+                "Each dynamic property maps a lookup coordinate to the record field that holds its value.")
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@WritesAttributes({
+                @WritesAttribute(attribute = "record.count", description = "The number of records in the FlowFile"),
+                @WritesAttribute(attribute = "mime.type", description = "The MIME type given by the Record Writer")
+})
+@DynamicProperty(name = "The name of a lookup coordinate",
+                value = "The name of the record field holding the coordinate value",
+                description = "Adds the value of the record field to the lookup coordinates under the property name. " +
+                                "A record that has no value for one of its coordinates is not looked up.")
+public class BatchLookupRecord extends AbstractProcessor {
+
+    static final String RECORDS_MATCHED_COUNTER = "Records Matched";
+    static final String RECORDS_UNMATCHED_COUNTER = "Records Unmatched";
+    static final String LOOKUP_BATCHES_COUNTER = "Lookup Batches";
+
+    static final PropertyDescriptor RECORD_READER =
+                    new PropertyDescriptor.Builder()
+                                    .name("record-reader")
+                                    .displayName("Record Reader")
+                                    .description("Specifies the Controller Service to use for reading incoming data")
+                                    .identifiesControllerService(RecordReaderFactory.class)
+                                    .required(true)
+                                    .build();
+
+    static final PropertyDescriptor RECORD_WRITER =
+                    new PropertyDescriptor.Builder()
+                                    .name("record-writer")
+                                    .displayName("Record Writer")
+                                    .description("Specifies the Controller Service to use for writing out the records")
+                                    .identifiesControllerService(RecordSetWriterFactory.class)
+                                    .required(true)
+                                    .build();
+
+    static final PropertyDescriptor LOOKUP_SERVICE =
+                    new PropertyDescriptor.Builder()
+                                    .name("lookup-service")
+                                    .displayName("Lookup Service")
+                                    .description("The batch lookup service used to resolve the lookup coordinates.")
+                                    .identifiesControllerService(BatchLookupService.class)
+                                    .required(true)
+                                    .build();
+
+    static final PropertyDescriptor RESULT_FIELD =
+                    new PropertyDescriptor.Builder()
+                                    .name("result-field")
+                                    .displayName("Result Field")
+                                    .description("The record field the lookup result is written to. The field is added to " +
+                                                    "the record schema when it is not already part of it.")
+                                    .required(true)
+                                    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor RECORD_BATCH_SIZE =
+                    new PropertyDescriptor.Builder()
+                                    .name("record-batch-size")
+                                    .displayName("Record Batch Size")
+                                    .description("Number of records collected before they are looked up together. The lookup " +
+                                                    "service may split a batch further according to its own Lookup Batch Size.")
+                                    .defaultValue("100")
+                                    .required(true)
+                                    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+                                    .build();
+
+    static final Relationship REL_SUCCESS = new Relationship.Builder()
+                    .name("success")
+                    .description("FlowFiles whose records were looked up are routed to this relationship")
+                    .build();
+
+    static final Relationship REL_FAILURE = new Relationship.Builder()
+                    .name("failure")
+                    .description("FlowFiles that could not be read, looked up or written are routed to this relationship")
+                    .build();
+
+    private final List<PropertyDescriptor> propertyDescriptors;
+    private final Set<Relationship> relationships;
+
+    public BatchLookupRecord() {
+        final List<PropertyDescriptor> pds = new ArrayList<>();
+        pds.add(RECORD_READER);
+        pds.add(RECORD_WRITER);
+        pds.add(LOOKUP_SERVICE);
+        pds.add(RESULT_FIELD);
+        pds.add(RECORD_BATCH_SIZE);
+        propertyDescriptors = Collections.unmodifiableList(pds);
+
+        final Set<Relationship> rels = new HashSet<>();
+        rels.add(REL_SUCCESS);
+        rels.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(rels);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return propertyDescriptors;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                        .name(propertyDescriptorName)
+                        .description("The record field holding the value of the '" + propertyDescriptorName + "' lookup coordinate")
+                        .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                        .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+                        .dynamic(true)
+                        .build();
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final boolean hasCoordinates = context.getProperties().keySet().stream().anyMatch(PropertyDescriptor::isDynamic);
+        if (hasCoordinates) {
+            return Collections.emptyList();
+        }
+
+        return Collections.singletonList(new ValidationResult.Builder()
+                        .subject("Lookup Coordinates")
+                        .valid(false)
+                        .explanation("at least one lookup coordinate must be added as a dynamic property")
+                        .build());
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+
+        final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+        final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        final BatchLookupService<?> lookupService = context.getProperty(LOOKUP_SERVICE).asControllerService(BatchLookupService.class);
+        final String resultField = context.getProperty(RESULT_FIELD).getValue();
+        final int batchSize = context.getProperty(RECORD_BATCH_SIZE).asInteger();
+
+        final Map<String, String> coordinateFields = new LinkedHashMap<>();
+        for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
+            if (descriptor.isDynamic()) {
+                coordinateFields.put(descriptor.getName(), context.getProperty(descriptor).getValue());
+            }
+        }
+
+        final Map<String, String> originalAttributes = flowFile.getAttributes();
+        final BatchWriter batchWriter = new BatchWriter(writerFactory, originalAttributes, resultField,
+                        lookupService.getValueType(), batchSize);
+
+        try {
+            flowFile = session.write(flowFile, (in, out) -> {
+                try (final RecordReader reader = readerFactory.createRecordReader(originalAttributes, in, -1L, getLogger())) {
+                    final List<Record> batch = new ArrayList<>(batchSize);
+
+                    Record record;
+                    while ((record = reader.nextRecord()) != null) {
+                        batch.add(record);
+                        if (batch.size() >= batchSize) {
+                            batchWriter.write(batch, lookup(lookupService, coordinateFields, batch), out);
+                            batch.clear();
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        batchWriter.write(batch, lookup(lookupService, coordinateFields, batch), out);
+                    }
+
+                    batchWriter.finish(reader.getSchema(), out);
+                } catch (final SchemaNotFoundException | MalformedRecordException | LookupFailureException e) {
+                    throw new ProcessException("Could not look up records for " + originalAttributes.get(CoreAttributes.UUID.key()), e);
+                } finally {
+                    batchWriter.close();
+                }
+            });
+        } catch (final Exception e) {
+            getLogger().error("Failed to look up records for {}; routing to failure", new Object[] { flowFile }, e);
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        final Map<String, String> attributes = new HashMap<>(batchWriter.writeResult.getAttributes());
+        attributes.put("record.count", String.valueOf(batchWriter.writeResult.getRecordCount()));
+        attributes.put(CoreAttributes.MIME_TYPE.key(), batchWriter.mimeType);
+        flowFile = session.putAllAttributes(flowFile, attributes);
+
+        session.adjustCounter(RECORDS_MATCHED_COUNTER, batchWriter.matched, false);
+        session.adjustCounter(RECORDS_UNMATCHED_COUNTER, batchWriter.unmatched, false);
+        session.adjustCounter(LOOKUP_BATCHES_COUNTER, batchWriter.batches, false);
+        session.getProvenanceReporter().modifyContent(flowFile);
+        session.transfer(flowFile, REL_SUCCESS);
+    }
+
+    /**
+     * Looks up a batch of records with one call to the lookup service. Records missing a coordinate value are
+     * left out of the call and get an empty result.
+     */
+    private List<Optional<?>> lookup(final BatchLookupService<?> lookupService, final Map<String, String> coordinateFields,
+                    final List<Record> batch) throws LookupFailureException {
+        final List<Map<String, Object>> coordinatesList = new ArrayList<>(batch.size());
+        final int[] positions = new int[batch.size()];
+
+        for (int i = 0; i < batch.size(); i++) {
+            final Map<String, Object> coordinates = coordinates(batch.get(i), coordinateFields);
+            if (coordinates == null) {
+                positions[i] = -1;
+            } else {
+                positions[i] = coordinatesList.size();
+                coordinatesList.add(coordinates);
+            }
+        }
+
+        final List<? extends Optional<?>> found = coordinatesList.isEmpty()
+                        ? Collections.emptyList()
+                        : lookupService.lookupAll(coordinatesList);
+
+        final List<Optional<?>> results = new ArrayList<>(batch.size());
+        for (final int position : positions) {
+            results.add(position < 0 ? Optional.empty() : found.get(position));
+        }
+        return results;
+    }
+
+    private static Map<String, Object> coordinates(final Record record, final Map<String, String> coordinateFields) {
+        final Map<String, Object> coordinates = new HashMap<>(coordinateFields.size() * 2);
+        for (final Map.Entry<String, String> entry : coordinateFields.entrySet()) {
+            final Object value = record.getValue(entry.getValue());
+            if (value == null) {
+                return null;
+            }
+            coordinates.put(entry.getKey(), value);
+        }
+        return coordinates;
+    }
+
+    /**
+     * Writes the looked up records. The type of the result field is taken from the first result of the FlowFile,
+     * so batches without any result are held back until one is found, but no more than one batch of records; past
+     * that, or when no record matches at all, the type falls back to the declared value type of the lookup service.
+     * The writer is created with the first record written.
+     */
+    private final class BatchWriter {
+
+        private final RecordSetWriterFactory writerFactory;
+        private final Map<String, String> attributes;
+        private final String resultField;
+        private final Class<?> valueType;
+        private final int maxPendingRecords;
+        private final List<List<Record>> pendingBatches = new ArrayList<>();
+        private final List<List<Optional<?>>> pendingResults = new ArrayList<>();
+
+        private RecordSetWriter writer;
+        private int pendingRecords;
+        private RecordField resultRecordField;
+        private WriteResult writeResult;
+        private String mimeType;
+        private long matched;
+        private long unmatched;
+        private long batches;
+
+        private BatchWriter(final RecordSetWriterFactory writerFactory, final Map<String, String> attributes,
+                        final String resultField, final Class<?> valueType, final int maxPendingRecords) {
+            this.writerFactory = writerFactory;
+            this.attributes = attributes;
+            this.resultField = resultField;
+            this.valueType = valueType;
+            this.maxPendingRecords = maxPendingRecords;
+        }
+
+        void write(final List<Record> batch, final List<Optional<?>> results, final OutputStream out)
+                        throws IOException, SchemaNotFoundException {
+            batches++;
+
+            if (resultRecordField == null) {
+                DataType resultType = resultType(batch.get(0), results);
+                if (resultType == null) {
+                    if (pendingRecords + batch.size() <= maxPendingRecords) {
+                        // copied, the caller reuses the batch
+                        pendingBatches.add(new ArrayList<>(batch));
+                        pendingResults.add(results);
+                        pendingRecords += batch.size();
+                        return;
+                    }
+                    // keeps the FlowFile streaming instead of holding every record until a match
+                    resultType = fallbackType();
+                }
+                resultRecordField = new RecordField(resultField, resultType, true);
+                writePending(out);
+            }
+
+            writeRecords(batch, results, out);
+        }
+
+        private void writePending(final OutputStream out) throws IOException, SchemaNotFoundException {
+            for (int i = 0; i < pendingBatches.size(); i++) {
+                writeRecords(pendingBatches.get(i), pendingResults.get(i), out);
+            }
+            pendingBatches.clear();
+            pendingResults.clear();
+            pendingRecords = 0;
+        }
+
+        private void writeRecords(final List<Record> batch, final List<Optional<?>> results, final OutputStream out)
+                        throws IOException, SchemaNotFoundException {
+            for (int i = 0; i < batch.size(); i++) {
+                final Record record = batch.get(i);
+                final Optional<?> result = results.get(i);
+                if (result.isPresent()) {
+                    matched++;
+                } else {
+                    unmatched++;
+                }
+
+                record.setValue(resultRecordField, result.orElse(null));
+                record.incorporateInactiveFields();
+
+                if (writer == null) {
+                    final RecordSchema writeSchema = writerFactory.getSchema(attributes, record.getSchema());
+                    writer = writerFactory.createWriter(getLogger(), writeSchema, out, attributes);
+                    writer.beginRecordSet();
+                }
+                writer.write(record);
+            }
+        }
+
+        void finish(final RecordSchema readSchema, final OutputStream out) throws IOException, SchemaNotFoundException {
+            if (!pendingBatches.isEmpty()) {
+                // nothing in the FlowFile matched, so there are no values the fallback type could lose
+                resultRecordField = new RecordField(resultField, fallbackType(), true);
+                writePending(out);
+            }
+
+            if (writer == null) {
+                final RecordSchema writeSchema = writerFactory.getSchema(attributes, readSchema);
+                writer = writerFactory.createWriter(getLogger(), writeSchema, out, attributes);
+                writer.beginRecordSet();
+            }
+
+            writeResult = writer.finishRecordSet();
+            mimeType = writer.getMimeType();
+        }
+
+        void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+
+        /**
+         * Returns the type of the result field from the record schema or the first result, null when the batch
+         * has neither.
+         */
+        private DataType resultType(final Record first, final List<Optional<?>> results) {
+            final Optional<RecordField> existing = first.getSchema().getField(resultField);
+            if (existing.isPresent()) {
+                return existing.get().getDataType();
+            }
+
+            for (final Optional<?> result : results) {
+                if (result.isPresent()) {
+                    final Object value = result.get();
+                    if (value instanceof Record) {
+                        return RecordFieldType.RECORD.getRecordDataType(((Record) value).getSchema());
+                    }
+                    return DataTypeUtils.inferDataType(value, RecordFieldType.STRING.getDataType());
+                }
+            }
+
+            return null;
+        }
+
+        private DataType fallbackType() {
+            return Record.class.isAssignableFrom(valueType)
+                            ? RecordFieldType.RECORD.getRecordDataType(new SimpleRecordSchema(Collections.emptyList()))
+                            : RecordFieldType.STRING.getDataType();
+        }
+    }
+}
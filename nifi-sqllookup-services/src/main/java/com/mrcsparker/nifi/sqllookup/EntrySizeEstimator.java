@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import org.apache.nifi.serialization.record.Record;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Rough heap size of lookup keys and values, used to bound in-memory lookup data before it exhausts the heap.
+ * The numbers assume a 64-bit JVM with compressed references and err on the high side.
+ */
+final class EntrySizeEstimator {
+
+    // header plus fields of a HashMap node holding the entry
+    static final long MAP_ENTRY_OVERHEAD = 48;
+
+    private EntrySizeEstimator() {
+    }
+
+    static long estimate(CacheKey key, Object value) {
+        return MAP_ENTRY_OVERHEAD + estimate(key) + estimate(value);
+    }
+
+    static long estimate(CacheKey key) {
+        // the query and names are shared by every key of a service
+        return 32 + estimate(key.getValues());
+    }
+
+    static long estimate(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof Record) {
+            final Record record = (Record) value;
+            // a MapRecord keeps its values in a LinkedHashMap keyed by the schema field names
+            long size = 64;
+            for (final Map.Entry<String, Object> entry : record.toMap().entrySet()) {
+                size += 56 + estimate(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        if (value instanceof Object[]) {
+            long size = 16;
+            for (final Object element : (Object[]) value) {
+                size += 8 + estimate(element);
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = 40;
+            for (final Object element : (Collection<?>) value) {
+                size += 24 + estimate(element);
+            }
+            return size;
+        }
+        if (value instanceof Map) {
+            long size = 48;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += MAP_ENTRY_OVERHEAD + estimate(entry.getKey()) + estimate(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof BigDecimal || value instanceof BigInteger) {
+            return 64;
+        }
+        // boxed primitives, dates and other small values
+        return 24;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mrcsparker.nifi.sqllookup;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts lookups and times database queries. Counters are {@link LongAdder}s, so threads counting hits do not
+ * contend. Query times go into a histogram of four buckets per power of two, which keeps percentiles within a
+ * quarter of the true value.
+ */
+final class LookupMetrics {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    // queries are slow next to the update, so the buckets are plain atomics
+    private final AtomicLongArray loadBuckets = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    void hit() {
+        hits.increment();
+    }
+
+    void negativeHit() {
+        negativeHits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void loaded(long nanos) {
+        loadNanos.add(nanos);
+        loadBuckets.incrementAndGet(bucket(Math.max(0, nanos)));
+    }
+
+    void loadFailed() {
+        loadFailures.increment();
+    }
+
+    LookupStats snapshot(long evictions, long cacheSize) {
+        final long[] buckets = new long[loadBuckets.length()];
+        long loads = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = loadBuckets.get(i);
+            loads += buckets[i];
+        }
+        return new LookupStats(hits.sum(), negativeHits.sum(), misses.sum(), loads, loadFailures.sum(), evictions, cacheSize,
+                        loadNanos.sum(), percentile(buckets, loads, 0.50), percentile(buckets, loads, 0.99));
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+        final int subBucket = (int) (nanos >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value that falls into the bucket.
+     */
+    static long bucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+        return lower + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static long percentile(long[] buckets, long count, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return bucketLimit(i);
+            }
+        }
+        return bucketLimit(buckets.length - 1);
+    }
+}
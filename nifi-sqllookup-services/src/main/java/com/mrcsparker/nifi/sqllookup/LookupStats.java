@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mrcsparker.nifi.sqllookup;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the lookup statistics of a service since it was enabled.
+ * <p>
+ * A hit is a lookup answered by the cache or the preloaded table, a negative hit one answered as missing by the
+ * negative cache or the preloaded table, and a miss one that had to query the database. Loads are the queries
+ * themselves: one for each missed lookup, one for each batch chunk and one for each background refresh.
+ */
+public final class LookupStats {
+
+    private final long hits;
+    private final long negativeHits;
+    private final long misses;
+    private final long loads;
+    private final long loadFailures;
+    private final long evictions;
+    private final long cacheSize;
+    private final long totalLoadNanos;
+    private final long loadNanosP50;
+    private final long loadNanosP99;
+
+    LookupStats(long hits, long negativeHits, long misses, long loads, long loadFailures, long evictions, long cacheSize,
+                    long totalLoadNanos, long loadNanosP50, long loadNanosP99) {
+        this.hits = hits;
+        this.negativeHits = negativeHits;
+        this.misses = misses;
+        this.loads = loads;
+        this.loadFailures = loadFailures;
+        this.evictions = evictions;
+        this.cacheSize = cacheSize;
+        this.totalLoadNanos = totalLoadNanos;
+        this.loadNanosP50 = loadNanosP50;
+        this.loadNanosP99 = loadNanosP99;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getNegativeHits() {
+        return negativeHits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getLoads() {
+        return loads;
+    }
+
+    public long getLoadFailures() {
+        return loadFailures;
+    }
+
+    /**
+     * Returns the number of entries the cache evicted to stay within its size or memory limit.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Returns the share of lookups answered without querying the database, negative hits included.
+     */
+    public double getHitRatio() {
+        final long lookups = hits + negativeHits + misses;
+        return lookups == 0 ? 0 : (double) (hits + negativeHits) / lookups;
+    }
+
+    public long getTotalLoadTime(TimeUnit unit) {
+        return unit.convert(totalLoadNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the median time of a database query, accurate to within a quarter.
+     */
+    public long getLoadTimeP50(TimeUnit unit) {
+        return unit.convert(loadNanosP50, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the 99th percentile time of a database query, accurate to within a quarter.
+     */
+    public long getLoadTimeP99(TimeUnit unit) {
+        return unit.convert(loadNanosP99, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the statistics by name, the form they are kept in the component state.
+     */
+    public Map<String, String> toMap() {
+        final Map<String, String> map = new LinkedHashMap<>();
+        map.put("hits", String.valueOf(hits));
+        map.put("negativeHits", String.valueOf(negativeHits));
+        map.put("misses", String.valueOf(misses));
+        map.put("hitRatio", String.format(Locale.ROOT, "%.4f", getHitRatio()));
+        map.put("loads", String.valueOf(loads));
+        map.put("loadFailures", String.valueOf(loadFailures));
+        map.put("evictions", String.valueOf(evictions));
+        map.put("cacheSize", String.valueOf(cacheSize));
+        map.put("loadMillisP50", String.valueOf(getLoadTimeP50(TimeUnit.MILLISECONDS)));
+        map.put("loadMillisP99", String.valueOf(getLoadTimeP99(TimeUnit.MILLISECONDS)));
+        map.put("loadMillisTotal", String.valueOf(getTotalLoadTime(TimeUnit.MILLISECONDS)));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "LookupStats" + toMap();
+    }
+}
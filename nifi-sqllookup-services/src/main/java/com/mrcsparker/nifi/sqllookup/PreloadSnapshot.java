@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in-memory copy of a lookup table, keyed by the normalized values of the lookup columns. Entries are held in a
+ * {@link ConcurrentMap}, so lookups read it without locking while a delta refresh changes it.
+ * <p>
+ * Key values are compared as strings, and numbers without their trailing zeros, so a coordinate of
+ * {@code "42"} finds a row whose key column holds the integer 42.
+ * <p>
+ * A snapshot is replaced as a whole by a full reload. Delta refreshes change single entries, the watermark and
+ * the size estimate in place, from one thread at a time. A lookup running meanwhile sees each entry either before
+ * or after its change, but not the refresh as a whole.
+ */
+final class PreloadSnapshot<T> {
+
+    private final String query;
+    private final String[] keyNames;
+    private final ConcurrentMap<CacheKey, T> values;
+    private volatile long estimatedBytes;
+    // the highest watermark seen, delta refreshes read the rows changed after it
+    private volatile Object watermark;
+
+    PreloadSnapshot(String query, String[] keyNames, ConcurrentMap<CacheKey, T> values, long estimatedBytes,
+                    Object watermark) {
+        this.query = query;
+        this.keyNames = keyNames;
+        this.values = values;
+        this.estimatedBytes = estimatedBytes;
+        this.watermark = watermark;
+    }
+
+    T get(Object[] keyValues) {
+        return values.get(key(query, keyNames, keyValues));
+    }
+
+    void put(Object[] keyValues, T value) {
+        final CacheKey key = key(query, keyNames, keyValues);
+        final T previous = values.put(key, value);
+        estimatedBytes += EntrySizeEstimator.estimate(key, value)
+                        - (previous == null ? 0 : EntrySizeEstimator.estimate(key, previous));
+    }
+
+    void remove(Object[] keyValues) {
+        final CacheKey key = key(query, keyNames, keyValues);
+        final T previous = values.remove(key);
+        if (previous != null) {
+            estimatedBytes -= EntrySizeEstimator.estimate(key, previous);
+        }
+    }
+
+    Object getWatermark() {
+        return watermark;
+    }
+
+    void setWatermark(Object watermark) {
+        this.watermark = watermark;
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    static CacheKey key(String query, String[] keyNames, Object[] keyValues) {
+        final Object[] normalized = new Object[keyValues.length];
+        for (int i = 0; i < keyValues.length; i++) {
+            normalized[i] = normalize(keyValues[i]);
+        }
+        return new CacheKey(query, keyNames, normalized);
+    }
+
+    /**
+     * Returns the higher of two watermarks. Numbers are compared by value whatever their type.
+     */
+    @SuppressWarnings("unchecked")
+    static Object maxWatermark(Object a, Object b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString())) >= 0 ? a : b;
+        }
+        return ((Comparable<Object>) a).compareTo(b) >= 0 ? a : b;
+    }
+
+    static Object normalize(Object value) {
+        if (value == null || value instanceof String) {
+            return value;
+        }
+        if (value instanceof Number) {
+            try {
+                final BigDecimal decimal = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+                return decimal.signum() == 0 ? "0" : decimal.stripTrailingZeros().toPlainString();
+            } catch (final NumberFormatException e) {
+                // NaN and infinities
+                return value.toString();
+            }
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.dbcp.DBCPService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connections leased from the DBCPService together with their prepared statements, keyed by the
+ * JDBC SQL of the compiled query shape.
+ * <p>
+ * DBCP closes every statement of a connection when the connection goes back to the pool, so statements
+ * can only be reused while the connection stays checked out. Leases are handed back to DBCP once they are
+ * idle for {@link #IDLE_TIMEOUT_MILLIS} or older than the configured maximum age, which lets the pool
+ * validate and evict them as usual. Expired leases are reaped whenever a lease is borrowed or released, and
+ * by {@link #reap()}, which the service runs on a schedule so that leases do not stay checked out while no
+ * lookups run. At most {@link #MAX_IDLE_LEASES} leases are kept idle, so a burst of concurrent lookups does not
+ * keep that many connections from other users of the pool; the leases released beyond that go back right away.
+ * A lease whose connection was closed underneath it, or broke while running
+ * a query, is discarded together with its statements; one whose query failed for other reasons, such as a
+ * syntax error or a row policy violation, is kept.
+ */
+class PreparedStatementPool {
+
+    static final Logger LOG = LoggerFactory.getLogger(PreparedStatementPool.class);
+
+    static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    static final int MAX_IDLE_LEASES = 8;
+
+    // the SQLState class of connection exceptions
+    private static final String CONNECTION_EXCEPTION = "08";
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+    private static final long MIN_REAP_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private final DBCPService dbcpService;
+    private final int maxStatements;
+    private final long maxAgeMillis;
+
+    // used as a stack so the most recently used lease is reused first and spare leases age out
+    private final Deque<Lease> idle = new ConcurrentLinkedDeque<>();
+
+    private volatile boolean closed;
+
+    PreparedStatementPool(DBCPService dbcpService, int maxStatements, long maxAgeMillis) {
+        this.dbcpService = dbcpService;
+        this.maxStatements = maxStatements;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    Lease borrow() throws SQLException {
+        final long now = System.currentTimeMillis();
+
+        Lease lease;
+        while ((lease = idle.pollFirst()) != null) {
+            if (lease.isExpired(now) || lease.isClosed()) {
+                lease.close();
+            } else {
+                reap(now);
+                return lease;
+            }
+        }
+
+        return new Lease(dbcpService.getConnection(), now);
+    }
+
+    void release(Lease lease, boolean discard) {
+        final long now = System.currentTimeMillis();
+
+        // the size is only read here, so concurrent releases may keep a lease or two more
+        if (discard || closed || lease.isExpired(now) || idle.size() >= MAX_IDLE_LEASES) {
+            lease.close();
+        } else {
+            lease.lastUsed = now;
+            idle.offerFirst(lease);
+        }
+
+        reap(now);
+    }
+
+    /**
+     * Hands the idle leases that expired back to the connection pool.
+     */
+    void reap() {
+        reap(System.currentTimeMillis());
+    }
+
+    private void reap(long now) {
+        // checks every idle lease, as leases expire by age as well as idle time; only the thread that removes a
+        // lease closes it, a lease borrowed meanwhile is no longer in the deque
+        for (final Lease lease : idle) {
+            if (lease.isExpired(now) && idle.remove(lease)) {
+                lease.close();
+            }
+        }
+    }
+
+    /**
+     * Returns how often to reap, often enough that no lease outlives its idle timeout or maximum age by much.
+     */
+    long reapIntervalMillis() {
+        return Math.min(IDLE_TIMEOUT_MILLIS, Math.max(MIN_REAP_INTERVAL_MILLIS, maxAgeMillis));
+    }
+
+    int idleCount() {
+        return idle.size();
+    }
+
+    void close() {
+        closed = true;
+
+        Lease lease;
+        while ((lease = idle.pollFirst()) != null) {
+            lease.close();
+        }
+    }
+
+    /**
+     * A connection checked out of the pool and its statements. Only used by one thread at a time.
+     */
+    final class Lease {
+
+        private final Connection connection;
+        private final long created;
+        private final Map<String, PreparedStatement> statements;
+        private long lastUsed;
+
+        private Lease(Connection connection, long created) {
+            this.connection = connection;
+            this.created = created;
+            this.lastUsed = created;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > maxStatements) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement preparedStatement = statements.get(sql);
+            if (preparedStatement == null || preparedStatement.isClosed()) {
+                preparedStatement = connection.prepareStatement(sql);
+                statements.put(sql, preparedStatement);
+            }
+            return preparedStatement;
+        }
+
+        /**
+         * Returns whether the failure left the connection unusable: the driver reported a connection exception,
+         * or the connection no longer validates.
+         */
+        boolean isBroken(SQLException failure) {
+            final String sqlState = failure.getSQLState();
+            if (sqlState != null && sqlState.startsWith(CONNECTION_EXCEPTION)) {
+                return true;
+            }
+
+            try {
+                return !connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (final SQLException e) {
+                return true;
+            }
+        }
+
+        int statementCount() {
+            return statements.size();
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Returns whether the connection was closed underneath the lease, or cannot tell.
+         */
+        private boolean isClosed() {
+            try {
+                return connection.isClosed();
+            } catch (final SQLException e) {
+                LOG.debug("Failed to check whether the connection is closed", e);
+                return true;
+            }
+        }
+
+        private boolean isExpired(long now) {
+            return now - lastUsed > IDLE_TIMEOUT_MILLIS || now - created > maxAgeMillis;
+        }
+
+        private void close() {
+            final Iterator<PreparedStatement> iterator = statements.values().iterator();
+            while (iterator.hasNext()) {
+                closeQuietly(iterator.next());
+                iterator.remove();
+            }
+
+            try {
+                connection.close();
+            } catch (final SQLException e) {
+                LOG.debug("Failed to return connection to the pool", e);
+            }
+        }
+
+        private void closeQuietly(PreparedStatement preparedStatement) {
+            try {
+                preparedStatement.close();
+            } catch (final SQLException e) {
+                LOG.debug("Failed to close prepared statement", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+
+import java.sql.Array;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps result rows to records of a fixed schema, without reading the result set metadata or building a schema for
+ * every row. The schema is either one {@code ResultSetRecordSet} inferred for an earlier result of the same query,
+ * see {@link #of}, or derived from the JDBC column types, see {@link #forJdbcTypes}.
+ */
+final class RecordMapper {
+
+    /**
+     * Reads the value of one column of the current row.
+     */
+    @FunctionalInterface
+    interface ColumnReader {
+        Object read(ResultSet resultSet, int column) throws SQLException;
+    }
+
+    // reads and normalizes values the way ResultSetRecordSet does
+    private static final ColumnReader OBJECT = (resultSet, column) -> normalize(resultSet.getObject(column));
+
+    private static final ColumnReader STRING = ResultSet::getString;
+    private static final ColumnReader DECIMAL = ResultSet::getBigDecimal;
+    private static final ColumnReader TIME = ResultSet::getTime;
+    private static final ColumnReader TIMESTAMP = ResultSet::getTimestamp;
+    private static final ColumnReader BYTES = ResultSet::getBytes;
+    private static final ColumnReader DATE = (resultSet, column) -> {
+        final Date value = resultSet.getDate(column);
+        return value == null ? null : DataTypeUtils.convertDateToUTC(value);
+    };
+    private static final ColumnReader ARRAY = (resultSet, column) -> {
+        final Array value = resultSet.getArray(column);
+        return value == null ? null : value.getArray();
+    };
+    // primitive getters return zero for SQL NULL, so they are followed by wasNull()
+    private static final ColumnReader LONG = (resultSet, column) -> {
+        final long value = resultSet.getLong(column);
+        return resultSet.wasNull() ? null : value;
+    };
+    private static final ColumnReader INT = (resultSet, column) -> {
+        final int value = resultSet.getInt(column);
+        return resultSet.wasNull() ? null : value;
+    };
+    private static final ColumnReader DOUBLE = (resultSet, column) -> {
+        final double value = resultSet.getDouble(column);
+        return resultSet.wasNull() ? null : value;
+    };
+    private static final ColumnReader FLOAT = (resultSet, column) -> {
+        final float value = resultSet.getFloat(column);
+        return resultSet.wasNull() ? null : value;
+    };
+    private static final ColumnReader BOOLEAN = (resultSet, column) -> {
+        final boolean value = resultSet.getBoolean(column);
+        return resultSet.wasNull() ? null : value;
+    };
+
+    private final RecordSchema schema;
+    private final String[] fieldNames;
+    // result set column of each field
+    private final int[] columns;
+    private final ColumnReader[] readers;
+
+    private RecordMapper(RecordSchema schema, String[] fieldNames, int[] columns, ColumnReader[] readers) {
+        this.schema = schema;
+        this.fieldNames = fieldNames;
+        this.columns = columns;
+        this.readers = readers;
+    }
+
+    /**
+     * Returns a mapper for the schema, finding its fields among the result columns after {@code skipColumns}.
+     * A field takes the first column with its label, compared without case, as {@link ResultSet#getObject(String)}
+     * does.
+     */
+    static RecordMapper of(RecordSchema schema, ResultSetMetaData metaData, int skipColumns) throws SQLException {
+        final List<RecordField> fields = schema.getFields();
+        final String[] fieldNames = new String[fields.size()];
+        final int[] columns = new int[fields.size()];
+        final ColumnReader[] readers = new ColumnReader[fields.size()];
+        for (int i = 0; i < fieldNames.length; i++) {
+            fieldNames[i] = fields.get(i).getFieldName();
+            for (int column = skipColumns + 1; column <= metaData.getColumnCount(); column++) {
+                if (fieldNames[i].equalsIgnoreCase(metaData.getColumnLabel(column))) {
+                    columns[i] = column;
+                    break;
+                }
+            }
+            if (columns[i] == 0) {
+                throw new SQLException("The result has no column " + fieldNames[i]);
+            }
+            readers[i] = OBJECT;
+        }
+        return new RecordMapper(schema, fieldNames, columns, readers);
+    }
+
+    /**
+     * Returns a mapper that reads every column after {@code skipColumns} with the typed getter of its JDBC type.
+     * The schema is derived from the metadata; only the element type of arrays, which the metadata does not report,
+     * is inferred from the current row.
+     */
+    static RecordMapper forJdbcTypes(ResultSetMetaData metaData, ResultSet firstRow, int skipColumns) throws SQLException {
+        final int count = metaData.getColumnCount() - skipColumns;
+        final List<RecordField> fields = new ArrayList<>(count);
+        final String[] fieldNames = new String[count];
+        final int[] columns = new int[count];
+        final ColumnReader[] readers = new ColumnReader[count];
+
+        for (int i = 0; i < count; i++) {
+            final int column = skipColumns + 1 + i;
+            final DataType dataType;
+            switch (metaData.getColumnType(column)) {
+                case Types.BIGINT:
+                    dataType = RecordFieldType.LONG.getDataType();
+                    readers[i] = LONG;
+                    break;
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                    dataType = RecordFieldType.INT.getDataType();
+                    readers[i] = INT;
+                    break;
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                    dataType = RecordFieldType.DOUBLE.getDataType();
+                    readers[i] = DOUBLE;
+                    break;
+                case Types.REAL:
+                    dataType = RecordFieldType.FLOAT.getDataType();
+                    readers[i] = FLOAT;
+                    break;
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    dataType = RecordFieldType.DECIMAL.getDecimalDataType(metaData.getPrecision(column),
+                                    metaData.getScale(column));
+                    readers[i] = DECIMAL;
+                    break;
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    dataType = RecordFieldType.BOOLEAN.getDataType();
+                    readers[i] = BOOLEAN;
+                    break;
+                case Types.CHAR:
+                case Types.VARCHAR:
+                case Types.LONGVARCHAR:
+                case Types.NCHAR:
+                case Types.NVARCHAR:
+                case Types.LONGNVARCHAR:
+                case Types.CLOB:
+                case Types.NCLOB:
+                    dataType = RecordFieldType.STRING.getDataType();
+                    readers[i] = STRING;
+                    break;
+                case Types.DATE:
+                    dataType = RecordFieldType.DATE.getDataType();
+                    readers[i] = DATE;
+                    break;
+                case Types.TIME:
+                    dataType = RecordFieldType.TIME.getDataType();
+                    readers[i] = TIME;
+                    break;
+                case Types.TIMESTAMP:
+                    dataType = RecordFieldType.TIMESTAMP.getDataType();
+                    readers[i] = TIMESTAMP;
+                    break;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                    dataType = RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.BYTE.getDataType());
+                    readers[i] = BYTES;
+                    break;
+                case Types.ARRAY:
+                    dataType = RecordFieldType.ARRAY.getArrayDataType(elementType(ARRAY.read(firstRow, column)));
+                    readers[i] = ARRAY;
+                    break;
+                default:
+                    dataType = DataTypeUtils.inferDataType(OBJECT.read(firstRow, column), RecordFieldType.STRING.getDataType());
+                    readers[i] = OBJECT;
+            }
+
+            fieldNames[i] = metaData.getColumnLabel(column);
+            columns[i] = column;
+            fields.add(new RecordField(fieldNames[i], dataType, metaData.isNullable(column) != ResultSetMetaData.columnNoNulls));
+        }
+        return new RecordMapper(new SimpleRecordSchema(fields), fieldNames, columns, readers);
+    }
+
+    private static DataType elementType(Object array) {
+        if (array instanceof Object[]) {
+            for (final Object element : (Object[]) array) {
+                if (element != null) {
+                    return DataTypeUtils.inferDataType(element, RecordFieldType.STRING.getDataType());
+                }
+            }
+        }
+        return RecordFieldType.STRING.getDataType();
+    }
+
+    RecordSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Maps the current row.
+     */
+    Record map(ResultSet resultSet) throws SQLException {
+        final Map<String, Object> values = new HashMap<>(fieldNames.length);
+        for (int i = 0; i < fieldNames.length; i++) {
+            values.put(fieldNames[i], readers[i].read(resultSet, columns[i]));
+        }
+        return new MapRecord(schema, values);
+    }
+
+    private static Object normalize(Object value) throws SQLException {
+        if (value instanceof Date) {
+            return DataTypeUtils.convertDateToUTC((Date) value);
+        }
+        if (value instanceof List) {
+            return ((List<?>) value).toArray();
+        }
+        if (value instanceof Array) {
+            return ((Array) value).getArray();
+        }
+        return value;
+    }
+}
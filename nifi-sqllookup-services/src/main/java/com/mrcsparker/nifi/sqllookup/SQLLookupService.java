@@ -17,27 +17,28 @@
 
 package com.mrcsparker.nifi.sqllookup;
 
-import com.mrcsparker.nifi.sqllookup.cache.Cache2kAdapter;
-import com.mrcsparker.nifi.sqllookup.cache.CaffeineAdapter;
-import com.mrcsparker.nifi.sqllookup.cache.GuavaAdapter;
-import org.apache.commons.dbcp2.BasicDataSource;
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.reporting.InitializationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
-import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
 
-import javax.sql.DataSource;
-import java.sql.Connection;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.*;
 
+@Stateful(scopes = Scope.LOCAL, description = "Holds the latest lookup statistics of the service.")
 public class SQLLookupService extends AbstractSQLLookupService<String> {
 
     public static final PropertyDescriptor LOOKUP_VALUE_COLUMN =
@@ -57,8 +58,31 @@ public class SQLLookupService extends AbstractSQLLookupService<String> {
         pds.add(CONNECTION_POOL);
         pds.add(SQL_QUERY);
         pds.add(QUERY_TIMEOUT);
+        pds.add(ROW_POLICY);
         pds.add(CACHING_LIBRARY);
         pds.add(CACHE_SIZE);
+        pds.add(CACHE_MAX_MEMORY);
+        pds.add(OFF_HEAP_MEMORY);
+        pds.add(OFF_HEAP_FRONT_CACHE_SIZE);
+        pds.add(PERSISTENT_CACHE_DIRECTORY);
+        pds.add(CACHE_EXPIRE_AFTER_WRITE);
+        pds.add(CACHE_EXPIRE_AFTER_ACCESS);
+        pds.add(CACHE_REFRESH_AFTER_WRITE);
+        pds.add(NEGATIVE_CACHE_SIZE);
+        pds.add(NEGATIVE_CACHE_EXPIRATION);
+        pds.add(SHARED_CACHE_REGION);
+        pds.add(STATEMENT_CACHE_SIZE);
+        pds.add(STATEMENT_CACHE_MAX_CONNECTION_AGE);
+        pds.add(BATCH_SIZE);
+        pds.add(PRELOAD_QUERY);
+        pds.add(PRELOAD_FETCH_SIZE);
+        pds.add(PRELOAD_MAX_MEMORY);
+        pds.add(PRELOAD_RELOAD_INTERVAL);
+        pds.add(WATERMARK_COLUMN);
+        pds.add(DELTA_QUERY);
+        pds.add(DELTA_DELETED_COLUMN);
+        pds.add(DELTA_REFRESH_INTERVAL);
+        pds.add(STATS_REPORTING_INTERVAL);
         pds.add(LOOKUP_VALUE_COLUMN);
         propertyDescriptors = Collections.unmodifiableList(pds);
     }
@@ -70,54 +94,92 @@ public class SQLLookupService extends AbstractSQLLookupService<String> {
 
     @Override
     Optional<String> databaseLookup(Map<String, Object> coordinates) throws LookupFailureException {
-        final DataSource dataSource = new BasicDataSource() {
-
-            @Override
-            public Connection getConnection() throws SQLException {
-                return dbcpService.getConnection();
-            }
-        };
-
-        NamedParameterJdbcTemplate jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
-        MapSqlParameterSource mapSqlParameterSource = new MapSqlParameterSource();
-
-        for (Map.Entry<String, Object> column : coordinates.entrySet()) {
-            mapSqlParameterSource.addValue(column.getKey(), coordinates.get(column.getKey()));
+        final SQLQueryPlan.BoundQuery boundQuery = queryPlan.bind(coordinates);
+
+        try {
+            return executeQuery(boundQuery, lookupRowLimit(), resultSet -> {
+                if (!resultSet.next()) {
+                    return Optional.empty();
+                }
+
+                final int column = findColumn(resultSet.getMetaData(), lookupValue);
+                final Object o = column < 1 ? null : JdbcUtils.getResultSetValue(resultSet, column);
+                checkRowCount(resultSet.next());
+                if (o == null) {
+                    return Optional.empty();
+                } else {
+                    return Optional.of(o.toString());
+                }
+            });
+        } catch (final ProcessException | SQLException | IOException e) {
+            getLogger().error("Error during lookup: {}", new Object[] { coordinates.toString() }, e);
+            throw new LookupFailureException(e);
         }
+    }
 
-        List<Map<String, Object>> mapList = jdbcTemplate.queryForList(sqlQuery, mapSqlParameterSource);
+    @Override
+    void readBatch(ResultSet resultSet, List<CacheKey> keys, Map<CacheKey, String> results, Set<CacheKey> violations)
+                    throws SQLException {
+        final int column = findColumn(resultSet.getMetaData(), lookupValue);
+        final boolean[] seen = new boolean[keys.size()];
+
+        while (resultSet.next()) {
+            final int index = resultSet.getInt(1);
+            if (seen[index]) {
+                if (failsOnMultipleRows()) {
+                    results.remove(keys.get(index));
+                    violations.add(keys.get(index));
+                }
+                continue;
+            }
+            seen[index] = true;
 
-        if (!mapList.isEmpty()) {
-            Object o = mapList.get(0).get(lookupValue);
-            if (o == null) {
-                return Optional.empty();
-            } else {
-                return Optional.of(o.toString());
+            final Object o = column < 1 ? null : JdbcUtils.getResultSetValue(resultSet, column);
+            if (o != null) {
+                results.put(keys.get(index), o.toString());
             }
         }
-
-        return Optional.empty();
     }
 
     @Override
-    protected Optional<String> cacheLookup(Map<String, Object> coordinates) throws LookupFailureException {
-        String cacheKey = sqlQuery + ":" + coordinates.hashCode();
-
-        String result = cache.get(cacheKey);
-        if (result != null) {
-            return Optional.of(result);
+    RowReader<String> rowReader(ResultSet resultSet, String[] columnNames) throws SQLException {
+        final int[] columns = findColumns(resultSet.getMetaData(), columnNames);
+        final int column = findColumn(resultSet.getMetaData(), lookupValue);
+        if (column < 1) {
+            throw missingColumn(lookupValue);
         }
 
-        Optional<String> lookupRecord = databaseLookup(coordinates);
-        if (lookupRecord.isPresent()) {
-            result = lookupRecord.get();
+        return new RowReader<String>() {
+            @Override
+            public boolean next() throws SQLException {
+                return resultSet.next();
+            }
+
+            @Override
+            public Object[] columnValues() throws SQLException {
+                final Object[] values = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = resultSet.getObject(columns[i]);
+                }
+                return values;
+            }
 
-            cache.set(cacheKey, result);
+            @Override
+            public String value() throws SQLException {
+                final Object o = JdbcUtils.getResultSetValue(resultSet, column);
+                return o == null ? null : o.toString();
+            }
+        };
+    }
 
-            return lookupRecord;
+    private static int findColumn(ResultSetMetaData metaData, String columnName) throws SQLException {
+        final int columnCount = metaData.getColumnCount();
+        for (int i = 1; i <= columnCount; i++) {
+            if (columnName.equalsIgnoreCase(JdbcUtils.lookupColumnName(metaData, i))) {
+                return i;
+            }
         }
-
-        return Optional.empty();
+        return -1;
     }
 
     @Override
@@ -125,21 +187,24 @@ public class SQLLookupService extends AbstractSQLLookupService<String> {
         return String.class;
     }
 
+    @Override
+    String cacheValueSettings() {
+        return lookupValue;
+    }
+
     @OnEnabled
     public void onEnabled(final ConfigurationContext context) throws InitializationException {
-        setDefaultValues(context);
         lookupValue = context.getProperty(LOOKUP_VALUE_COLUMN).getValue();
+        try {
+            setDefaultValues(context);
+
+            cache = regionCache("values", cacheSettings, () -> createCache(cacheSettings, String.class, refreshLoader()));
 
-        switch (cachingLibrary) {
-            case "Caffeine":
-                cache = new CaffeineAdapter<>(cacheSize);
-                break;
-            case "Cache2k":
-                cache = new Cache2kAdapter<>(cacheSize, String.class);
-                break;
-            default:
-                cache = new GuavaAdapter<>(cacheSize);
-                break;
+            preload();
+            scheduleStatsReporting();
+        } catch (final InitializationException | RuntimeException e) {
+            onDisabled();
+            throw e;
         }
     }
 
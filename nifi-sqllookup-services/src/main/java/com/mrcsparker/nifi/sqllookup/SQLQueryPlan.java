@@ -0,0 +1,436 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.jdbc.core.SqlParameter;
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A named-parameter query compiled once when the service is enabled.
+ * <p>
+ * The plan knows the placeholder names and their positions, and keeps the JDBC SQL for every
+ * expansion shape seen so far (the sizes of the collection-valued parameters used by IN queries),
+ * so a lookup only has to bind values.
+ */
+final class SQLQueryPlan {
+
+    private static final int MAX_SHAPES = 256;
+
+    static final String BATCH_INDEX_COLUMN = "LOOKUP_BATCH_INDEX";
+
+    // keywords that limit the rows of a query, ORDER is only one together with BY
+    private static final Set<String> ROW_CLAUSES = new HashSet<>(Arrays.asList("TOP", "FETCH", "OFFSET", "LIMIT"));
+
+    private final String sql;
+    // the query the cache keys are built with
+    private final String keyQuery;
+    private final ParsedSql parsedSql;
+    private final String[] keyNames;
+    private final int[] occurrences;
+    private final Set<String> requiredKeys;
+    private final boolean batchable;
+    private final ConcurrentMap<Shape, String> expandedSql = new ConcurrentHashMap<>();
+    private final ConcurrentMap<BatchShape, String> batchSql = new ConcurrentHashMap<>();
+
+    private SQLQueryPlan(String sql, ParsedSql parsedSql, String[] keyNames, int[] occurrences) {
+        this.sql = sql;
+        this.keyQuery = normalize(sql).intern();
+        this.parsedSql = parsedSql;
+        this.keyNames = keyNames;
+        this.occurrences = occurrences;
+        this.requiredKeys = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(keyNames)));
+        this.batchable = !ordersOrLimitsRows(sql);
+    }
+
+    static SQLQueryPlan compile(String sql) {
+        final ParsedSql parsedSql;
+        final List<SqlParameter> parameters;
+        try {
+            parsedSql = NamedParameterUtils.parseSqlStatement(sql);
+            parameters = NamedParameterUtils.buildSqlParameterList(parsedSql, new MapSqlParameterSource());
+        } catch (final InvalidDataAccessApiUsageException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+
+        final List<String> names = new ArrayList<>();
+        final int[] occurrences = new int[parameters.size()];
+        for (int i = 0; i < occurrences.length; i++) {
+            final String name = parameters.get(i).getName();
+            int index = names.indexOf(name);
+            if (index < 0) {
+                index = names.size();
+                names.add(name);
+            }
+            occurrences[i] = index;
+        }
+
+        return new SQLQueryPlan(sql, parsedSql, names.toArray(new String[0]), occurrences);
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    String getKeyQuery() {
+        return keyQuery;
+    }
+
+    /**
+     * Collapses whitespace outside of quotes and removes a trailing terminator, so that queries that only differ in
+     * layout build the same cache keys.
+     */
+    static String normalize(String sql) {
+        final StringBuilder normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            final char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && normalized.length() > 0) {
+                normalized.append(' ');
+            }
+            space = false;
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            normalized.append(c);
+        }
+        return stripTerminator(normalized.toString());
+    }
+
+    /**
+     * Returns whether lookups can be combined with {@link #bindAll(List)}. A query that orders or limits its rows
+     * with ORDER BY, TOP, FETCH, OFFSET or LIMIT cannot: SQL Server rejects ORDER BY in a derived table, and no
+     * database keeps the order of a derived table in the union, which would change the row the first-row policy
+     * takes. Such queries are looked up one set of coordinates at a time.
+     */
+    boolean isBatchable() {
+        return batchable;
+    }
+
+    /**
+     * Looks for the clauses that order or limit rows outside of parentheses and quotes, so that an ORDER BY in a
+     * subquery or an aggregate does not count. Named parameters are skipped.
+     */
+    static boolean ordersOrLimitsRows(String sql) {
+        int depth = 0;
+        char quote = 0;
+        String previous = null;
+        for (int i = 0; i < sql.length(); i++) {
+            final char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                final int start = i;
+                while (i + 1 < sql.length() && Character.isJavaIdentifierPart(sql.charAt(i + 1))) {
+                    i++;
+                }
+                if (depth > 0 || (start > 0 && sql.charAt(start - 1) == ':')) {
+                    continue;
+                }
+
+                final String word = sql.substring(start, i + 1).toUpperCase(Locale.ROOT);
+                if (ROW_CLAUSES.contains(word) || ("BY".equals(word) && "ORDER".equals(previous))) {
+                    return true;
+                }
+                previous = word;
+            }
+        }
+        return false;
+    }
+
+    Set<String> getRequiredKeys() {
+        return requiredKeys;
+    }
+
+    String[] getKeyNames() {
+        return keyNames;
+    }
+
+    /**
+     * Returns the coordinate values in placeholder order, failing when a placeholder has no coordinate.
+     */
+    Object[] values(Map<String, Object> coordinates) throws LookupFailureException {
+        final Object[] values = new Object[keyNames.length];
+        for (int i = 0; i < keyNames.length; i++) {
+            final Object value = coordinates.get(keyNames[i]);
+            if (value == null && !coordinates.containsKey(keyNames[i])) {
+                throw new LookupFailureException("Missing lookup coordinate(s) for placeholder(s) " + missingKeys(coordinates)
+                                + " in query");
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+    CacheKey cacheKey(Map<String, Object> coordinates) throws LookupFailureException {
+        return new CacheKey(keyQuery, keyNames, values(coordinates));
+    }
+
+    BoundQuery bind(Map<String, Object> coordinates) throws LookupFailureException {
+        return bind(values(coordinates));
+    }
+
+    BoundQuery bind(Object[] values) {
+        final Shape shape = Shape.of(values);
+
+        String jdbcSql = expandedSql.get(shape);
+        if (jdbcSql == null) {
+            final MapSqlParameterSource parameterSource = new MapSqlParameterSource();
+            for (int i = 0; i < keyNames.length; i++) {
+                parameterSource.addValue(keyNames[i], values[i]);
+            }
+            jdbcSql = NamedParameterUtils.substituteNamedParameters(parsedSql, parameterSource);
+            if (shape.isUniform() && expandedSql.size() < MAX_SHAPES) {
+                expandedSql.putIfAbsent(shape, jdbcSql);
+            }
+        }
+
+        final List<Object> args = new ArrayList<>(occurrences.length);
+        for (final int occurrence : occurrences) {
+            final Object value = values[occurrence];
+            if (value instanceof Iterable) {
+                for (final Object element : (Iterable<?>) value) {
+                    if (element instanceof Object[]) {
+                        Collections.addAll(args, (Object[]) element);
+                    } else {
+                        args.add(element);
+                    }
+                }
+            } else {
+                args.add(value);
+            }
+        }
+
+        return new BoundQuery(jdbcSql, args.toArray());
+    }
+
+    /**
+     * Binds several sets of values into one query. Every set is run as its own derived table,
+     * tagged with its position in {@link #BATCH_INDEX_COLUMN}, and the tables are combined with UNION ALL.
+     */
+    BoundQuery bindAll(List<Object[]> valuesList) {
+        final BoundQuery[] parts = new BoundQuery[valuesList.size()];
+        int argCount = 0;
+        boolean sameSql = true;
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = bind(valuesList.get(i));
+            argCount += parts[i].args.length;
+            sameSql &= parts[i].sql.equals(parts[0].sql);
+        }
+
+        final String jdbcSql;
+        if (sameSql) {
+            final BatchShape shape = new BatchShape(parts[0].sql, parts.length);
+            final String cached = batchSql.get(shape);
+            if (cached != null) {
+                jdbcSql = cached;
+            } else {
+                jdbcSql = unionAll(parts);
+                if (batchSql.size() < MAX_SHAPES) {
+                    batchSql.putIfAbsent(shape, jdbcSql);
+                }
+            }
+        } else {
+            jdbcSql = unionAll(parts);
+        }
+
+        final Object[] args = new Object[argCount];
+        int offset = 0;
+        for (final BoundQuery part : parts) {
+            System.arraycopy(part.args, 0, args, offset, part.args.length);
+            offset += part.args.length;
+        }
+
+        return new BoundQuery(jdbcSql, args);
+    }
+
+    private static String unionAll(BoundQuery[] parts) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                sb.append(" UNION ALL ");
+            }
+            sb.append("SELECT ").append(i).append(" AS ").append(BATCH_INDEX_COLUMN)
+                            .append(", q.* FROM (").append(stripTerminator(parts[i].sql)).append(") q");
+        }
+        return sb.toString();
+    }
+
+    private static String stripTerminator(String sql) {
+        int end = sql.length();
+        while (end > 0 && (sql.charAt(end - 1) == ';' || Character.isWhitespace(sql.charAt(end - 1)))) {
+            end--;
+        }
+        return sql.substring(0, end);
+    }
+
+    private Set<String> missingKeys(Map<String, Object> coordinates) {
+        final Set<String> missing = new LinkedHashSet<>(requiredKeys);
+        missing.removeAll(coordinates.keySet());
+        return missing;
+    }
+
+    /**
+     * JDBC SQL with positional placeholders and the flattened values to bind to them.
+     */
+    static final class BoundQuery {
+
+        private final String sql;
+        private final Object[] args;
+
+        BoundQuery(String sql, Object[] args) {
+            this.sql = sql;
+            this.args = args;
+        }
+
+        String getSql() {
+            return sql;
+        }
+
+        Object[] getArgs() {
+            return args;
+        }
+
+        void setValues(PreparedStatement preparedStatement) throws SQLException {
+            for (int i = 0; i < args.length; i++) {
+                StatementCreatorUtils.setParameterValue(preparedStatement, i + 1, SqlTypeValue.TYPE_UNKNOWN, args[i]);
+            }
+        }
+    }
+
+    private static final class BatchShape {
+
+        private final String sql;
+        private final int count;
+
+        private BatchShape(String sql, int count) {
+            this.sql = sql;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BatchShape)) {
+                return false;
+            }
+            final BatchShape other = (BatchShape) o;
+            return count == other.count && sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sql.hashCode() + count;
+        }
+    }
+
+    /**
+     * Expansion shape of a set of values: -1 for a scalar, otherwise the collection size and tuple width.
+     */
+    private static final class Shape {
+
+        private final int[] dimensions;
+        private final boolean uniform;
+        private final int hash;
+
+        private Shape(int[] dimensions, boolean uniform) {
+            this.dimensions = dimensions;
+            this.uniform = uniform;
+            this.hash = Arrays.hashCode(dimensions);
+        }
+
+        static Shape of(Object[] values) {
+            final int[] dimensions = new int[values.length * 2];
+            boolean uniform = true;
+            for (int i = 0; i < values.length; i++) {
+                final Object value = values[i];
+                if (value instanceof Collection) {
+                    final Collection<?> collection = (Collection<?>) value;
+                    int width = 0;
+                    boolean first = true;
+                    for (final Object element : collection) {
+                        final int elementWidth = element instanceof Object[] ? ((Object[]) element).length : 0;
+                        if (first) {
+                            width = elementWidth;
+                            first = false;
+                        } else if (elementWidth != width) {
+                            uniform = false;
+                        }
+                    }
+                    dimensions[i * 2] = collection.size();
+                    dimensions[i * 2 + 1] = width;
+                } else if (value instanceof Iterable) {
+                    // no cheap size for a plain Iterable, expand it every time
+                    uniform = false;
+                } else {
+                    dimensions[i * 2] = -1;
+                }
+            }
+            return new Shape(dimensions, uniform);
+        }
+
+        boolean isUniform() {
+            return uniform;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape && Arrays.equals(dimensions, ((Shape) o).dimensions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -17,34 +17,39 @@
 
 package com.mrcsparker.nifi.sqllookup;
 
-import com.mrcsparker.nifi.sqllookup.cache.CaffeineAdapter;
-import com.mrcsparker.nifi.sqllookup.cache.GuavaAdapter;
-import org.apache.commons.dbcp2.BasicDataSource;
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import com.mrcsparker.nifi.sqllookup.cache.CacheLoader;
+import com.mrcsparker.nifi.sqllookup.cache.EncodedValueAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.ValueCodec;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.lookup.LookupFailureException;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
 import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
 import org.apache.nifi.serialization.record.RecordSchema;
 import org.apache.nifi.serialization.record.ResultSetRecordSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.jdbc.core.PreparedStatementCreator;
-import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 
-import javax.sql.DataSource;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.*;
 
+@Stateful(scopes = Scope.LOCAL, description = "Holds the latest lookup statistics of the service.")
 @Tags({ "dbcp", "database", "lookup", "record", "sql", "cache" })
 @CapabilityDescription("Provides a lookup service based around DBCP.")
 public class SQLRecordLookupService extends AbstractSQLLookupService<Record> {
@@ -55,6 +60,8 @@ public class SQLRecordLookupService extends AbstractSQLLookupService<Record> {
                                     .name("use-jdbc-types")
                                     .displayName("Use JDBC types")
                                     .description("Use Built-in JDBC to Record type conversion.\n" +
+                                                    "Record fields are typed from the JDBC column types and read with the matching typed getters, " +
+                                                    "which is cheaper per lookup than the NIFI ResultRecordSet.\n" +
                                                     "If this is not selected it will use the NIFI ResultRecordSet to convert into a Record.\n" +
                                                     "Use this if you are returning array types from a SQL query.")
                                     .defaultValue("false")
@@ -63,15 +70,94 @@ public class SQLRecordLookupService extends AbstractSQLLookupService<Record> {
                                     .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
                                     .build();
 
+    static final PropertyDescriptor COMPACT_CACHE_VALUES =
+                    new PropertyDescriptor.Builder()
+                                    .name("compact-cache-values")
+                                    .displayName("Compact Cache Values")
+                                    .description("Keep cached records as compact byte arrays that share one schema, instead of " +
+                                                    "maps of boxed values. This takes several times less heap per record, at the " +
+                                                    "cost of decoding the record on every cache hit. The Off-heap and Persistent " +
+                                                    "caches always store records this way.")
+                                    .defaultValue("false")
+                                    .allowableValues("true", "false")
+                                    .required(true)
+                                    .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+                                    .build();
+
+    static final AllowableValue ROW_POLICY_ALL =
+                    new AllowableValue("all", "All Rows", "Return the rows as an array of records in the Rows Field of the result");
+
+    static final PropertyDescriptor RECORD_ROW_POLICY =
+                    new PropertyDescriptor.Builder()
+                                    .fromPropertyDescriptor(ROW_POLICY)
+                                    .allowableValues(ROW_POLICY_FIRST, ROW_POLICY_FAIL, ROW_POLICY_ALL)
+                                    .build();
+
+    static final PropertyDescriptor ROWS_FIELD =
+                    new PropertyDescriptor.Builder()
+                                    .name("rows-field")
+                                    .displayName("Rows Field")
+                                    .description("Name of the array field that holds the rows when Row Policy is All Rows.")
+                                    .defaultValue("rows")
+                                    .required(true)
+                                    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                                    .build();
+
+    static final PropertyDescriptor MAX_ROWS =
+                    new PropertyDescriptor.Builder()
+                                    .name("max-rows")
+                                    .displayName("Max Rows")
+                                    .description("Most rows returned by one lookup when Row Policy is All Rows, zero for no limit. " +
+                                                    "Further rows are not fetched from the database.")
+                                    .defaultValue("1000")
+                                    .required(true)
+                                    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+                                    .build();
+
+    private static final RecordSchema EMPTY_SCHEMA = new SimpleRecordSchema(Collections.emptyList());
+
     private final List<PropertyDescriptor> propertyDescriptors;
 
+    // inferred from the first result with a row and reused until the service is enabled again
+    private volatile RecordMapper lookupMapper;
+    private volatile RecordMapper batchMapper;
+    private volatile RowsSchema rowsSchema;
+    private String rowsField;
+    private int maxRows;
+
     public SQLRecordLookupService() {
         final List<PropertyDescriptor> pds = new ArrayList<>();
         pds.add(CONNECTION_POOL);
         pds.add(SQL_QUERY);
         pds.add(QUERY_TIMEOUT);
+        pds.add(RECORD_ROW_POLICY);
+        pds.add(ROWS_FIELD);
+        pds.add(MAX_ROWS);
         pds.add(CACHING_LIBRARY);
         pds.add(CACHE_SIZE);
+        pds.add(CACHE_MAX_MEMORY);
+        pds.add(COMPACT_CACHE_VALUES);
+        pds.add(OFF_HEAP_MEMORY);
+        pds.add(OFF_HEAP_FRONT_CACHE_SIZE);
+        pds.add(PERSISTENT_CACHE_DIRECTORY);
+        pds.add(CACHE_EXPIRE_AFTER_WRITE);
+        pds.add(CACHE_EXPIRE_AFTER_ACCESS);
+        pds.add(CACHE_REFRESH_AFTER_WRITE);
+        pds.add(NEGATIVE_CACHE_SIZE);
+        pds.add(NEGATIVE_CACHE_EXPIRATION);
+        pds.add(SHARED_CACHE_REGION);
+        pds.add(STATEMENT_CACHE_SIZE);
+        pds.add(STATEMENT_CACHE_MAX_CONNECTION_AGE);
+        pds.add(BATCH_SIZE);
+        pds.add(PRELOAD_QUERY);
+        pds.add(PRELOAD_FETCH_SIZE);
+        pds.add(PRELOAD_MAX_MEMORY);
+        pds.add(PRELOAD_RELOAD_INTERVAL);
+        pds.add(WATERMARK_COLUMN);
+        pds.add(DELTA_QUERY);
+        pds.add(DELTA_DELETED_COLUMN);
+        pds.add(DELTA_REFRESH_INTERVAL);
+        pds.add(STATS_REPORTING_INTERVAL);
         pds.add(USE_JDBC_TYPES);
         propertyDescriptors = Collections.unmodifiableList(pds);
     }
@@ -82,121 +168,293 @@ public class SQLRecordLookupService extends AbstractSQLLookupService<Record> {
     }
 
     @Override
-    public Set<String> getRequiredKeys() {
-        return Collections.emptySet();
+    public Class<?> getValueType() {
+        return Record.class;
     }
 
     @Override
-    public Class<?> getValueType() {
-        return Record.class;
+    Optional<Record> databaseLookup(Map<String, Object> coordinates) throws LookupFailureException {
+        final SQLQueryPlan.BoundQuery boundQuery = queryPlan.bind(coordinates);
+        final int rowLimit = lookupRowLimit();
+
+        try {
+            return executeQuery(boundQuery, rowLimit, resultSet -> toResult(readRows(resultSet, rowLimit)));
+        } catch (final ProcessException | SQLException | IOException e) {
+            getLogger().error("Error during lookup: {}", new Object[] { coordinates.toString() }, e);
+            throw new LookupFailureException(e);
+        }
     }
 
-    private PreparedStatementCreator setupPreparedStatementCreator(Map<String, Object> coordinates) {
-        final DataSource dataSource = new BasicDataSource() {
+    /**
+     * Reads up to {@code limit} rows, zero for all of them. With JDBC types the mapper is derived from the first
+     * result's column types. Otherwise only the first result is read through {@code ResultSetRecordSet} and later
+     * ones are mapped with the schema it inferred.
+     */
+    private List<Record> readRows(final ResultSet resultSet, final int limit) throws SQLException, IOException {
+        final List<Record> rows = new ArrayList<>(limit == 0 ? 10 : limit);
+
+        final RecordMapper mapper = lookupMapper;
+        if (mapper != null) {
+            try {
+                while ((limit == 0 || rows.size() < limit) && resultSet.next()) {
+                    rows.add(mapper.map(resultSet));
+                }
+                return rows;
+            } catch (final SQLException e) {
+                // the result may have changed underneath, infer the schema again
+                lookupMapper = null;
+                throw e;
+            }
+        }
 
-            @Override
-            public Connection getConnection() throws SQLException {
-                return dbcpService.getConnection();
+        final ResultSetMetaData metaData = resultSet.getMetaData();
+        if (Boolean.TRUE.equals(useJDBCTypes)) {
+            if (!resultSet.next()) {
+                return rows;
             }
-        };
+            final RecordMapper jdbcMapper = RecordMapper.forJdbcTypes(metaData, resultSet, 0);
+            lookupMapper = jdbcMapper;
+            do {
+                rows.add(jdbcMapper.map(resultSet));
+            } while ((limit == 0 || rows.size() < limit) && resultSet.next());
+            return rows;
+        }
 
-        SQLNamedParameterJdbcTemplate jdbcTemplate = new SQLNamedParameterJdbcTemplate(dataSource);
-        MapSqlParameterSource mapSqlParameterSource = new MapSqlParameterSource();
+        try (ResultSetRecordSet resultSetRecordSet = new ResultSetRecordSet(resultSet, EMPTY_SCHEMA)) {
+            Record record;
+            while ((limit == 0 || rows.size() < limit) && (record = resultSetRecordSet.next()) != null) {
+                // array element types are inferred from the row, so an empty result does not fix the schema
+                if (rows.isEmpty()) {
+                    lookupMapper = RecordMapper.of(record.getSchema(), metaData, 0);
+                }
+                rows.add(record);
+            }
+            return rows;
+        }
+    }
 
-        for (Map.Entry<String, Object> column : coordinates.entrySet()) {
-            mapSqlParameterSource.addValue(column.getKey(), coordinates.get(column.getKey()));
+    /**
+     * Turns the rows read for one lookup into its result, following the row policy.
+     */
+    private Optional<Record> toResult(final List<Record> rows) throws SQLException {
+        if (rows == null || rows.isEmpty()) {
+            return Optional.empty();
         }
+        if (ROW_POLICY_ALL.getValue().equals(rowPolicy)) {
+            return Optional.of(rowsRecord(rows));
+        }
+        checkRowCount(rows.size() > 1);
+        return Optional.of(rows.get(0));
+    }
 
-        return jdbcTemplate.getPreparedStatement(sqlQuery, mapSqlParameterSource);
+    private Record rowsRecord(final List<Record> rows) {
+        final RecordSchema rowSchema = rows.get(0).getSchema();
+        RowsSchema schema = rowsSchema;
+        if (schema == null || (schema.rowSchema != rowSchema && !schema.rowSchema.equals(rowSchema))) {
+            schema = new RowsSchema(rowsField, rowSchema);
+            rowsSchema = schema;
+        }
+        return new MapRecord(schema.schema, Collections.singletonMap(rowsField, rows.toArray()));
     }
 
     @Override
-    Optional<Record> databaseLookup(Map<String, Object> coordinates) throws LookupFailureException {
-        if (Boolean.TRUE.equals(useJDBCTypes)) {
-            return jdbcDatabaseLookup(coordinates);
+    void readBatch(ResultSet resultSet, List<CacheKey> keys, Map<CacheKey, Record> results, Set<CacheKey> violations)
+                    throws SQLException, IOException {
+        final BatchRows rows = new BatchRows(keys.size(), lookupRowLimit());
+        readBatchRows(resultSet, rows);
+
+        for (int i = 0; i < keys.size(); i++) {
+            final List<Record> positionRows = rows.get(i);
+            if (positionRows != null && positionRows.size() > 1 && failsOnMultipleRows()) {
+                violations.add(keys.get(i));
+                continue;
+            }
+            final Optional<Record> result = toResult(positionRows);
+            if (result.isPresent()) {
+                results.put(keys.get(i), result.get());
+            }
         }
-        return resultRecordSetDatabaseLookup(coordinates);
     }
 
-    private Optional<Record> resultRecordSetDatabaseLookup(Map<String, Object> coordinates)
-                    throws LookupFailureException {
-        PreparedStatementCreator preparedStatementCreator = setupPreparedStatementCreator(coordinates);
+    private void readBatchRows(final ResultSet resultSet, final BatchRows rows) throws SQLException, IOException {
+        RecordMapper mapper = batchMapper;
+        boolean onRow = false;
+        if (mapper == null && Boolean.TRUE.equals(useJDBCTypes)) {
+            if (!resultSet.next()) {
+                return;
+            }
+            mapper = RecordMapper.forJdbcTypes(resultSet.getMetaData(), resultSet, 1);
+            batchMapper = mapper;
+            onRow = true;
+        }
 
-        try (final Connection connection = dbcpService
-                        .getConnection(); final PreparedStatement preparedStatement = preparedStatementCreator
-                        .createPreparedStatement(connection)) {
+        if (mapper != null) {
+            try {
+                while (onRow || resultSet.next()) {
+                    onRow = false;
+                    final int index = resultSet.getInt(1);
+                    if (rows.wants(index)) {
+                        rows.add(index, mapper.map(resultSet));
+                    }
+                }
+                return;
+            } catch (final SQLException e) {
+                batchMapper = null;
+                throw e;
+            }
+        }
 
-            preparedStatement.setQueryTimeout(queryTimeout);
-            preparedStatement.execute();
+        final ResultSetMetaData metaData = resultSet.getMetaData();
+        try (ResultSetRecordSet resultSetRecordSet = new ResultSetRecordSet(resultSet, EMPTY_SCHEMA)) {
+            final List<RecordField> fields = resultSetRecordSet.getSchema().getFields();
+            final RecordField indexField = fields.get(0);
+            final RecordSchema schema = new SimpleRecordSchema(new ArrayList<>(fields.subList(1, fields.size())));
 
-            try (ResultSet resultSet = preparedStatement.getResultSet()) {
-                final RecordSchema schema = new SimpleRecordSchema(new ArrayList<>());
-                try (ResultSetRecordSet resultSetRecordSet = new ResultSetRecordSet(resultSet, schema)) {
-                    return Optional.of(resultSetRecordSet.next());
+            Record record;
+            while ((record = resultSetRecordSet.next()) != null) {
+                if (batchMapper == null) {
+                    batchMapper = RecordMapper.of(schema, metaData, 1);
                 }
-            }
 
-        } catch (final ProcessException | SQLException e) {
-            getLogger().error("Error during lookup: {}", new Object[] { coordinates.toString() }, e);
-            throw new LookupFailureException(e);
-        } catch (final NullPointerException | IOException e) {
-            return Optional.empty();
+                final int index = ((Number) record.getValue(indexField)).intValue();
+                if (!rows.wants(index)) {
+                    continue;
+                }
+
+                final Map<String, Object> values = new LinkedHashMap<>(record.toMap());
+                values.remove(indexField.getFieldName());
+                rows.add(index, new MapRecord(schema, values));
+            }
         }
     }
 
-    private Optional<Record> jdbcDatabaseLookup(Map<String, Object> coordinates) throws LookupFailureException {
-        PreparedStatementCreator preparedStatementCreator = setupPreparedStatementCreator(coordinates);
+    @Override
+    RowReader<Record> rowReader(ResultSet resultSet, String[] columnNames) throws SQLException {
+        final ResultSetRecordSet resultSetRecordSet = new ResultSetRecordSet(resultSet, new SimpleRecordSchema(new ArrayList<>()));
+
+        // the record set reads ahead of the current record, so the columns come from the record instead of the result set
+        final String[] fields = new String[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            for (final String fieldName : resultSetRecordSet.getSchema().getFieldNames()) {
+                if (columnNames[i].equalsIgnoreCase(fieldName)) {
+                    fields[i] = fieldName;
+                    break;
+                }
+            }
+            if (fields[i] == null) {
+                throw missingColumn(columnNames[i]);
+            }
+        }
 
-        try (final Connection connection = dbcpService
-                        .getConnection(); final PreparedStatement preparedStatement = preparedStatementCreator
-                        .createPreparedStatement(connection)) {
+        return new RowReader<Record>() {
+            private Record record;
 
-            preparedStatement.setQueryTimeout(queryTimeout);
-            preparedStatement.execute();
+            @Override
+            public boolean next() throws IOException {
+                record = resultSetRecordSet.next();
+                return record != null;
+            }
 
-            try (ResultSet resultSet = preparedStatement.getResultSet()) {
-                final RecordSchema schema = new SimpleRecordSchema(new ArrayList<>());
-                try (ResultSetRecordSet resultSetRecordSet = new ResultSetRecordSet(resultSet, schema)) {
-                    return Optional.of(resultSetRecordSet.next());
+            @Override
+            public Object[] columnValues() {
+                final Object[] values = new Object[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = record.getValue(fields[i]);
                 }
+                return values;
             }
 
-        } catch (final ProcessException | SQLException e) {
-            getLogger().error("Error during lookup: {}", new Object[] { coordinates.toString() }, e);
-            throw new LookupFailureException(e);
-        } catch (final NullPointerException | IOException e) {
-            return Optional.empty();
-        }
+            @Override
+            public Record value() {
+                return record;
+            }
+        };
     }
 
     @Override
-    protected Optional<Record> cacheLookup(Map<String, Object> coordinates) throws LookupFailureException {
-        String cacheKey = sqlQuery + ":" + coordinates.hashCode();
+    String cacheValueSettings() {
+        return "useJDBCTypes=" + useJDBCTypes + ",rowPolicy=" + rowPolicy + ",rowsField=" + rowsField + ",maxRows=" + maxRows;
+    }
+
+    /**
+     * All rows are capped at {@code Max Rows}.
+     */
+    @Override
+    int lookupRowLimit() {
+        return ROW_POLICY_ALL.getValue().equals(rowPolicy) ? maxRows : super.lookupRowLimit();
+    }
 
-        Record record = cache.get(cacheKey);
-        if (record != null) {
-            return Optional.of(record);
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
+        useJDBCTypes = context.getProperty(USE_JDBC_TYPES).asBoolean();
+        rowsField = context.getProperty(ROWS_FIELD).getValue();
+        maxRows = context.getProperty(MAX_ROWS).asInteger();
+        try {
+            setDefaultValues(context);
+            lookupMapper = null;
+            batchMapper = null;
+            rowsSchema = null;
+
+            final boolean compact = context.getProperty(COMPACT_CACHE_VALUES).asBoolean() && !cacheFactory().isOffHeap();
+            cache = regionCache("values", cacheSettings, () -> {
+                if (compact) {
+                    final ValueCodec<Record> codec = ValueCodec.forType(Record.class);
+                    final CacheLoader<byte[]> refreshLoader = EncodedValueAdapter.encodingLoader(codec, refreshLoader());
+                    return new EncodedValueAdapter<>(codec, createCache(cacheSettings, byte[].class, refreshLoader));
+                }
+                return createCache(cacheSettings, Record.class, refreshLoader());
+            });
+
+            preload();
+            scheduleStatsReporting();
+        } catch (final InitializationException | RuntimeException e) {
+            onDisabled();
+            throw e;
+        }
+    }
+
+    /**
+     * The schema of results that hold all rows, for one row schema.
+     */
+    private static final class RowsSchema {
+        private final RecordSchema rowSchema;
+        private final RecordSchema schema;
+
+        RowsSchema(String fieldName, RecordSchema rowSchema) {
+            this.rowSchema = rowSchema;
+            this.schema = new SimpleRecordSchema(Collections.singletonList(new RecordField(fieldName,
+                            RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.RECORD.getRecordDataType(rowSchema)))));
         }
+    }
 
-        Optional<Record> lookupRecord = databaseLookup(coordinates);
-        if (lookupRecord.isPresent()) {
-            cache.set(cacheKey, lookupRecord.get());
+    /**
+     * The rows of a batch query by coordinate position, keeping no more rows per position than a single lookup reads.
+     */
+    private static final class BatchRows {
+        private final List<List<Record>> rows;
+        private final int limit;
 
-            return lookupRecord;
+        BatchRows(int positions, int limit) {
+            this.rows = new ArrayList<>(Collections.nCopies(positions, (List<Record>) null));
+            this.limit = limit;
         }
 
-        return Optional.empty();
-    }
+        boolean wants(int index) {
+            final List<Record> positionRows = rows.get(index);
+            return positionRows == null || limit == 0 || positionRows.size() < limit;
+        }
 
-    @OnEnabled
-    public void onEnabled(final ConfigurationContext context) {
-        setDefaultValues(context);
-        useJDBCTypes = context.getProperty(USE_JDBC_TYPES).asBoolean();
+        void add(int index, Record record) {
+            List<Record> positionRows = rows.get(index);
+            if (positionRows == null) {
+                positionRows = new ArrayList<>(1);
+                rows.set(index, positionRows);
+            }
+            positionRows.add(record);
+        }
 
-        if ("Caffeine".equals(cachingLibrary)) {
-            cache = new CaffeineAdapter<>(cacheSize);
-        } else {
-            cache = new GuavaAdapter<>(cacheSize);
+        List<Record> get(int index) {
+            return rows.get(index);
         }
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.CacheAdapter;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.reporting.InitializationException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The caches shared by lookup services of this bundle. A region is created by the first service that attaches to it,
+ * and cleaned up when the last service attached to it detaches.
+ */
+final class SharedCacheRegions {
+
+    // guarded by the class
+    private static final Map<String, Region> REGIONS = new HashMap<>();
+
+    private SharedCacheRegions() {
+    }
+
+    @FunctionalInterface
+    interface CacheFactory<V> {
+        CacheAdapter<V> create() throws InitializationException;
+    }
+
+    /**
+     * Returns the cache of the region, creating it when no service is attached. A service asking for different
+     * settings than the region was created with gets the existing cache and a warning.
+     */
+    @SuppressWarnings("unchecked")
+    static synchronized <V> CacheAdapter<V> attach(final String key, final String settings, final CacheFactory<V> factory,
+                    final ComponentLog logger) throws InitializationException {
+        Region region = REGIONS.get(key);
+        if (region == null) {
+            region = new Region(factory.create(), settings);
+            REGIONS.put(key, region);
+        } else if (!region.settings.equals(settings)) {
+            logger.warn("Shared cache region was created with the settings [{}], ignoring the settings [{}] of this service",
+                            new Object[] { region.settings, settings });
+        }
+        region.references++;
+        return (CacheAdapter<V>) region.cache;
+    }
+
+    static synchronized void detach(final String key) {
+        final Region region = REGIONS.get(key);
+        if (region != null && --region.references == 0) {
+            REGIONS.remove(key);
+            region.cache.cleanUp();
+        }
+    }
+
+    static synchronized int references(final String key) {
+        final Region region = REGIONS.get(key);
+        return region == null ? 0 : region.references;
+    }
+
+    private static final class Region {
+
+        final CacheAdapter<?> cache;
+        final String settings;
+        int references;
+
+        Region(final CacheAdapter<?> cache, final String settings) {
+            this.cache = cache;
+            this.settings = settings;
+        }
+    }
+}
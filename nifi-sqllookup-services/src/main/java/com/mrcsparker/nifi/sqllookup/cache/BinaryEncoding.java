@@ -0,0 +1,565 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.type.ArrayDataType;
+import org.apache.nifi.serialization.record.type.ChoiceDataType;
+import org.apache.nifi.serialization.record.type.DecimalDataType;
+import org.apache.nifi.serialization.record.type.EnumDataType;
+import org.apache.nifi.serialization.record.type.MapDataType;
+import org.apache.nifi.serialization.record.type.RecordDataType;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tagged binary encoding of the values found in lookup results and cache keys. Every value starts with a one
+ * byte type tag; lengths and counts are written as variable length integers.
+ * <p>
+ * Record schemas are written once into a schema table owned by the encoding, and records only refer to their
+ * schema by its position in the table.
+ */
+class BinaryEncoding {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte TRUE = 6;
+    private static final byte FALSE = 7;
+    private static final byte BIG_DECIMAL = 8;
+    private static final byte BIG_INTEGER = 9;
+    private static final byte TIMESTAMP = 10;
+    private static final byte SQL_DATE = 11;
+    private static final byte SQL_TIME = 12;
+    private static final byte DATE = 13;
+    private static final byte BYTES = 14;
+    private static final byte ARRAY = 15;
+    private static final byte LIST = 16;
+    private static final byte MAP = 17;
+    private static final byte RECORD = 18;
+    private static final byte SHORT = 19;
+    private static final byte BYTE = 20;
+    private static final byte CHARACTER = 21;
+    private static final byte LOCAL_DATE = 22;
+    private static final byte LOCAL_TIME = 23;
+    private static final byte LOCAL_DATE_TIME = 24;
+    private static final byte INSTANT = 25;
+    private static final byte OFFSET_DATE_TIME = 26;
+    private static final byte OFFSET_TIME = 27;
+    private static final byte ZONED_DATE_TIME = 28;
+    private static final byte UUID_VALUE = 29;
+
+    private final List<RecordSchema> schemas = new ArrayList<>();
+    private final Map<RecordSchema, Integer> schemaIds = new HashMap<>();
+
+    void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL);
+            writeVarInt(out, ((BigDecimal) value).scale());
+            writeBytes(out, ((BigDecimal) value).unscaledValue().toByteArray());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeBytes(out, ((BigInteger) value).toByteArray());
+        } else if (value instanceof Timestamp) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof java.sql.Date) {
+            out.writeByte(SQL_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Time) {
+            out.writeByte(SQL_TIME);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            writeBytes(out, (byte[]) value);
+        } else if (value instanceof Object[]) {
+            out.writeByte(ARRAY);
+            writeVarInt(out, ((Object[]) value).length);
+            for (final Object element : (Object[]) value) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Collection) {
+            out.writeByte(LIST);
+            writeVarInt(out, ((Collection<?>) value).size());
+            for (final Object element : (Collection<?>) value) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Map) {
+            out.writeByte(MAP);
+            writeVarInt(out, ((Map<?, ?>) value).size());
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof Record) {
+            out.writeByte(RECORD);
+            writeRecord(out, (Record) value);
+        } else if (value instanceof LocalDate) {
+            out.writeByte(LOCAL_DATE);
+            out.writeLong(((LocalDate) value).toEpochDay());
+        } else if (value instanceof LocalTime) {
+            out.writeByte(LOCAL_TIME);
+            out.writeLong(((LocalTime) value).toNanoOfDay());
+        } else if (value instanceof LocalDateTime) {
+            out.writeByte(LOCAL_DATE_TIME);
+            writeLocalDateTime(out, (LocalDateTime) value);
+        } else if (value instanceof Instant) {
+            out.writeByte(INSTANT);
+            out.writeLong(((Instant) value).getEpochSecond());
+            out.writeInt(((Instant) value).getNano());
+        } else if (value instanceof OffsetDateTime) {
+            out.writeByte(OFFSET_DATE_TIME);
+            writeLocalDateTime(out, ((OffsetDateTime) value).toLocalDateTime());
+            out.writeInt(((OffsetDateTime) value).getOffset().getTotalSeconds());
+        } else if (value instanceof OffsetTime) {
+            out.writeByte(OFFSET_TIME);
+            out.writeLong(((OffsetTime) value).toLocalTime().toNanoOfDay());
+            out.writeInt(((OffsetTime) value).getOffset().getTotalSeconds());
+        } else if (value instanceof ZonedDateTime) {
+            out.writeByte(ZONED_DATE_TIME);
+            writeLocalDateTime(out, ((ZonedDateTime) value).toLocalDateTime());
+            out.writeInt(((ZonedDateTime) value).getOffset().getTotalSeconds());
+            writeString(out, ((ZonedDateTime) value).getZone().getId());
+        } else if (value instanceof UUID) {
+            out.writeByte(UUID_VALUE);
+            out.writeLong(((UUID) value).getMostSignificantBits());
+            out.writeLong(((UUID) value).getLeastSignificantBits());
+        } else {
+            throw new UnsupportedValueException(value.getClass());
+        }
+    }
+
+    Object readValue(DataInput in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case SHORT:
+                return in.readShort();
+            case BYTE:
+                return in.readByte();
+            case CHARACTER:
+                return in.readChar();
+            case BIG_DECIMAL:
+                final int scale = readVarInt(in);
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(in));
+            case TIMESTAMP:
+                final Timestamp timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            case SQL_DATE:
+                return new java.sql.Date(in.readLong());
+            case SQL_TIME:
+                return new Time(in.readLong());
+            case DATE:
+                return new Date(in.readLong());
+            case BYTES:
+                return readBytes(in);
+            case ARRAY:
+                final Object[] array = new Object[readVarInt(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readValue(in);
+                }
+                return array;
+            case LIST:
+                final int size = readVarInt(in);
+                final List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case MAP:
+                final int entries = readVarInt(in);
+                final Map<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    map.put(readValue(in), readValue(in));
+                }
+                return map;
+            case RECORD:
+                return readRecord(in);
+            case LOCAL_DATE:
+                return LocalDate.ofEpochDay(in.readLong());
+            case LOCAL_TIME:
+                return LocalTime.ofNanoOfDay(in.readLong());
+            case LOCAL_DATE_TIME:
+                return readLocalDateTime(in);
+            case INSTANT:
+                return Instant.ofEpochSecond(in.readLong(), in.readInt());
+            case OFFSET_DATE_TIME:
+                return OffsetDateTime.of(readLocalDateTime(in), ZoneOffset.ofTotalSeconds(in.readInt()));
+            case OFFSET_TIME:
+                return OffsetTime.of(LocalTime.ofNanoOfDay(in.readLong()), ZoneOffset.ofTotalSeconds(in.readInt()));
+            case ZONED_DATE_TIME:
+                final LocalDateTime localDateTime = readLocalDateTime(in);
+                final ZoneOffset offset = ZoneOffset.ofTotalSeconds(in.readInt());
+                try {
+                    return ZonedDateTime.ofInstant(localDateTime, offset, ZoneId.of(readString(in)));
+                } catch (final DateTimeException e) {
+                    throw new IOException("Unknown time zone", e);
+                }
+            case UUID_VALUE:
+                return new UUID(in.readLong(), in.readLong());
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void writeLocalDateTime(DataOutput out, LocalDateTime value) throws IOException {
+        out.writeLong(value.toLocalDate().toEpochDay());
+        out.writeLong(value.toLocalTime().toNanoOfDay());
+    }
+
+    private static LocalDateTime readLocalDateTime(DataInput in) throws IOException {
+        return LocalDateTime.of(LocalDate.ofEpochDay(in.readLong()), LocalTime.ofNanoOfDay(in.readLong()));
+    }
+
+    void writeRecord(DataOutput out, Record record) throws IOException {
+        final RecordSchema schema = record.getSchema();
+        writeVarInt(out, schemaId(schema));
+        for (final RecordField field : schema.getFields()) {
+            writeValue(out, record.getValue(field));
+        }
+    }
+
+    Record readRecord(DataInput in) throws IOException {
+        final RecordSchema schema = schema(readVarInt(in));
+        final Map<String, Object> values = new LinkedHashMap<>();
+        for (final RecordField field : schema.getFields()) {
+            values.put(field.getFieldName(), readValue(in));
+        }
+        return new MapRecord(schema, values);
+    }
+
+    /**
+     * Writes the schema table, so records encoded now can be decoded by another encoding after
+     * {@link #readSchemas}.
+     */
+    synchronized void writeSchemas(DataOutput out) throws IOException {
+        writeVarInt(out, schemas.size());
+        for (final RecordSchema schema : schemas) {
+            writeSchema(out, schema);
+        }
+    }
+
+    synchronized void readSchemas(DataInput in) throws IOException {
+        final int count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            schemaId(readSchema(in));
+        }
+    }
+
+    private void writeSchema(DataOutput out, RecordSchema schema) throws IOException {
+        writeVarInt(out, schema.getFieldCount());
+        for (final RecordField field : schema.getFields()) {
+            writeString(out, field.getFieldName());
+            writeDataType(out, field.getDataType());
+            writeValue(out, field.getDefaultValue());
+            writeVarInt(out, field.getAliases().size());
+            for (final String alias : field.getAliases()) {
+                writeString(out, alias);
+            }
+            out.writeBoolean(field.isNullable());
+        }
+    }
+
+    private RecordSchema readSchema(DataInput in) throws IOException {
+        final List<RecordField> fields = new ArrayList<>();
+        final int count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            final String name = readString(in);
+            final DataType dataType = readDataType(in);
+            final Object defaultValue = readValue(in);
+            final Set<String> aliases = new LinkedHashSet<>();
+            final int aliasCount = readVarInt(in);
+            for (int j = 0; j < aliasCount; j++) {
+                aliases.add(readString(in));
+            }
+            fields.add(new RecordField(name, dataType, defaultValue, aliases, in.readBoolean()));
+        }
+        return new SimpleRecordSchema(fields);
+    }
+
+    private void writeDataType(DataOutput out, DataType dataType) throws IOException {
+        final RecordFieldType fieldType = dataType.getFieldType();
+        writeString(out, fieldType.name());
+        switch (fieldType) {
+            case ARRAY:
+                writeDataType(out, ((ArrayDataType) dataType).getElementType());
+                out.writeBoolean(((ArrayDataType) dataType).isElementsNullable());
+                break;
+            case MAP:
+                writeDataType(out, ((MapDataType) dataType).getValueType());
+                out.writeBoolean(((MapDataType) dataType).isValuesNullable());
+                break;
+            case RECORD:
+                final RecordSchema childSchema = ((RecordDataType) dataType).getChildSchema();
+                out.writeBoolean(childSchema != null);
+                if (childSchema != null) {
+                    writeSchema(out, childSchema);
+                }
+                break;
+            case CHOICE:
+                final List<DataType> subTypes = ((ChoiceDataType) dataType).getPossibleSubTypes();
+                writeVarInt(out, subTypes.size());
+                for (final DataType subType : subTypes) {
+                    writeDataType(out, subType);
+                }
+                break;
+            case DECIMAL:
+                writeVarInt(out, ((DecimalDataType) dataType).getPrecision());
+                writeVarInt(out, ((DecimalDataType) dataType).getScale());
+                break;
+            case ENUM:
+                final List<String> enums = ((EnumDataType) dataType).getEnums();
+                writeVarInt(out, enums.size());
+                for (final String symbol : enums) {
+                    writeString(out, symbol);
+                }
+                break;
+            default:
+                writeValue(out, dataType.getFormat());
+                break;
+        }
+    }
+
+    private DataType readDataType(DataInput in) throws IOException {
+        final RecordFieldType fieldType;
+        try {
+            fieldType = RecordFieldType.valueOf(readString(in));
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Unknown record field type", e);
+        }
+
+        switch (fieldType) {
+            case ARRAY:
+                return fieldType.getArrayDataType(readDataType(in), in.readBoolean());
+            case MAP:
+                return fieldType.getMapDataType(readDataType(in), in.readBoolean());
+            case RECORD:
+                return fieldType.getRecordDataType(in.readBoolean() ? readSchema(in) : null);
+            case CHOICE:
+                final List<DataType> subTypes = new ArrayList<>();
+                final int count = readVarInt(in);
+                for (int i = 0; i < count; i++) {
+                    subTypes.add(readDataType(in));
+                }
+                return fieldType.getChoiceDataType(subTypes);
+            case DECIMAL:
+                return fieldType.getDecimalDataType(readVarInt(in), readVarInt(in));
+            case ENUM:
+                final List<String> enums = new ArrayList<>();
+                final int symbols = readVarInt(in);
+                for (int i = 0; i < symbols; i++) {
+                    enums.add(readString(in));
+                }
+                return fieldType.getEnumDataType(enums);
+            default:
+                return fieldType.getDataType((String) readValue(in));
+        }
+    }
+
+    synchronized int schemaCount() {
+        return schemas.size();
+    }
+
+    private synchronized int schemaId(RecordSchema schema) {
+        Integer id = schemaIds.get(schema);
+        if (id == null) {
+            id = schemas.size();
+            schemas.add(schema);
+            schemaIds.put(schema, id);
+        }
+        return id;
+    }
+
+    private synchronized RecordSchema schema(int id) throws IOException {
+        if (id >= schemas.size()) {
+            throw new IOException("Unknown record schema " + id);
+        }
+        return schemas.get(id);
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInput in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInput in) throws IOException {
+        final byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    static final class StringCodec implements ValueCodec<String> {
+
+        @Override
+        public void encode(String value, DataOutput out) throws IOException {
+            writeString(out, value);
+        }
+
+        @Override
+        public String decode(DataInput in) throws IOException {
+            return readString(in);
+        }
+    }
+
+    /**
+     * Codec for records. Decoded records are {@link MapRecord}s that share one schema instance per schema.
+     */
+    static final class RecordCodec implements ValueCodec<Record> {
+
+        private final BinaryEncoding encoding = new BinaryEncoding();
+
+        @Override
+        public void encode(Record value, DataOutput out) throws IOException {
+            encoding.writeRecord(out, value);
+        }
+
+        @Override
+        public Record decode(DataInput in) throws IOException {
+            return encoding.readRecord(in);
+        }
+
+        @Override
+        public void writeTables(DataOutput out) throws IOException {
+            encoding.writeSchemas(out);
+        }
+
+        @Override
+        public void readTables(DataInput in) throws IOException {
+            encoding.readSchemas(in);
+        }
+
+        @Override
+        public int tableSize() {
+            return encoding.schemaCount();
+        }
+    }
+}
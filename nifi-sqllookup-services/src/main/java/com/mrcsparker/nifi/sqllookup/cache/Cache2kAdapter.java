@@ -1,30 +1,78 @@
 package com.mrcsparker.nifi.sqllookup.cache;
 
+import org.apache.nifi.lookup.LookupFailureException;
 import org.cache2k.Cache;
 import org.cache2k.Cache2kBuilder;
+import org.cache2k.event.CacheEntryEvictedListener;
 
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Cache2kAdapter<T> implements CacheAdapter<T> {
 
-    private final Cache<String, T> cache;
+    private final Cache<CacheKey, T> cache;
+    private final SingleFlight<T> singleFlight = new SingleFlight<>();
+    private final LongAdder evictions = new LongAdder();
 
     public Cache2kAdapter(Integer cacheSize, Class<T> valueType) {
-        cache = Cache2kBuilder.of(String.class, valueType).entryCapacity(cacheSize).build();
+        this(CacheSettings.ofSize(cacheSize), valueType, null);
+    }
+
+    /**
+     * Cache2k has no expiry after access. Its refresh ahead reloads an entry when it expires, so when
+     * refresh is enabled the refresh interval replaces the expiry after write.
+     *
+     * @param refreshLoader reloads entries in the background when the settings ask for refresh; a null
+     *                      result leaves an empty entry that is treated as a miss
+     */
+    @SuppressWarnings("unchecked")
+    public Cache2kAdapter(CacheSettings settings, Class<T> valueType, CacheLoader<T> refreshLoader) {
+        // Cache2k rejects array value types, such as the byte arrays of compact values; they are held as objects
+        final Cache2kBuilder<CacheKey, T> builder = Cache2kBuilder.of(CacheKey.class,
+                        valueType.isArray() ? (Class<T>) Object.class : valueType);
+        builder.addListener((CacheEntryEvictedListener<CacheKey, T>) (cache, entry) -> evictions.increment());
+        if (settings.weighs()) {
+            final EntryWeigher weigher = settings.getWeigher();
+            builder.maximumWeight(settings.getMaximumWeight())
+                            .weigher(weigher::weigh);
+        } else {
+            builder.entryCapacity(settings.getMaximumSize());
+        }
+
+        if (settings.refreshes() && refreshLoader != null) {
+            builder.expireAfterWrite(settings.getRefreshAfterWriteMillis(), TimeUnit.MILLISECONDS)
+                            .refreshAhead(true)
+                            .permitNullValues(true)
+                            .loader(refreshLoader::load)
+                            .refreshExecutor(settings.getRefreshExecutor());
+        } else if (settings.getExpireAfterWriteMillis() > 0) {
+            // cache2k expires entries on a timer, so they may be seen up to about a second past their time
+            builder.expireAfterWrite(settings.getExpireAfterWriteMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        cache = builder.build();
     }
 
     @Override
-    public T get(String key) {
-        return cache.get(key);
+    public T get(CacheKey key) {
+        // peek, so a configured refresh loader never loads on the calling thread
+        return cache.peek(key);
     }
 
     @Override
-    public void set(String key, T value) {
+    public T get(CacheKey key, CacheLoader<T> loader) throws LookupFailureException {
+        // entry processors are retried under contention, so loads are coalesced outside of cache2k
+        return singleFlight.get(key, cache::peek, loader, cache::put);
+    }
+
+    @Override
+    public void set(CacheKey key, T value) {
         cache.put(key, value);
     }
 
     @Override
-    public void delete(String key) {
+    public void delete(CacheKey key) {
         cache.remove(key);
     }
 
@@ -34,7 +82,12 @@ public class Cache2kAdapter<T> implements CacheAdapter<T> {
     }
 
     @Override
-    public ConcurrentMap<String, T> asMap() {
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public ConcurrentMap<CacheKey, T> asMap() {
         return cache.asMap();
     }
 
@@ -42,4 +95,35 @@ public class Cache2kAdapter<T> implements CacheAdapter<T> {
     public void cleanUp() {
         cache.clear();
     }
+
+    /**
+     * Creates {@link Cache2kAdapter}s for the Caching library value {@code Cache2k}.
+     */
+    public static final class Factory implements CacheAdapterFactory {
+
+        @Override
+        public String getName() {
+            return "Cache2k";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Cache2k";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Use Cache2k";
+        }
+
+        @Override
+        public boolean supportsExpireAfterAccess() {
+            return false;
+        }
+
+        @Override
+        public <V> CacheAdapter<V> create(CacheRequest<V> request) {
+            return new Cache2kAdapter<>(request.getSettings(), request.getValueType(), request.getRefreshLoader());
+        }
+    }
 }
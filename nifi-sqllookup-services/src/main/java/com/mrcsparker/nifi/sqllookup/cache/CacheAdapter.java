@@ -1,18 +1,38 @@
 package com.mrcsparker.nifi.sqllookup.cache;
 
+import org.apache.nifi.lookup.LookupFailureException;
+
 import java.util.concurrent.ConcurrentMap;
 
 public interface CacheAdapter<T> {
 
-    T get(String key);
+    T get(CacheKey key);
+
+    /**
+     * Returns the cached value, loading it on a miss. Concurrent misses for the same key share one load.
+     */
+    T get(CacheKey key, CacheLoader<T> loader) throws LookupFailureException;
 
-    void set(String key, T value);
+    void set(CacheKey key, T value);
 
-    void delete(String key);
+    void delete(CacheKey key);
 
     long estimatedSize();
 
-    ConcurrentMap<String, T> asMap();
+    /**
+     * Returns the number of entries evicted to stay within the size or weight limit since the cache was created.
+     */
+    default long evictionCount() {
+        return 0;
+    }
+
+    ConcurrentMap<CacheKey, T> asMap();
+
+    /**
+     * Writes the cached values to storage that outlives the process, for caches that keep them there.
+     */
+    default void flush() {
+    }
 
     void cleanUp();
 }
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * The cache factories on the class path, in the order they are listed.
+ */
+public final class CacheAdapterFactories {
+
+    private static final List<CacheAdapterFactory> FACTORIES = load();
+
+    private CacheAdapterFactories() {
+    }
+
+    public static List<CacheAdapterFactory> all() {
+        return FACTORIES;
+    }
+
+    /**
+     * Returns the factory with the name.
+     *
+     * @throws IllegalArgumentException when no factory has the name
+     */
+    public static CacheAdapterFactory get(String name) {
+        for (final CacheAdapterFactory factory : FACTORIES) {
+            if (factory.getName().equals(name)) {
+                return factory;
+            }
+        }
+        throw new IllegalArgumentException("No cache factory named " + name);
+    }
+
+    private static List<CacheAdapterFactory> load() {
+        final List<CacheAdapterFactory> factories = new ArrayList<>();
+        // the class loader of this bundle, not the thread's, so that factories packaged with it are found
+        for (final CacheAdapterFactory factory : ServiceLoader.load(CacheAdapterFactory.class, CacheAdapterFactory.class.getClassLoader())) {
+            factories.add(factory);
+        }
+        return Collections.unmodifiableList(factories);
+    }
+}
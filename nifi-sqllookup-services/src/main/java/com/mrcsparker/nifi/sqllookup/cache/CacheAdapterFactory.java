@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import java.io.IOException;
+
+/**
+ * Creates the caches of one caching library. Factories are found with {@link java.util.ServiceLoader}, so a library
+ * is added by listing its factory in {@code META-INF/services/com.mrcsparker.nifi.sqllookup.cache.CacheAdapterFactory}
+ * and becomes a value of the Caching library property of both lookup services.
+ */
+public interface CacheAdapterFactory {
+
+    /**
+     * The value of the Caching library property that selects this factory.
+     */
+    String getName();
+
+    String getDisplayName();
+
+    String getDescription();
+
+    /**
+     * True when the caches keep their values encoded outside the Java heap. Such caches only hold values that have a
+     * {@link ValueCodec}, and compact values do not apply to them.
+     */
+    default boolean isOffHeap() {
+        return false;
+    }
+
+    default boolean supportsExpireAfterAccess() {
+        return true;
+    }
+
+    <T> CacheAdapter<T> create(CacheRequest<T> request) throws IOException;
+}
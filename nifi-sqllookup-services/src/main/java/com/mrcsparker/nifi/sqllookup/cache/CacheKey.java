@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Immutable cache key made of the query identity and the coordinate values.
+ * Equality is over the actual values, so two coordinate maps never share an entry
+ * just because their hash codes collide.
+ */
+public final class CacheKey {
+
+    private final String query;
+    private final String[] names;
+    private final Object[] values;
+    private final int hash;
+
+    public CacheKey(String query, String[] names, Object[] values) {
+        this.query = query;
+        this.names = names;
+        this.values = values;
+        this.hash = 31 * (31 * query.hashCode() + Arrays.hashCode(names)) + Arrays.deepHashCode(values);
+    }
+
+    public static CacheKey of(String query, Map<String, Object> coordinates) {
+        final String[] names = new String[coordinates.size()];
+        final Iterator<String> iterator = coordinates.keySet().iterator();
+        for (int i = 0; i < names.length; i++) {
+            names[i] = iterator.next();
+        }
+        if (names.length > 1) {
+            Arrays.sort(names);
+        }
+
+        final Object[] values = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = coordinates.get(names[i]);
+        }
+
+        return new CacheKey(query, names, values);
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public String[] getNames() {
+        return names;
+    }
+
+    public Object[] getValues() {
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+
+        final CacheKey other = (CacheKey) o;
+        return hash == other.hash
+                        && query.equals(other.query)
+                        && Arrays.equals(names, other.names)
+                        && Arrays.deepEquals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("CacheKey{");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(names[i]).append('=').append(values[i] instanceof Object[] ? Arrays.toString((Object[]) values[i]) : values[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+/**
+ * Everything a {@link CacheAdapterFactory} may need to create a cache. Heap caches only use the settings, the value
+ * type and the refresh loader; the memory, directory, name and fingerprint are there for caches outside the heap.
+ */
+public final class CacheRequest<T> {
+
+    private final CacheSettings settings;
+    private final Class<T> valueType;
+    private final CacheLoader<T> refreshLoader;
+    private final long offHeapBytes;
+    private final int frontCacheSize;
+    private final Path directory;
+    private final String name;
+    private final Supplier<byte[]> fingerprint;
+
+    private CacheRequest(Builder<T> builder) {
+        this.settings = builder.settings;
+        this.valueType = builder.valueType;
+        this.refreshLoader = builder.refreshLoader;
+        this.offHeapBytes = builder.offHeapBytes;
+        this.frontCacheSize = builder.frontCacheSize;
+        this.directory = builder.directory;
+        this.name = builder.name;
+        this.fingerprint = builder.fingerprint;
+    }
+
+    public CacheSettings getSettings() {
+        return settings;
+    }
+
+    public Class<T> getValueType() {
+        return valueType;
+    }
+
+    /**
+     * The loader that reloads entries in the background, null when entries are not refreshed.
+     */
+    public CacheLoader<T> getRefreshLoader() {
+        return refreshLoader;
+    }
+
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    public int getFrontCacheSize() {
+        return frontCacheSize;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Identifies the cache, unique among the caches of a NiFi instance.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Identifies what the values were loaded with, so persisted values are only reused for the same lookups.
+     * Computing it may query the database.
+     */
+    public byte[] getFingerprint() {
+        return fingerprint == null ? new byte[0] : fingerprint.get();
+    }
+
+    public static final class Builder<T> {
+
+        private final CacheSettings settings;
+        private final Class<T> valueType;
+        private CacheLoader<T> refreshLoader;
+        private long offHeapBytes;
+        private int frontCacheSize;
+        private Path directory;
+        private String name;
+        private Supplier<byte[]> fingerprint;
+
+        public Builder(CacheSettings settings, Class<T> valueType) {
+            this.settings = settings;
+            this.valueType = valueType;
+        }
+
+        public Builder<T> refreshLoader(CacheLoader<T> refreshLoader) {
+            this.refreshLoader = refreshLoader;
+            return this;
+        }
+
+        public Builder<T> offHeap(long offHeapBytes, int frontCacheSize) {
+            this.offHeapBytes = offHeapBytes;
+            this.frontCacheSize = frontCacheSize;
+            return this;
+        }
+
+        public Builder<T> persistent(Path directory, String name, Supplier<byte[]> fingerprint) {
+            this.directory = directory;
+            this.name = name;
+            this.fingerprint = fingerprint;
+            return this;
+        }
+
+        public CacheRequest<T> build() {
+            return new CacheRequest<>(this);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Size and time limits of a cache. Durations of zero or less are not applied. A cache with a maximum weight and a
+ * weigher is bounded by the total weight of its entries instead of by their number.
+ */
+public final class CacheSettings {
+
+    private final int maximumSize;
+    private final long maximumWeight;
+    private final EntryWeigher weigher;
+    private final long expireAfterWriteMillis;
+    private final long expireAfterAccessMillis;
+    private final long refreshAfterWriteMillis;
+    private final Executor refreshExecutor;
+
+    private CacheSettings(Builder builder) {
+        this.maximumSize = builder.maximumSize;
+        this.maximumWeight = builder.maximumWeight;
+        this.weigher = builder.weigher;
+        this.expireAfterWriteMillis = builder.expireAfterWriteMillis;
+        this.expireAfterAccessMillis = builder.expireAfterAccessMillis;
+        this.refreshAfterWriteMillis = builder.refreshAfterWriteMillis;
+        this.refreshExecutor = builder.refreshExecutor;
+    }
+
+    public static CacheSettings ofSize(int maximumSize) {
+        return new Builder().maximumSize(maximumSize).build();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public EntryWeigher getWeigher() {
+        return weigher;
+    }
+
+    public long getExpireAfterWriteMillis() {
+        return expireAfterWriteMillis;
+    }
+
+    public long getExpireAfterAccessMillis() {
+        return expireAfterAccessMillis;
+    }
+
+    public long getRefreshAfterWriteMillis() {
+        return refreshAfterWriteMillis;
+    }
+
+    public Executor getRefreshExecutor() {
+        return refreshExecutor;
+    }
+
+    /**
+     * True when entries are reloaded in the background, which needs a loader and an executor to run it on.
+     */
+    boolean refreshes() {
+        return refreshAfterWriteMillis > 0 && refreshExecutor != null;
+    }
+
+    boolean weighs() {
+        return maximumWeight > 0 && weigher != null;
+    }
+
+    public static final class Builder {
+
+        private int maximumSize;
+        private long maximumWeight;
+        private EntryWeigher weigher;
+        private long expireAfterWriteMillis;
+        private long expireAfterAccessMillis;
+        private long refreshAfterWriteMillis;
+        private Executor refreshExecutor;
+
+        public Builder maximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public Builder maximumWeight(long maximumWeight, EntryWeigher weigher) {
+            this.maximumWeight = maximumWeight;
+            this.weigher = weigher;
+            return this;
+        }
+
+        public Builder expireAfterWrite(long millis) {
+            this.expireAfterWriteMillis = millis;
+            return this;
+        }
+
+        public Builder expireAfterAccess(long millis) {
+            this.expireAfterAccessMillis = millis;
+            return this;
+        }
+
+        public Builder refreshAfterWrite(long millis, Executor executor) {
+            this.refreshAfterWriteMillis = millis;
+            this.refreshExecutor = executor;
+            return this;
+        }
+
+        public CacheSettings build() {
+            return new CacheSettings(this);
+        }
+    }
+}
@@ -2,29 +2,85 @@ package com.mrcsparker.nifi.sqllookup.cache;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import org.apache.nifi.lookup.LookupFailureException;
 
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CaffeineAdapter<T> implements CacheAdapter<T> {
 
-    private final Cache<String, T> cache;
+    private final Cache<CacheKey, T> cache;
+    private final LongAdder evictions = new LongAdder();
 
     public CaffeineAdapter(Integer cacheSize) {
-        cache = Caffeine.newBuilder().maximumSize(cacheSize).build();
+        this(CacheSettings.ofSize(cacheSize), null);
+    }
+
+    /**
+     * @param refreshLoader reloads entries in the background when the settings ask for refresh; a null
+     *                      result removes the entry
+     */
+    public CaffeineAdapter(CacheSettings settings, CacheLoader<T> refreshLoader) {
+        final Caffeine<Object, Object> builder = Caffeine.newBuilder();
+        builder.evictionListener((key, value, cause) -> {
+            if (cause == RemovalCause.SIZE) {
+                evictions.increment();
+            }
+        });
+        if (settings.weighs()) {
+            final EntryWeigher weigher = settings.getWeigher();
+            builder.maximumWeight(settings.getMaximumWeight())
+                            .weigher((key, value) -> weigher.weigh((CacheKey) key, value));
+        } else {
+            builder.maximumSize(settings.getMaximumSize());
+        }
+        if (settings.getExpireAfterWriteMillis() > 0) {
+            builder.expireAfterWrite(settings.getExpireAfterWriteMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (settings.getExpireAfterAccessMillis() > 0) {
+            builder.expireAfterAccess(settings.getExpireAfterAccessMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        if (settings.refreshes() && refreshLoader != null) {
+            // readers keep getting the old value while the reload runs on the refresh executor
+            builder.refreshAfterWrite(settings.getRefreshAfterWriteMillis(), TimeUnit.MILLISECONDS)
+                            .executor(settings.getRefreshExecutor());
+            cache = builder.build(refreshLoader::load);
+        } else {
+            cache = builder.build();
+        }
     }
 
     @Override
-    public T get(String key) {
+    public T get(CacheKey key) {
         return cache.getIfPresent(key);
     }
 
     @Override
-    public void set(String key, T value) {
+    public T get(CacheKey key, CacheLoader<T> loader) throws LookupFailureException {
+        try {
+            return cache.get(key, k -> {
+                try {
+                    return loader.load(k);
+                } catch (final LookupFailureException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        } catch (final CompletionException e) {
+            throw (LookupFailureException) e.getCause();
+        }
+    }
+
+    @Override
+    public void set(CacheKey key, T value) {
         cache.put(key, value);
     }
 
     @Override
-    public void delete(String key) {
+    public void delete(CacheKey key) {
         cache.invalidate(key);
     }
 
@@ -34,7 +90,12 @@ public class CaffeineAdapter<T> implements CacheAdapter<T> {
     }
 
     @Override
-    public ConcurrentMap<String, T> asMap() {
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public ConcurrentMap<CacheKey, T> asMap() {
         return cache.asMap();
     }
 
@@ -43,4 +104,30 @@ public class CaffeineAdapter<T> implements CacheAdapter<T> {
         cache.invalidateAll();
         cache.cleanUp();
     }
+
+    /**
+     * Creates {@link CaffeineAdapter}s for the Caching library value {@code Caffeine}.
+     */
+    public static final class Factory implements CacheAdapterFactory {
+
+        @Override
+        public String getName() {
+            return "Caffeine";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Caffeine";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Use Caffeine";
+        }
+
+        @Override
+        public <V> CacheAdapter<V> create(CacheRequest<V> request) {
+            return new CaffeineAdapter<>(request.getSettings(), request.getRefreshLoader());
+        }
+    }
 }
@@ -0,0 +1,409 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import org.apache.nifi.lookup.LookupFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache for read-mostly lookups on many cores. Reads go to a {@link ConcurrentHashMap} and take no lock; the only
+ * write a read makes is setting the entry's reference bit, and only when it is not set yet, so hot entries are read
+ * without touching shared cache lines. Writes lock one of several segments, each with its own CLOCK hand: the hand
+ * sweeps the segment's entries, clearing reference bits and evicting the first entry found without one.
+ * <p>
+ * The size or weight limit applies to the whole cache, not to each segment, so an entry heavier than a segment's
+ * share is kept like any other. While the cache is over its limit, writers evict from the segments in turn. Entries
+ * heavier than the whole limit are not cached.
+ * <p>
+ * Eviction approximates LRU. Expiry after access is not supported, as it would make every read a write.
+ */
+public class ClockCacheAdapter<T> implements CacheAdapter<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClockCacheAdapter.class);
+
+    // segments hold at least this many entries, so that small caches still evict close to LRU order
+    private static final int MIN_SEGMENT_SIZE = 16;
+
+    private final ConcurrentHashMap<CacheKey, Entry<T>> map;
+    private final Segment<T>[] segments;
+    private final int segmentMask;
+    private final EntryWeigher weigher;
+    private final long limit;
+    private final AtomicLong weight = new AtomicLong();
+    // the segment the next eviction is taken from
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+    private final AtomicBoolean warnedTooHeavy = new AtomicBoolean();
+    private final long expireAfterWriteNanos;
+    private final long refreshAfterWriteNanos;
+    private final CacheSettings settings;
+    private final CacheLoader<T> refreshLoader;
+    private final SingleFlight<T> singleFlight = new SingleFlight<>();
+    private final LongAdder evictions = new LongAdder();
+
+    public ClockCacheAdapter(CacheSettings settings, CacheLoader<T> refreshLoader) {
+        this(settings, refreshLoader, Runtime.getRuntime().availableProcessors());
+    }
+
+    @SuppressWarnings("unchecked")
+    ClockCacheAdapter(CacheSettings settings, CacheLoader<T> refreshLoader, int concurrency) {
+        this.settings = settings;
+        this.weigher = settings.weighs() ? settings.getWeigher() : null;
+        this.expireAfterWriteNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, settings.getExpireAfterWriteMillis()));
+        this.refreshAfterWriteNanos = settings.refreshes() && refreshLoader != null
+                        ? TimeUnit.MILLISECONDS.toNanos(settings.getRefreshAfterWriteMillis())
+                        : 0;
+        this.refreshLoader = refreshLoader;
+
+        this.limit = weigher == null ? Math.max(1, settings.getMaximumSize()) : settings.getMaximumWeight();
+        // a weight limit is in bytes, sized here as if entries took about a kilobyte
+        final int segmentCount = segmentCount(concurrency, weigher == null ? limit : Math.max(1, limit / 1024));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>();
+        }
+        this.segmentMask = segmentCount - 1;
+        this.map = new ConcurrentHashMap<>(16, 0.75f, segmentCount);
+    }
+
+    /**
+     * Four segments per core, as a power of two, but few enough that each holds {@link #MIN_SEGMENT_SIZE} entries.
+     */
+    static int segmentCount(int concurrency, long maximumSize) {
+        final long bySize = maximumSize <= 0 ? Integer.MAX_VALUE : Math.max(1, maximumSize / MIN_SEGMENT_SIZE);
+        final long wanted = Math.min(Math.max(1, 4L * concurrency), Math.min(bySize, 1 << 16));
+        return Integer.highestOneBit((int) wanted);
+    }
+
+    @Override
+    public T get(CacheKey key) {
+        final Entry<T> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (expireAfterWriteNanos > 0 || refreshAfterWriteNanos > 0) {
+            final long now = System.nanoTime();
+            if (expireAfterWriteNanos > 0 && now - entry.writeNanos >= expireAfterWriteNanos) {
+                remove(key, entry);
+                return null;
+            }
+            if (refreshAfterWriteNanos > 0 && now - entry.refreshNanos >= refreshAfterWriteNanos) {
+                refresh(key, entry);
+            }
+        }
+
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.value;
+    }
+
+    @Override
+    public T get(CacheKey key, CacheLoader<T> loader) throws LookupFailureException {
+        return singleFlight.get(key, this::get, loader, this::set);
+    }
+
+    @Override
+    public void set(CacheKey key, T value) {
+        final Entry<T> entry = new Entry<>(key, value, weigher == null ? 1 : weigher.weigh(key, value), System.nanoTime());
+        if (entry.weight > limit) {
+            // caching it would evict everything else and then the entry itself
+            delete(key);
+            evictions.increment();
+            if (warnedTooHeavy.compareAndSet(false, true)) {
+                LOG.warn("Not caching the value for {}, its estimated {} bytes exceed the cache's maximum of {} bytes; "
+                                + "later values that do not fit are not logged", key, entry.weight, limit);
+            }
+            return;
+        }
+
+        final Segment<T> segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry<T> replaced = map.put(key, entry);
+            if (replaced != null) {
+                unlink(segment, replaced);
+            }
+            segment.link(entry);
+            weight.addAndGet(entry.weight);
+        }
+        evictToLimit();
+    }
+
+    /**
+     * Evicts one entry at a time, from each segment in turn, until the cache is within its limit. Only one segment
+     * is locked at a time.
+     */
+    private void evictToLimit() {
+        while (weight.get() > limit) {
+            final Segment<T> segment = segments[evictionCursor.getAndIncrement() & segmentMask];
+            synchronized (segment) {
+                if (segment.size() > 0) {
+                    final Entry<T> victim = segment.evict();
+                    map.remove(victim.key, victim);
+                    weight.addAndGet(-victim.weight);
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    private void unlink(Segment<T> segment, Entry<T> entry) {
+        if (segment.unlink(entry)) {
+            weight.addAndGet(-entry.weight);
+        }
+    }
+
+    @Override
+    public void delete(CacheKey key) {
+        final Segment<T> segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry<T> removed = map.remove(key);
+            if (removed != null) {
+                unlink(segment, removed);
+            }
+        }
+    }
+
+    private void remove(CacheKey key, Entry<T> entry) {
+        final Segment<T> segment = segmentFor(key);
+        synchronized (segment) {
+            if (map.remove(key, entry)) {
+                unlink(segment, entry);
+            }
+        }
+    }
+
+    /**
+     * Reloads the entry in the background. Readers keep getting the old value until the reload replaces it; when
+     * the reload finds nothing the entry is removed, as in the other caches. When the reload fails, the old value
+     * stays and the next reload waits another refresh interval, so a database outage does not turn every read of a
+     * hot key into a query.
+     */
+    private void refresh(CacheKey key, Entry<T> entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            settings.getRefreshExecutor().execute(() -> {
+                try {
+                    final T value = refreshLoader.load(key);
+                    if (value == null) {
+                        remove(key, entry);
+                    } else if (map.get(key) == entry) {
+                        set(key, value);
+                    }
+                    return;
+                } catch (final LookupFailureException | RuntimeException e) {
+                    LOG.warn("Failed to refresh cached value for {}", key, e);
+                }
+                retryRefreshLater(entry);
+            });
+        } catch (final RejectedExecutionException e) {
+            retryRefreshLater(entry);
+        }
+    }
+
+    private static void retryRefreshLater(Entry<?> entry) {
+        entry.refreshNanos = System.nanoTime();
+        entry.refreshing.set(false);
+    }
+
+    private Segment<T> segmentFor(CacheKey key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & segmentMask];
+    }
+
+    @Override
+    public long estimatedSize() {
+        return map.size();
+    }
+
+    @Override
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns a copy of the cached entries.
+     */
+    @Override
+    public ConcurrentMap<CacheKey, T> asMap() {
+        final ConcurrentMap<CacheKey, T> copy = new ConcurrentHashMap<>();
+        for (final Map.Entry<CacheKey, Entry<T>> entry : map.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().value);
+        }
+        return copy;
+    }
+
+    @Override
+    public void cleanUp() {
+        for (final Segment<T> segment : segments) {
+            synchronized (segment) {
+                for (final Entry<T> entry : segment.entries) {
+                    map.remove(entry.key, entry);
+                    weight.addAndGet(-entry.weight);
+                }
+                segment.clear();
+            }
+        }
+    }
+
+    private static final class Entry<T> {
+
+        final CacheKey key;
+        final T value;
+        final int weight;
+        final long writeNanos;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        // when the entry was written or a reload of it last failed
+        volatile long refreshNanos;
+        volatile boolean referenced;
+        // position in the segment's entries, guarded by the segment
+        int index = -1;
+
+        Entry(CacheKey key, T value, int weight, long writeNanos) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeNanos = writeNanos;
+            this.refreshNanos = writeNanos;
+        }
+    }
+
+    /**
+     * The entries of one segment with the CLOCK hand. Removing an entry moves the last entry into its place.
+     * Guarded by the segment's monitor.
+     */
+    private static final class Segment<T> {
+
+        final List<Entry<T>> entries = new ArrayList<>();
+        int hand;
+
+        int size() {
+            return entries.size();
+        }
+
+        /**
+         * Appends the entry. A hand that points past the old last entry wraps first, so that the new entry is the
+         * last one it reaches.
+         */
+        void link(Entry<T> entry) {
+            if (hand >= entries.size()) {
+                hand = 0;
+            }
+            entry.index = entries.size();
+            entries.add(entry);
+        }
+
+        /**
+         * Removes the entry, returning false when it was not linked.
+         */
+        boolean unlink(Entry<T> entry) {
+            final int index = entry.index;
+            if (index < 0) {
+                return false;
+            }
+            final Entry<T> last = entries.remove(entries.size() - 1);
+            if (last != entry) {
+                entries.set(index, last);
+                last.index = index;
+            }
+            entry.index = -1;
+            return true;
+        }
+
+        /**
+         * Removes the first entry from the hand on without a reference bit, clearing the bits it passes. The hand
+         * then moves past the entry that took the victim's place, which is the segment's newest entry, so that it is
+         * not the next victim.
+         */
+        Entry<T> evict() {
+            final Entry<T> victim = sweep();
+            unlink(victim);
+            hand++;
+            return victim;
+        }
+
+        private Entry<T> sweep() {
+            while (true) {
+                if (hand >= entries.size()) {
+                    hand = 0;
+                }
+                final Entry<T> entry = entries.get(hand);
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    hand++;
+                } else {
+                    return entry;
+                }
+            }
+        }
+
+        void clear() {
+            for (final Entry<T> entry : entries) {
+                entry.index = -1;
+            }
+            entries.clear();
+            hand = 0;
+        }
+    }
+
+    /**
+     * Creates {@link ClockCacheAdapter}s for the Caching library value {@code Clock}.
+     */
+    public static final class Factory implements CacheAdapterFactory {
+
+        @Override
+        public String getName() {
+            return "Clock";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Striped CLOCK";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Lock-free reads and CLOCK eviction in lock-striped segments, for read-mostly lookups on many cores";
+        }
+
+        @Override
+        public boolean supportsExpireAfterAccess() {
+            return false;
+        }
+
+        @Override
+        public <V> CacheAdapter<V> create(CacheRequest<V> request) {
+            return new ClockCacheAdapter<>(request.getSettings(), request.getRefreshLoader());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import org.apache.nifi.lookup.LookupFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps values in another cache as byte arrays encoded with a {@link ValueCodec}. A cached record then costs its
+ * encoded column values, with one shared schema, instead of a map of boxed values. Values are decoded on every hit.
+ */
+public class EncodedValueAdapter<T> implements CacheAdapter<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EncodedValueAdapter.class);
+    private static final NotCachedLog NOT_CACHED = new NotCachedLog(LOG);
+
+    private final ValueCodec<T> codec;
+    private final CacheAdapter<byte[]> delegate;
+    private final SingleFlight<T> singleFlight = new SingleFlight<>();
+
+    /**
+     * @param delegate holds the encoded values; its refresh loader should come from {@link #encodingLoader}
+     */
+    public EncodedValueAdapter(ValueCodec<T> codec, CacheAdapter<byte[]> delegate) {
+        this.codec = codec;
+        this.delegate = delegate;
+    }
+
+    /**
+     * Returns a loader of encoded values, or null without a loader. Values that cannot be encoded load as null.
+     */
+    public static <T> CacheLoader<byte[]> encodingLoader(ValueCodec<T> codec, CacheLoader<T> loader) {
+        if (loader == null) {
+            return null;
+        }
+        return key -> {
+            final T value = loader.load(key);
+            return value == null ? null : encode(codec, key, value);
+        };
+    }
+
+    @Override
+    public T get(CacheKey key) {
+        final byte[] bytes = delegate.get(key);
+        if (bytes == null) {
+            return null;
+        }
+
+        try {
+            return codec.decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (final IOException e) {
+            LOG.warn("Dropping cached value of {} that cannot be decoded", key, e);
+            delegate.delete(key);
+            return null;
+        }
+    }
+
+    @Override
+    public T get(CacheKey key, CacheLoader<T> loader) throws LookupFailureException {
+        // the loaded value is returned as is, only later hits are decoded
+        return singleFlight.get(key, this::get, loader, this::set);
+    }
+
+    @Override
+    public void set(CacheKey key, T value) {
+        final byte[] bytes = encode(codec, key, value);
+        if (bytes == null) {
+            delegate.delete(key);
+        } else {
+            delegate.set(key, bytes);
+        }
+    }
+
+    @Override
+    public void delete(CacheKey key) {
+        delegate.delete(key);
+    }
+
+    @Override
+    public long estimatedSize() {
+        return delegate.estimatedSize();
+    }
+
+    @Override
+    public long evictionCount() {
+        return delegate.evictionCount();
+    }
+
+    /**
+     * Returns a copy of the entries, decoding every one of them.
+     */
+    @Override
+    public ConcurrentMap<CacheKey, T> asMap() {
+        final ConcurrentMap<CacheKey, T> map = new ConcurrentHashMap<>();
+        for (final CacheKey key : delegate.asMap().keySet()) {
+            final T value = get(key);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public void cleanUp() {
+        delegate.cleanUp();
+    }
+
+    private static <T> byte[] encode(ValueCodec<T> codec, CacheKey key, T value) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            codec.encode(value, new DataOutputStream(bytes));
+        } catch (final IOException e) {
+            // still returned to the caller, just not cached
+            NOT_CACHED.notCached(key, e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -2,29 +2,84 @@ package com.mrcsparker.nifi.sqllookup.cache;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import org.apache.nifi.lookup.LookupFailureException;
 
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class GuavaAdapter<T> implements CacheAdapter<T> {
 
-    Cache<String, T> cache;
+    Cache<CacheKey, T> cache;
+    private final LongAdder evictions = new LongAdder();
 
     public GuavaAdapter(Integer cacheSize) {
-        cache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        this(CacheSettings.ofSize(cacheSize), null);
+    }
+
+    /**
+     * @param refreshLoader reloads entries in the background when the settings ask for refresh; when it
+     *                      finds nothing the old value is kept until it expires
+     */
+    public GuavaAdapter(CacheSettings settings, CacheLoader<T> refreshLoader) {
+        final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+        builder.removalListener(notification -> {
+            if (notification.getCause() == RemovalCause.SIZE) {
+                evictions.increment();
+            }
+        });
+        if (settings.weighs()) {
+            final EntryWeigher weigher = settings.getWeigher();
+            builder.maximumWeight(settings.getMaximumWeight())
+                            .weigher((key, value) -> weigher.weigh((CacheKey) key, value));
+        } else {
+            builder.maximumSize(settings.getMaximumSize());
+        }
+        if (settings.getExpireAfterWriteMillis() > 0) {
+            builder.expireAfterWrite(settings.getExpireAfterWriteMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (settings.getExpireAfterAccessMillis() > 0) {
+            builder.expireAfterAccess(settings.getExpireAfterAccessMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        if (settings.refreshes() && refreshLoader != null) {
+            builder.refreshAfterWrite(settings.getRefreshAfterWriteMillis(), TimeUnit.MILLISECONDS);
+            cache = builder.build(new RefreshLoader<>(refreshLoader, settings.getRefreshExecutor()));
+        } else {
+            cache = builder.build();
+        }
     }
 
     @Override
-    public T get(String key) {
+    public T get(CacheKey key) {
         return cache.getIfPresent(key);
     }
 
     @Override
-    public void set(String key, T value) {
+    public T get(CacheKey key, CacheLoader<T> loader) throws LookupFailureException {
+        try {
+            return cache.get(key, () -> loader.load(key));
+        } catch (final InvalidCacheLoadException e) {
+            // the loader found nothing, Guava does not cache nulls
+            return null;
+        } catch (final ExecutionException e) {
+            throw (LookupFailureException) e.getCause();
+        }
+    }
+
+    @Override
+    public void set(CacheKey key, T value) {
         cache.put(key, value);
     }
 
     @Override
-    public void delete(String key) {
+    public void delete(CacheKey key) {
         cache.invalidate(key);
     }
 
@@ -34,7 +89,12 @@ public class GuavaAdapter<T> implements CacheAdapter<T> {
     }
 
     @Override
-    public ConcurrentMap<String, T> asMap() {
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public ConcurrentMap<CacheKey, T> asMap() {
         return cache.asMap();
     }
 
@@ -43,4 +103,63 @@ public class GuavaAdapter<T> implements CacheAdapter<T> {
         cache.invalidateAll();
         cache.cleanUp();
     }
+
+    /**
+     * Guava reloads on the reading thread unless the loader hands the reload off to an executor.
+     */
+    private static final class RefreshLoader<T> extends com.google.common.cache.CacheLoader<CacheKey, T> {
+
+        private final CacheLoader<T> loader;
+        private final Executor executor;
+
+        private RefreshLoader(CacheLoader<T> loader, Executor executor) {
+            this.loader = loader;
+            this.executor = executor;
+        }
+
+        @Override
+        public T load(CacheKey key) throws Exception {
+            final T value = loader.load(key);
+            if (value == null) {
+                throw new InvalidCacheLoadException("No value for " + key);
+            }
+            return value;
+        }
+
+        @Override
+        public ListenableFuture<T> reload(CacheKey key, T oldValue) {
+            final ListenableFutureTask<T> task = ListenableFutureTask.create(() -> {
+                final T value = loader.load(key);
+                return value == null ? oldValue : value;
+            });
+            executor.execute(task);
+            return task;
+        }
+    }
+
+    /**
+     * Creates {@link GuavaAdapter}s for the Caching library value {@code Guava}.
+     */
+    public static final class Factory implements CacheAdapterFactory {
+
+        @Override
+        public String getName() {
+            return "Guava";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Guava";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Use Guava";
+        }
+
+        @Override
+        public <V> CacheAdapter<V> create(CacheRequest<V> request) {
+            return new GuavaAdapter<>(request.getSettings(), request.getRefreshLoader());
+        }
+    }
 }
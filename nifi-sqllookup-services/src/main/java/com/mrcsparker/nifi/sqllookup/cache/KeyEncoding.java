@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes cache keys. The query and the coordinate names are the same for most keys, so they are written once into
+ * a layout table and keys refer to their layout by position.
+ */
+final class KeyEncoding {
+
+    private final BinaryEncoding encoding = new BinaryEncoding();
+    private final List<Layout> layouts = new ArrayList<>();
+    private final Map<Layout, Integer> layoutIds = new HashMap<>();
+
+    /**
+     * Returns the encoded key, failing when a coordinate value cannot be encoded.
+     */
+    byte[] encode(CacheKey key) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        BinaryEncoding.writeVarInt(out, layoutId(new Layout(key.getQuery(), key.getNames())));
+        for (final Object value : key.getValues()) {
+            encoding.writeValue(out, value);
+        }
+        return bytes.toByteArray();
+    }
+
+    CacheKey decode(byte[] keyBytes) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(keyBytes));
+        final Layout layout = layout(BinaryEncoding.readVarInt(in));
+        final Object[] values = new Object[layout.names.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = encoding.readValue(in);
+        }
+        return new CacheKey(layout.query, layout.names, values);
+    }
+
+    /**
+     * Writes the layout table, and the schema table of record coordinates, so encoded keys can be decoded later.
+     */
+    synchronized void writeTables(DataOutput out) throws IOException {
+        BinaryEncoding.writeVarInt(out, layouts.size());
+        for (final Layout layout : layouts) {
+            BinaryEncoding.writeString(out, layout.query);
+            BinaryEncoding.writeVarInt(out, layout.names.length);
+            for (final String name : layout.names) {
+                BinaryEncoding.writeString(out, name);
+            }
+        }
+        encoding.writeSchemas(out);
+    }
+
+    /**
+     * Reads tables written by {@link #writeTables}. Must be called before any key is encoded.
+     */
+    synchronized void readTables(DataInput in) throws IOException {
+        final int count = BinaryEncoding.readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            // interned like the query of the lookup service, so restored keys share it
+            final String query = BinaryEncoding.readString(in).intern();
+            final String[] names = new String[BinaryEncoding.readVarInt(in)];
+            for (int j = 0; j < names.length; j++) {
+                names[j] = BinaryEncoding.readString(in);
+            }
+            layoutId(new Layout(query, names));
+        }
+        encoding.readSchemas(in);
+    }
+
+    /**
+     * Returns the number of layouts and schemas in the tables, which only grow.
+     */
+    synchronized int tableSize() {
+        return layouts.size() + encoding.schemaCount();
+    }
+
+    private synchronized int layoutId(Layout layout) {
+        Integer id = layoutIds.get(layout);
+        if (id == null) {
+            id = layouts.size();
+            layouts.add(layout);
+            layoutIds.put(layout, id);
+        }
+        return id;
+    }
+
+    private synchronized Layout layout(int id) throws IOException {
+        if (id >= layouts.size()) {
+            throw new IOException("Unknown key layout " + id);
+        }
+        return layouts.get(id);
+    }
+
+    private static final class Layout {
+
+        private final String query;
+        private final String[] names;
+
+        Layout(String query, String[] names) {
+            this.query = query;
+            this.names = names;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Layout)) {
+                return false;
+            }
+            final Layout other = (Layout) o;
+            return query.equals(other.query) && Arrays.equals(names, other.names);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * query.hashCode() + Arrays.hashCode(names);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Off-heap cache kept in a memory-mapped file, so the cached values survive restarts. Reads are served from the
+ * page cache.
+ * <p>
+ * The entries are in {@code <name>.data}. The key layouts, the codec tables and a fingerprint are in
+ * {@code <name>.meta}, which is written when the cache is opened and again whenever the tables grow, before an entry
+ * that refers to the new table entries is stored. The meta file therefore always describes the data file, and a
+ * cache that was not cleaned up, because the process was killed or NiFi shut down without disabling the service,
+ * is reused as well. The entries are only reused when the meta file matches the fingerprint and capacity of the new
+ * cache. {@link #flush()} forces the mapped entries to disk, which only matters when the machine itself goes down;
+ * entries that did not reach the disk intact are then caught by their checksums, see {@link OffHeapStore}.
+ */
+public class MappedFileAdapter<T> extends OffHeapAdapter<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileAdapter.class);
+
+    private static final int MAGIC = 0x53514C43;
+    // 2 added entry checksums
+    private static final int VERSION = 2;
+
+    private final OffHeapStore store;
+    private final ValueCodec<T> codec;
+    private final KeyEncoding keys;
+    private final FileChannel channel;
+    private final Path metaFile;
+    private final byte[] fingerprint;
+    private final long capacityBytes;
+    // guarded by this
+    private boolean closed;
+    // the size of the tables in the meta file, written under the lock
+    private volatile int writtenTableSize = -1;
+
+    private MappedFileAdapter(CacheSettings settings, ValueCodec<T> codec, OffHeapStore store, KeyEncoding keys,
+                    int frontCacheSize, CacheLoader<T> refreshLoader, FileChannel channel, Path metaFile,
+                    byte[] fingerprint, long capacityBytes) {
+        super(settings, codec, store, keys, frontCacheSize, refreshLoader);
+        this.store = store;
+        this.codec = codec;
+        this.keys = keys;
+        this.channel = channel;
+        this.metaFile = metaFile;
+        this.fingerprint = fingerprint;
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Opens the cache files in the directory, creating them when they do not exist.
+     *
+     * @param name          file name of the cache, without extension
+     * @param fingerprint   identifies what the cached values were loaded with, such as the query and its result
+     *                      columns; the entries are discarded when it changes
+     * @param capacityBytes size of the data file
+     */
+    public static <T> MappedFileAdapter<T> open(CacheSettings settings, ValueCodec<T> codec, Path directory, String name,
+                    byte[] fingerprint, long capacityBytes, int frontCacheSize, CacheLoader<T> refreshLoader)
+                    throws IOException {
+        Files.createDirectories(directory);
+        final Path dataFile = directory.resolve(name + ".data");
+        final Path metaFile = directory.resolve(name + ".meta");
+
+        final KeyEncoding keys = new KeyEncoding();
+        final boolean recover = readMeta(metaFile, fingerprint, capacityBytes, keys, codec);
+
+        final FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+        try {
+            // an entry the old meta file cannot describe is cleared before the new meta file is written
+            final OffHeapStore store = OffHeapStore.map(channel, capacityBytes, recover);
+            final MappedFileAdapter<T> adapter = new MappedFileAdapter<>(settings, codec, store, keys, frontCacheSize,
+                            refreshLoader, channel, metaFile, fingerprint, capacityBytes);
+            adapter.writeMetaIfChanged();
+            LOG.info("Opened cache file {} with {} entries", dataFile, store.size());
+            return adapter;
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Forces the entries to disk and writes the tables when they grew.
+     */
+    @Override
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+
+        store.force();
+        try {
+            writeMetaIfChanged();
+        } catch (final IOException e) {
+            LOG.warn("Failed to write {}, the cached values will not be reused", metaFile, e);
+        }
+    }
+
+    /**
+     * Flushes the entries and writes the tables needed to read them again. The cache takes no more writes.
+     */
+    @Override
+    synchronized void releaseStore() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        store.close();
+        try {
+            writeMetaIfChanged();
+        } catch (final IOException e) {
+            LOG.warn("Failed to write {}, the cached values will not be reused", metaFile, e);
+        }
+
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            LOG.warn("Failed to close the cache file", e);
+        }
+    }
+
+    /**
+     * Writes the meta file before an entry is stored when the tables grew since it was last written, so that it
+     * covers the table entries the new entry refers to. The entry is not stored when the file cannot be written.
+     */
+    @Override
+    boolean prepareWrite() {
+        if (keys.tableSize() + codec.tableSize() == writtenTableSize) {
+            return true;
+        }
+        try {
+            writeMetaIfChanged();
+            return true;
+        } catch (final IOException e) {
+            LOG.warn("Failed to write {}, not caching values that need new key layouts or schemas", metaFile, e);
+            return false;
+        }
+    }
+
+    private synchronized void writeMetaIfChanged() throws IOException {
+        // read before the tables are written, so that entries added meanwhile cause another write
+        final int tableSize = keys.tableSize() + codec.tableSize();
+        if (tableSize == writtenTableSize) {
+            return;
+        }
+
+        final Path tmpFile = metaFile.resolveSibling(metaFile.getFileName() + ".tmp");
+        try (final OutputStream stream = Files.newOutputStream(tmpFile);
+             final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            BinaryEncoding.writeBytes(out, fingerprint);
+            out.writeLong(capacityBytes);
+            keys.writeTables(out);
+            codec.writeTables(out);
+        }
+        Files.move(tmpFile, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writtenTableSize = tableSize;
+    }
+
+    private static boolean readMeta(Path metaFile, byte[] fingerprint, long capacityBytes, KeyEncoding keys,
+                    ValueCodec<?> codec) {
+        try (final InputStream stream = Files.newInputStream(metaFile);
+             final DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.info("Not reusing the cache in {}, it was written by another version", metaFile);
+                return false;
+            }
+            if (!Arrays.equals(fingerprint, BinaryEncoding.readBytes(in)) || in.readLong() != capacityBytes) {
+                LOG.info("Not reusing the cache in {}, the query, its results or the cache size changed", metaFile);
+                return false;
+            }
+            keys.readTables(in);
+            codec.readTables(in);
+            return true;
+        } catch (final NoSuchFileException e) {
+            return false;
+        } catch (final IOException e) {
+            LOG.warn("Not reusing the cache in {}, the file cannot be read", metaFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Creates {@link MappedFileAdapter}s for the Caching library value {@code Persistent}.
+     */
+    public static final class Factory implements CacheAdapterFactory {
+
+        @Override
+        public String getName() {
+            return "Persistent";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Persistent";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Serialize cached values into a memory-mapped file that is reused after a restart";
+        }
+
+        @Override
+        public boolean isOffHeap() {
+            return true;
+        }
+
+        @Override
+        public boolean supportsExpireAfterAccess() {
+            return false;
+        }
+
+        @Override
+        public <V> CacheAdapter<V> create(CacheRequest<V> request) throws IOException {
+            if (request.getDirectory() == null) {
+                throw new IOException("The persistent cache requires a directory");
+            }
+            return open(request.getSettings(), ValueCodec.forType(request.getValueType()), request.getDirectory(),
+                            request.getName(), request.getFingerprint(), request.getOffHeapBytes(), request.getFrontCacheSize(),
+                            request.getRefreshLoader());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Logs values that a cache could not encode and so did not cache. The first value of every type the encoding does
+ * not support is a warning, as lookups returning such values always go to the database; everything else is only
+ * logged at debug level, so a hot key does not flood the log.
+ */
+final class NotCachedLog {
+
+    private final Logger log;
+    private final Set<Class<?>> warnedTypes = ConcurrentHashMap.newKeySet();
+
+    NotCachedLog(Logger log) {
+        this.log = log;
+    }
+
+    void notCached(Object key, IOException e) {
+        if (e instanceof UnsupportedValueException && warnedTypes.add(((UnsupportedValueException) e).getValueType())) {
+            log.warn("Not caching values of type {}, the cache cannot encode them; lookups returning them always query "
+                            + "the database", ((UnsupportedValueException) e).getValueType().getName());
+        } else {
+            log.debug("Not caching the value of {}", key, e);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import org.apache.nifi.lookup.LookupFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps serialized values in direct memory, outside the Java heap, so millions of entries add no garbage
+ * collection work. Values are encoded with a {@link ValueCodec} on write and decoded on every read.
+ * <p>
+ * The off-heap tier is bounded by bytes and evicts the oldest written entries first. An optional on-heap
+ * front cache keeps the most used values decoded.
+ */
+public class OffHeapAdapter<T> implements CacheAdapter<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapAdapter.class);
+    private static final NotCachedLog NOT_CACHED = new NotCachedLog(LOG);
+
+    private final OffHeapStore store;
+    private final ValueCodec<T> codec;
+    private final KeyEncoding keys;
+    private final CacheAdapter<T> front;
+    private final SingleFlight<T> singleFlight = new SingleFlight<>();
+
+    private final long expireAfterWriteMillis;
+    private final CacheSettings settings;
+    private final CacheLoader<T> refreshLoader;
+    private final Set<CacheKey> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param capacityBytes  direct memory used for the entries
+     * @param frontCacheSize number of decoded values kept on the heap, zero for none
+     * @param refreshLoader  reloads entries in the background when the settings ask for refresh; a null
+     *                       result removes the entry
+     */
+    public OffHeapAdapter(CacheSettings settings, ValueCodec<T> codec, long capacityBytes, int frontCacheSize,
+                    CacheLoader<T> refreshLoader) {
+        this(settings, codec, new OffHeapStore(capacityBytes), new KeyEncoding(), frontCacheSize, refreshLoader);
+    }
+
+    OffHeapAdapter(CacheSettings settings, ValueCodec<T> codec, OffHeapStore store, KeyEncoding keys, int frontCacheSize,
+                    CacheLoader<T> refreshLoader) {
+        this.store = store;
+        this.keys = keys;
+        this.codec = codec;
+        this.settings = settings;
+        this.refreshLoader = settings.refreshes() ? refreshLoader : null;
+        this.expireAfterWriteMillis = settings.getExpireAfterWriteMillis();
+
+        if (frontCacheSize > 0) {
+            // front values must not outlive the expiry or refresh of the off-heap tier
+            long frontExpiry = expireAfterWriteMillis;
+            if (this.refreshLoader != null && (frontExpiry <= 0 || settings.getRefreshAfterWriteMillis() < frontExpiry)) {
+                frontExpiry = settings.getRefreshAfterWriteMillis();
+            }
+            front = new CaffeineAdapter<>(new CacheSettings.Builder()
+                            .maximumSize(frontCacheSize)
+                            .expireAfterWrite(frontExpiry)
+                            .build(), null);
+        } else {
+            front = null;
+        }
+    }
+
+    @Override
+    public T get(CacheKey key) {
+        if (front != null) {
+            final T value = front.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        final byte[] keyBytes = encodeKey(key);
+        if (keyBytes == null) {
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        final OffHeapStore.Entry entry = store.get(keyBytes, hash(keyBytes),
+                        expireAfterWriteMillis > 0 ? now - expireAfterWriteMillis : Long.MIN_VALUE);
+        if (entry == null) {
+            return null;
+        }
+
+        final T value;
+        try {
+            value = codec.decode(new DataInputStream(new ByteArrayInputStream(entry.getValue())));
+        } catch (final IOException e) {
+            LOG.warn("Dropping cached value of {} that cannot be decoded", key, e);
+            store.remove(keyBytes, hash(keyBytes));
+            return null;
+        }
+
+        if (refreshLoader != null && now - entry.getWrittenAt() >= settings.getRefreshAfterWriteMillis()) {
+            refresh(key);
+        }
+        if (front != null) {
+            front.set(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public T get(CacheKey key, CacheLoader<T> loader) throws LookupFailureException {
+        return singleFlight.get(key, this::get, loader, this::set);
+    }
+
+    @Override
+    public void set(CacheKey key, T value) {
+        final byte[] keyBytes = encodeKey(key);
+        if (keyBytes == null) {
+            return;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            codec.encode(value, new DataOutputStream(bytes));
+        } catch (final IOException e) {
+            // still returned to the caller, just not cached
+            NOT_CACHED.notCached(key, e);
+            delete(key);
+            return;
+        }
+        if (!prepareWrite()) {
+            delete(key);
+            return;
+        }
+
+        if (!store.put(keyBytes, hash(keyBytes), bytes.toByteArray(), System.currentTimeMillis())) {
+            LOG.debug("Not caching the value of {}, it is larger than a cache segment", key);
+        }
+        if (front != null) {
+            front.set(key, value);
+        }
+    }
+
+    @Override
+    public void delete(CacheKey key) {
+        if (front != null) {
+            front.delete(key);
+        }
+        final byte[] keyBytes = encodeKey(key);
+        if (keyBytes != null) {
+            store.remove(keyBytes, hash(keyBytes));
+        }
+    }
+
+    @Override
+    public long estimatedSize() {
+        return store.size();
+    }
+
+    @Override
+    public long evictionCount() {
+        return store.evictionCount();
+    }
+
+    /**
+     * Returns a copy of the entries, decoding every one of them.
+     */
+    @Override
+    public ConcurrentMap<CacheKey, T> asMap() {
+        final ConcurrentMap<CacheKey, T> map = new ConcurrentHashMap<>();
+        store.forEach((keyBytes, entry) -> {
+            try {
+                map.put(keys.decode(keyBytes), codec.decode(new DataInputStream(new ByteArrayInputStream(entry.getValue()))));
+            } catch (final IOException e) {
+                LOG.warn("Skipping cached entry that cannot be decoded", e);
+            }
+        });
+        return map;
+    }
+
+    @Override
+    public void cleanUp() {
+        if (front != null) {
+            front.cleanUp();
+        }
+        releaseStore();
+    }
+
+    void releaseStore() {
+        store.clear();
+    }
+
+    /**
+     * Runs before an encoded entry is stored, returning false when it must not be stored.
+     */
+    boolean prepareWrite() {
+        return true;
+    }
+
+    /**
+     * Returns the encoded key, or null when a coordinate value cannot be encoded and the key is not cached.
+     */
+    private byte[] encodeKey(CacheKey key) {
+        try {
+            return keys.encode(key);
+        } catch (final IOException e) {
+            NOT_CACHED.notCached(key, e);
+            return null;
+        }
+    }
+
+    // computed from the encoded key, so it does not depend on the hash codes of the coordinate classes
+    private static int hash(byte[] keyBytes) {
+        return Arrays.hashCode(keyBytes);
+    }
+
+    private void refresh(CacheKey key) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+
+        settings.getRefreshExecutor().execute(() -> {
+            try {
+                final T value = refreshLoader.load(key);
+                if (value == null) {
+                    delete(key);
+                } else {
+                    set(key, value);
+                }
+            } catch (final LookupFailureException | RuntimeException e) {
+                LOG.warn("Failed to refresh the cached value of {}", key, e);
+            } finally {
+                refreshing.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Creates {@link OffHeapAdapter}s for the Caching library value {@code OffHeap}.
+     */
+    public static final class Factory implements CacheAdapterFactory {
+
+        @Override
+        public String getName() {
+            return "OffHeap";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Off-heap";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Serialize cached values into direct memory outside the Java heap";
+        }
+
+        @Override
+        public boolean isOffHeap() {
+            return true;
+        }
+
+        @Override
+        public boolean supportsExpireAfterAccess() {
+            return false;
+        }
+
+        @Override
+        public <V> CacheAdapter<V> create(CacheRequest<V> request) {
+            return new OffHeapAdapter<>(request.getSettings(), ValueCodec.forType(request.getValueType()),
+                            request.getOffHeapBytes(), request.getFrontCacheSize(), request.getRefreshLoader());
+        }
+    }
+}
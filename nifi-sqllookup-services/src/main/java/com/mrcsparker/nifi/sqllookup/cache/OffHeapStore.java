@@ -0,0 +1,571 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Byte-array key/value store in direct memory.
+ * <p>
+ * The store is split into segments, each with its own lock. A segment is a slab used as a ring: entries are
+ * appended at the tail and, once the slab is full, the oldest entries are evicted from the head. Keys are found
+ * through an open-addressing table of key hashes and slab offsets, so the heap holds two int arrays per segment
+ * and no object per entry. Replaced and deleted entries stay in the slab, marked as dead, until the ring reaches
+ * them.
+ * <p>
+ * A store can also be {@linkplain #map mapped} onto a file. Each segment then keeps its ring positions in front of
+ * its slab, and the index is rebuilt from the live entries when the file is mapped again. Mapped entries carry a
+ * CRC32 of their bytes: after the machine went down, the ring positions may have reached the disk without the
+ * entries they cover, and a segment with an entry that does not match its checksum starts empty instead of serving
+ * stale bytes. When a key is found more than once, the entry written last is kept.
+ */
+final class OffHeapStore {
+
+    // entry length, key hash, write time, key length and, for mapped entries, checksum
+    private static final int HEADER = 4 + 4 + 8 + 4 + 4;
+
+    private static final int CHECKSUM = 20;
+
+    // head, tail, limit and wrapped flag of a mapped segment
+    private static final int RING_STATE = 4 * 4;
+
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    // write time of removed entries, they are skipped when the index is rebuilt
+    private static final long DEAD = Long.MIN_VALUE;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final MappedByteBuffer[] mappings;
+
+    OffHeapStore(long capacityBytes) {
+        segments = new Segment[segmentCount(capacityBytes)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(segmentCapacity(capacityBytes, segments.length), null, null);
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segments.length);
+        mappings = null;
+    }
+
+    private OffHeapStore(Segment[] segments, MappedByteBuffer[] mappings) {
+        this.segments = segments;
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segments.length);
+        this.mappings = mappings;
+    }
+
+    /**
+     * Maps a store onto the file. With {@code recover} the entries already in the file are kept, otherwise the
+     * store starts empty. Segments whose ring positions are not consistent start empty as well.
+     */
+    static OffHeapStore map(FileChannel channel, long capacityBytes, boolean recover) throws IOException {
+        final int count = segmentCount(capacityBytes);
+        final int capacity = segmentCapacity(capacityBytes, count);
+
+        final Segment[] segments = new Segment[count];
+        final MappedByteBuffer[] mappings = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            mappings[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * (RING_STATE + capacity), RING_STATE + capacity);
+            mappings[i].position(RING_STATE);
+            segments[i] = new Segment(capacity, mappings[i].slice(), mappings[i]);
+            if (!recover || !segments[i].recover()) {
+                segments[i].clear();
+            }
+        }
+        return new OffHeapStore(segments, mappings);
+    }
+
+    private static int segmentCount(long capacityBytes) {
+        int count = 16;
+        while (capacityBytes / count > MAX_SEGMENT_BYTES) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    private static int segmentCapacity(long capacityBytes, int count) {
+        return (int) Math.max(HEADER, capacityBytes / count);
+    }
+
+    /**
+     * Returns the value stored for the key, or null when it is missing or was written at or before
+     * {@code expiredAt}.
+     */
+    Entry get(byte[] key, int hash, long expiredAt) {
+        return segment(hash).get(key, hash, expiredAt);
+    }
+
+    /**
+     * Stores the entry, returning false when it is larger than a segment and was not stored.
+     */
+    boolean put(byte[] key, int hash, byte[] value, long writtenAt) {
+        return segment(hash).put(key, hash, value, writtenAt);
+    }
+
+    void remove(byte[] key, int hash) {
+        segment(hash).remove(key, hash);
+    }
+
+    long size() {
+        long size = 0;
+        for (final Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of live entries evicted to make room for new ones.
+     */
+    long evictionCount() {
+        long evictions = 0;
+        for (final Segment segment : segments) {
+            evictions += segment.evictionCount();
+        }
+        return evictions;
+    }
+
+    void forEach(BiConsumer<byte[], Entry> action) {
+        for (final Segment segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    void clear() {
+        for (final Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Stops all writes and, for a mapped store, flushes the segments to the file.
+     */
+    void close() {
+        for (final Segment segment : segments) {
+            segment.close();
+        }
+        force();
+    }
+
+    /**
+     * Flushes the segments of a mapped store to the file.
+     */
+    void force() {
+        if (mappings != null) {
+            for (final MappedByteBuffer mapping : mappings) {
+                mapping.force();
+            }
+        }
+    }
+
+    private Segment segment(int hash) {
+        return segments[(hash * 0x9E3779B9) >>> segmentShift];
+    }
+
+    static final class Entry {
+
+        private final byte[] value;
+        private final long writtenAt;
+
+        Entry(byte[] value, long writtenAt) {
+            this.value = value;
+            this.writtenAt = writtenAt;
+        }
+
+        byte[] getValue() {
+            return value;
+        }
+
+        long getWrittenAt() {
+            return writtenAt;
+        }
+    }
+
+    private static final class Segment {
+
+        private final int capacity;
+        // allocated on the first write, so unused segments take no memory, unless the segment is mapped
+        private ByteBuffer slab;
+        // ring positions of a mapped segment, null otherwise
+        private final ByteBuffer ringState;
+        // checksums the entries of a mapped segment
+        private final CRC32 crc = new CRC32();
+        private boolean closed;
+
+        // live entries are in [head, tail), or in [head, limit) and [0, tail) once the tail has wrapped
+        private int head;
+        private int tail;
+        private int limit;
+        private boolean wrapped;
+
+        // offsets are stored plus one, zero marks a free slot
+        private int[] hashes = new int[16];
+        private int[] offsets = new int[16];
+        private int count;
+        private long evictions;
+
+        Segment(int capacity, ByteBuffer slab, ByteBuffer ringState) {
+            this.capacity = capacity;
+            this.limit = capacity;
+            this.slab = slab;
+            this.ringState = ringState;
+        }
+
+        synchronized Entry get(byte[] key, int hash, long expiredAt) {
+            final int slot = find(key, hash);
+            if (slot < 0) {
+                return null;
+            }
+
+            final int offset = offsets[slot] - 1;
+            final long writtenAt = slab.getLong(offset + 8);
+            if (writtenAt <= expiredAt) {
+                removeSlot(slot);
+                return null;
+            }
+
+            final byte[] value = new byte[slab.getInt(offset) - HEADER - key.length];
+            slab.position(offset + HEADER + key.length);
+            slab.get(value);
+            return new Entry(value, writtenAt);
+        }
+
+        synchronized boolean put(byte[] key, int hash, byte[] value, long writtenAt) {
+            if (closed) {
+                return false;
+            }
+
+            final int length = HEADER + key.length + value.length;
+            if (length > capacity) {
+                remove(key, hash);
+                return false;
+            }
+
+            if (slab == null) {
+                slab = ByteBuffer.allocateDirect(capacity);
+            }
+
+            final int existing = find(key, hash);
+            if (existing >= 0) {
+                removeSlot(existing);
+            }
+
+            final int offset = allocate(length);
+            slab.putInt(offset, length);
+            slab.putInt(offset + 4, hash);
+            slab.putLong(offset + 8, writtenAt);
+            slab.putInt(offset + 16, key.length);
+            slab.position(offset + HEADER);
+            slab.put(key);
+            slab.put(value);
+            if (ringState != null) {
+                slab.putInt(offset + CHECKSUM, checksum(offset, length));
+            }
+
+            insertSlot(hash, offset);
+            saveRingState();
+            return true;
+        }
+
+        synchronized void remove(byte[] key, int hash) {
+            if (closed) {
+                return;
+            }
+            final int slot = find(key, hash);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        synchronized long evictionCount() {
+            return evictions;
+        }
+
+        synchronized void forEach(BiConsumer<byte[], Entry> action) {
+            for (final int stored : offsets) {
+                if (stored != 0) {
+                    final int offset = stored - 1;
+                    final int length = slab.getInt(offset);
+                    final byte[] key = new byte[slab.getInt(offset + 16)];
+                    final byte[] value = new byte[length - HEADER - key.length];
+                    slab.position(offset + HEADER);
+                    slab.get(key);
+                    slab.get(value);
+                    action.accept(key, new Entry(value, slab.getLong(offset + 8)));
+                }
+            }
+        }
+
+        synchronized void clear() {
+            hashes = new int[16];
+            offsets = new int[16];
+            count = 0;
+            head = 0;
+            tail = 0;
+            limit = capacity;
+            wrapped = false;
+            if (ringState == null) {
+                slab = null;
+            } else {
+                saveRingState();
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        /**
+         * Rebuilds the index from the live entries of a mapped segment, returning false when the ring positions or
+         * the entries are not consistent, or an entry does not match its checksum.
+         */
+        synchronized boolean recover() {
+            head = ringState.getInt(0);
+            tail = ringState.getInt(4);
+            limit = ringState.getInt(8);
+            wrapped = ringState.getInt(12) != 0;
+
+            if (wrapped) {
+                if (tail < 0 || tail > head || head > limit || limit > capacity) {
+                    return false;
+                }
+                return recover(head, limit) && recover(0, tail);
+            }
+            return head >= 0 && head <= tail && tail <= capacity && limit == capacity && recover(head, tail);
+        }
+
+        private boolean recover(int from, int to) {
+            int offset = from;
+            while (offset < to) {
+                if (to - offset < HEADER) {
+                    return false;
+                }
+                final int length = slab.getInt(offset);
+                final int keyLength = slab.getInt(offset + 16);
+                if (length < HEADER || length > to - offset || keyLength < 0 || keyLength > length - HEADER) {
+                    return false;
+                }
+                final long writtenAt = slab.getLong(offset + 8);
+                if (writtenAt != DEAD) {
+                    if (slab.getInt(offset + CHECKSUM) != checksum(offset, length)) {
+                        return false;
+                    }
+                    final int hash = slab.getInt(offset + 4);
+                    final int existing = findEntry(offset, hash);
+                    if (existing < 0) {
+                        insertSlot(hash, offset);
+                    } else if (slab.getLong(offsets[existing] - 1 + 8) < writtenAt) {
+                        removeSlot(existing);
+                        insertSlot(hash, offset);
+                    } else {
+                        slab.putLong(offset + 8, DEAD);
+                    }
+                }
+                offset += length;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the CRC32 of the entry at the offset, without its checksum field.
+         */
+        private int checksum(int offset, int length) {
+            final ByteBuffer entry = slab.duplicate();
+            crc.reset();
+            entry.limit(offset + CHECKSUM).position(offset);
+            crc.update(entry);
+            entry.limit(offset + length).position(offset + HEADER);
+            crc.update(entry);
+            return (int) crc.getValue();
+        }
+
+        private void saveRingState() {
+            if (ringState != null) {
+                ringState.putInt(0, head);
+                ringState.putInt(4, tail);
+                ringState.putInt(8, limit);
+                ringState.putInt(12, wrapped ? 1 : 0);
+            }
+        }
+
+        /**
+         * Reserves {@code length} bytes at the tail, evicting the oldest entries until they fit.
+         */
+        private int allocate(int length) {
+            while (true) {
+                if (!wrapped) {
+                    if (capacity - tail >= length) {
+                        break;
+                    }
+                    if (head == tail) {
+                        // empty, start again at the beginning of the slab
+                        head = 0;
+                        tail = 0;
+                        continue;
+                    }
+                    limit = tail;
+                    tail = 0;
+                    wrapped = true;
+                } else if (head - tail >= length) {
+                    break;
+                } else {
+                    evictOldest();
+                }
+            }
+
+            final int offset = tail;
+            tail += length;
+            return offset;
+        }
+
+        private void evictOldest() {
+            final int length = slab.getInt(head);
+            final int hash = slab.getInt(head + 4);
+            for (int slot = home(hash); offsets[slot] != 0; slot = (slot + 1) & (offsets.length - 1)) {
+                if (offsets[slot] == head + 1) {
+                    removeSlot(slot);
+                    evictions++;
+                    break;
+                }
+            }
+
+            head += length;
+            if (head == limit) {
+                head = 0;
+                limit = capacity;
+                wrapped = false;
+            }
+        }
+
+        private int find(byte[] key, int hash) {
+            if (slab == null) {
+                return -1;
+            }
+            for (int slot = home(hash); offsets[slot] != 0; slot = (slot + 1) & (offsets.length - 1)) {
+                if (hashes[slot] == hash && keyEquals(offsets[slot] - 1, key)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the slot of another entry with the same key as the entry at the offset, or -1.
+         */
+        private int findEntry(int offset, int hash) {
+            final int keyLength = slab.getInt(offset + 16);
+            for (int slot = home(hash); offsets[slot] != 0; slot = (slot + 1) & (offsets.length - 1)) {
+                final int other = offsets[slot] - 1;
+                if (hashes[slot] == hash && slab.getInt(other + 16) == keyLength && keysEqual(offset, other, keyLength)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private boolean keysEqual(int offset, int other, int keyLength) {
+            for (int i = 0; i < keyLength; i++) {
+                if (slab.get(offset + HEADER + i) != slab.get(other + HEADER + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean keyEquals(int offset, byte[] key) {
+            if (slab.getInt(offset + 16) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(offset + HEADER + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insertSlot(int hash, int offset) {
+            if ((count + 1) * 2 > offsets.length) {
+                resize();
+            }
+            int slot = home(hash);
+            while (offsets[slot] != 0) {
+                slot = (slot + 1) & (offsets.length - 1);
+            }
+            hashes[slot] = hash;
+            offsets[slot] = offset + 1;
+            count++;
+        }
+
+        /**
+         * Frees the slot, marks its entry as dead and shifts later entries of the probe sequence back, so lookups
+         * never stop early.
+         */
+        private void removeSlot(int slot) {
+            slab.putLong(offsets[slot] - 1 + 8, DEAD);
+
+            final int mask = offsets.length - 1;
+            int free = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (offsets[next] == 0) {
+                    break;
+                }
+                final int home = home(hashes[next]);
+                final boolean between = free <= next ? free < home && home <= next : free < home || home <= next;
+                if (!between) {
+                    hashes[free] = hashes[next];
+                    offsets[free] = offsets[next];
+                    free = next;
+                }
+            }
+            offsets[free] = 0;
+            count--;
+        }
+
+        private void resize() {
+            final int[] oldHashes = hashes;
+            final int[] oldOffsets = offsets;
+            hashes = new int[oldOffsets.length * 2];
+            offsets = new int[oldOffsets.length * 2];
+            for (int i = 0; i < oldOffsets.length; i++) {
+                if (oldOffsets[i] != 0) {
+                    int slot = home(oldHashes[i]);
+                    while (offsets[slot] != 0) {
+                        slot = (slot + 1) & (offsets.length - 1);
+                    }
+                    hashes[slot] = oldHashes[i];
+                    offsets[slot] = oldOffsets[i];
+                }
+            }
+        }
+
+        private int home(int hash) {
+            return (hash ^ (hash >>> 16)) & (offsets.length - 1);
+        }
+    }
+}
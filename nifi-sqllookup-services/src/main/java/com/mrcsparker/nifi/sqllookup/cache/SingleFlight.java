@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import org.apache.nifi.lookup.LookupFailureException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent loads of the same key for caches that have no atomic compute of their own.
+ * The first thread to miss runs the loader, the others wait for its result.
+ */
+final class SingleFlight<T> {
+
+    private final ConcurrentMap<CacheKey, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+
+    T get(CacheKey key, Function<CacheKey, T> lookup, CacheLoader<T> loader, Store<T> store) throws LookupFailureException {
+        T value = lookup.apply(key);
+        if (value != null) {
+            return value;
+        }
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final CompletableFuture<T> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        try {
+            // another load may have finished between the lookup and claiming the key
+            value = lookup.apply(key);
+            if (value == null) {
+                value = loader.load(key);
+                if (value != null) {
+                    store.put(key, value);
+                }
+            }
+            future.complete(value);
+            return value;
+        } catch (final LookupFailureException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private T await(CompletableFuture<T> future) throws LookupFailureException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LookupFailureException(e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof LookupFailureException) {
+                throw (LookupFailureException) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    interface Store<T> {
+        void put(CacheKey key, T value);
+    }
+}
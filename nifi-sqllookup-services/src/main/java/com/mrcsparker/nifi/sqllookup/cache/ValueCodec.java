@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup.cache;
+
+import org.apache.nifi.serialization.record.Record;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary encoding of cached values for caches that keep them outside the Java heap.
+ */
+public interface ValueCodec<T> {
+
+    /**
+     * Writes the value, failing with an {@link IOException} for values the codec cannot represent.
+     */
+    void encode(T value, DataOutput out) throws IOException;
+
+    T decode(DataInput in) throws IOException;
+
+    /**
+     * Writes the tables that encoded values refer to, such as record schemas, so values encoded now can be decoded
+     * by another codec after {@link #readTables}.
+     */
+    default void writeTables(DataOutput out) throws IOException {
+    }
+
+    default void readTables(DataInput in) throws IOException {
+    }
+
+    /**
+     * Returns the number of entries in the tables. Tables only grow, so a changed size means they have to be
+     * written again.
+     */
+    default int tableSize() {
+        return 0;
+    }
+
+    /**
+     * Returns a codec for the value types of the lookup services, {@code String} and {@code Record}.
+     */
+    @SuppressWarnings("unchecked")
+    static <V> ValueCodec<V> forType(Class<V> valueType) {
+        if (valueType == String.class) {
+            return (ValueCodec<V>) new BinaryEncoding.StringCodec();
+        }
+        if (Record.class.isAssignableFrom(valueType)) {
+            return (ValueCodec<V>) new BinaryEncoding.RecordCodec();
+        }
+        throw new IllegalArgumentException("No codec for values of type " + valueType.getName());
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.MockRecordWriter;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
+import org.apache.nifi.serialization.record.type.RecordDataType;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestBatchLookupRecord extends AbstractSQLLookupServiceTest {
+
+    private MockRecordParser recordReader;
+
+    @Before
+    public void before() throws Exception {
+        runner = TestRunners.newTestRunner(BatchLookupRecord.class);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLLookupService
+        SQLLookupService sqlLookupService = new SQLLookupService();
+        runner.addControllerService("SQLLookupService", sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "value");
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_SIZE, "10");
+        runner.setProperty(sqlLookupService, SQLLookupService.BATCH_SIZE, "2");
+
+        recordReader = new MockRecordParser();
+        recordReader.addSchemaField("id", RecordFieldType.STRING);
+        recordReader.addSchemaField("qty", RecordFieldType.INT);
+
+        runner.addControllerService("reader", recordReader);
+        runner.addControllerService("writer", new MockRecordWriter(null, false));
+
+        runner.enableControllerService(dbcpService);
+        runner.enableControllerService(sqlLookupService);
+        runner.enableControllerService(recordReader);
+        runner.enableControllerService(runner.getControllerService("writer"));
+
+        runner.setProperty(BatchLookupRecord.RECORD_READER, "reader");
+        runner.setProperty(BatchLookupRecord.RECORD_WRITER, "writer");
+        runner.setProperty(BatchLookupRecord.LOOKUP_SERVICE, "SQLLookupService");
+        runner.setProperty(BatchLookupRecord.RESULT_FIELD, "title");
+        runner.setProperty(BatchLookupRecord.RECORD_BATCH_SIZE, "3");
+        runner.setProperty("name", "id");
+
+        setupDB();
+    }
+
+    @Test
+    public void testLookupRecords() {
+        recordReader.addRecord("547897511298456", 1);
+        recordReader.addRecord("notavalue", 2);
+        recordReader.addRecord("867142279069316", 3);
+        recordReader.addRecord(null, 4);
+        recordReader.addRecord("547897511298456", 5);
+
+        runner.enqueue("");
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(BatchLookupRecord.REL_SUCCESS, 1);
+        final MockFlowFile out = runner.getFlowFilesForRelationship(BatchLookupRecord.REL_SUCCESS).get(0);
+        out.assertAttributeEquals("record.count", "5");
+        out.assertContentEquals("547897511298456,1,Consider the Lilies\n"
+                        + "notavalue,2,\n"
+                        + "867142279069316,3,The Needles Eye\n"
+                        + ",4,\n"
+                        + "547897511298456,5,Consider the Lilies\n");
+
+        assertEquals(3, runner.getCounterValue(BatchLookupRecord.RECORDS_MATCHED_COUNTER).longValue());
+        assertEquals(2, runner.getCounterValue(BatchLookupRecord.RECORDS_UNMATCHED_COUNTER).longValue());
+        assertEquals(2, runner.getCounterValue(BatchLookupRecord.LOOKUP_BATCHES_COUNTER).longValue());
+    }
+
+    @Test
+    public void testRecordTypeFromLaterBatch() throws Exception {
+        final SQLRecordLookupService recordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", recordLookupService);
+        runner.setProperty(recordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(recordLookupService, SQLRecordLookupService.SQL_QUERY, "SELECT name, value FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.enableControllerService(recordLookupService);
+
+        final RecordCollector writer = new RecordCollector();
+        runner.addControllerService("collector", writer);
+        runner.enableControllerService(writer);
+
+        runner.setProperty(BatchLookupRecord.LOOKUP_SERVICE, "SQLRecordLookupService");
+        runner.setProperty(BatchLookupRecord.RECORD_WRITER, "collector");
+        runner.setProperty(BatchLookupRecord.RECORD_BATCH_SIZE, "1");
+
+        recordReader.addRecord("notavalue", 1);
+        recordReader.addRecord("547897511298456", 2);
+
+        runner.enqueue("");
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(BatchLookupRecord.REL_SUCCESS, 1);
+        assertEquals(2, writer.records.size());
+        assertNull(writer.records.get(0).getValue("title"));
+        assertEquals("Consider the Lilies", ((Record) writer.records.get(1).getValue("title")).getAsString("VALUE"));
+
+        // the schema the writer was created with keeps the fields of the looked up records
+        final DataType titleType = writer.schema.getField("title").get().getDataType();
+        assertTrue(((RecordDataType) titleType).getChildSchema().getField("VALUE").isPresent());
+    }
+
+    @Test
+    public void testRecordTypeFallsBackAfterOneBatch() throws Exception {
+        final SQLRecordLookupService recordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", recordLookupService);
+        runner.setProperty(recordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(recordLookupService, SQLRecordLookupService.SQL_QUERY, "SELECT name, value FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.enableControllerService(recordLookupService);
+
+        final RecordCollector writer = new RecordCollector();
+        runner.addControllerService("collector", writer);
+        runner.enableControllerService(writer);
+
+        runner.setProperty(BatchLookupRecord.LOOKUP_SERVICE, "SQLRecordLookupService");
+        runner.setProperty(BatchLookupRecord.RECORD_WRITER, "collector");
+        runner.setProperty(BatchLookupRecord.RECORD_BATCH_SIZE, "1");
+
+        recordReader.addRecord("notavalue", 1);
+        recordReader.addRecord("notavalue", 2);
+        recordReader.addRecord("547897511298456", 3);
+
+        runner.enqueue("");
+        runner.run();
+
+        // only one batch is held back waiting for a match, then the declared type is used
+        runner.assertAllFlowFilesTransferred(BatchLookupRecord.REL_SUCCESS, 1);
+        assertEquals(3, writer.records.size());
+        final DataType titleType = writer.schema.getField("title").get().getDataType();
+        assertEquals(0, ((RecordDataType) titleType).getChildSchema().getFieldCount());
+        assertEquals(1, runner.getCounterValue(BatchLookupRecord.RECORDS_MATCHED_COUNTER).longValue());
+    }
+
+    @Test
+    public void testMissingCoordinateProperty() {
+        runner.removeProperty(runner.getProcessor().getPropertyDescriptor("name"));
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testLookupFailure() throws Exception {
+        try (final Connection con = ((DBCPService) runner.getControllerService("dbcpService")).getConnection();
+             final Statement stmt = con.createStatement()) {
+            stmt.execute("drop table TEST_LOOKUP_DB");
+        }
+        recordReader.addRecord("547897511298456", 1);
+
+        runner.enqueue("");
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(BatchLookupRecord.REL_FAILURE, 1);
+    }
+
+    /**
+     * Keeps the records written and the schema the writer was created with.
+     */
+    private static class RecordCollector extends AbstractControllerService implements RecordSetWriterFactory {
+
+        private final List<Record> records = new ArrayList<>();
+        private RecordSchema schema;
+
+        @Override
+        public RecordSchema getSchema(final Map<String, String> variables, final RecordSchema readSchema) {
+            return readSchema;
+        }
+
+        @Override
+        public RecordSetWriter createWriter(final ComponentLog logger, final RecordSchema schema, final OutputStream out,
+                        final Map<String, String> variables) {
+            this.schema = schema;
+            return new RecordSetWriter() {
+                @Override
+                public WriteResult write(final RecordSet recordSet) throws IOException {
+                    Record record;
+                    while ((record = recordSet.next()) != null) {
+                        write(record);
+                    }
+                    return finishRecordSet();
+                }
+
+                @Override
+                public WriteResult write(final Record record) {
+                    records.add(record);
+                    return WriteResult.of(1, Collections.emptyMap());
+                }
+
+                @Override
+                public void beginRecordSet() {
+                }
+
+                @Override
+                public WriteResult finishRecordSet() {
+                    return WriteResult.of(records.size(), Collections.emptyMap());
+                }
+
+                @Override
+                public String getMimeType() {
+                    return "application/octet-stream";
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.Cache2kAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.CacheAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import com.mrcsparker.nifi.sqllookup.cache.CacheSettings;
+import com.mrcsparker.nifi.sqllookup.cache.CaffeineAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.EncodedValueAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.GuavaAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.OffHeapAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.ValueCodec;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TestCacheAdapterSingleFlight {
+
+    private static final int THREADS = 8;
+
+    private final CacheKey key = new CacheKey("SELECT * FROM TEST_LOOKUP_DB WHERE name = :name",
+                    new String[] { "name" }, new Object[] { "547897511298456" });
+
+    @Test
+    public void testCaffeine() throws Exception {
+        assertSingleFlight(new CaffeineAdapter<>(10));
+        assertMiss(new CaffeineAdapter<>(10));
+        assertFailure(new CaffeineAdapter<>(10));
+    }
+
+    @Test
+    public void testGuava() throws Exception {
+        assertSingleFlight(new GuavaAdapter<>(10));
+        assertMiss(new GuavaAdapter<>(10));
+        assertFailure(new GuavaAdapter<>(10));
+    }
+
+    @Test
+    public void testCache2k() throws Exception {
+        assertSingleFlight(new Cache2kAdapter<>(10, String.class));
+        assertMiss(new Cache2kAdapter<>(10, String.class));
+        assertFailure(new Cache2kAdapter<>(10, String.class));
+    }
+
+    @Test
+    public void testOffHeap() throws Exception {
+        assertSingleFlight(offHeap());
+        assertMiss(offHeap());
+        assertFailure(offHeap());
+    }
+
+    @Test
+    public void testEncodedValues() throws Exception {
+        assertSingleFlight(encoded());
+        assertMiss(encoded());
+        assertFailure(encoded());
+    }
+
+    private static CacheAdapter<String> encoded() {
+        return new EncodedValueAdapter<>(ValueCodec.forType(String.class), new CaffeineAdapter<>(10));
+    }
+
+    private static CacheAdapter<String> offHeap() {
+        return new OffHeapAdapter<>(CacheSettings.ofSize(10), ValueCodec.forType(String.class), 1 << 20, 0, null);
+    }
+
+    private void assertSingleFlight(final CacheAdapter<String> cache) throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(THREADS);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(() -> {
+                    started.countDown();
+                    started.await();
+                    return cache.get(key, k -> {
+                        loads.incrementAndGet();
+                        sleep();
+                        return "Consider the Lilies";
+                    });
+                }));
+            }
+
+            for (final Future<String> future : futures) {
+                assertEquals("Consider the Lilies", future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals("Consider the Lilies", cache.get(key));
+    }
+
+    private void assertMiss(final CacheAdapter<String> cache) throws Exception {
+        assertNull(cache.get(key, k -> null));
+        assertNull(cache.get(key));
+        assertEquals(0, cache.estimatedSize());
+    }
+
+    private void assertFailure(final CacheAdapter<String> cache) {
+        final LookupFailureException failure = new LookupFailureException("database is down");
+        try {
+            cache.get(key, k -> {
+                throw failure;
+            });
+            fail("lookup failure was not propagated");
+        } catch (final LookupFailureException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(200);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
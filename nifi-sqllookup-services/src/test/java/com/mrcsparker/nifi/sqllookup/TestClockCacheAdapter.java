@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import com.mrcsparker.nifi.sqllookup.cache.CacheSettings;
+import com.mrcsparker.nifi.sqllookup.cache.ClockCacheAdapter;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestClockCacheAdapter {
+
+    private static final String QUERY = "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name";
+
+    @Test
+    public void testMaximumSize() {
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(CacheSettings.ofSize(100), null);
+        for (int i = 0; i < 1000; i++) {
+            cache.set(key(i), "value" + i);
+        }
+
+        assertTrue(cache.estimatedSize() <= 100);
+        assertEquals(1000 - cache.estimatedSize(), cache.evictionCount());
+        assertEquals(cache.estimatedSize(), cache.asMap().size());
+        assertEquals("value999", cache.get(key(999)));
+    }
+
+    @Test
+    public void testKeepsReferencedEntries() {
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(CacheSettings.ofSize(16), null);
+        for (int i = 0; i < 16; i++) {
+            cache.set(key(i), "value" + i);
+        }
+        for (int i = 0; i < 8; i++) {
+            cache.get(key(i));
+        }
+
+        for (int i = 16; i < 24; i++) {
+            cache.set(key(i), "value" + i);
+        }
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals("value" + i, cache.get(key(i)));
+        }
+        assertEquals(16, cache.estimatedSize());
+        assertEquals(8, cache.evictionCount());
+    }
+
+    @Test
+    public void testMaximumWeight() {
+        final CacheSettings settings = new CacheSettings.Builder()
+                        .maximumSize(1)
+                        .maximumWeight(100, (key, value) -> ((String) value).length())
+                        .build();
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(settings, null);
+        for (int i = 0; i < 50; i++) {
+            cache.set(key(i), "0123456789");
+        }
+
+        assertEquals(10, cache.estimatedSize());
+    }
+
+    @Test
+    public void testEntryHeavierThanSegmentShare() {
+        // at least four segments, so each would get a quarter of the limit at most
+        final CacheSettings settings = new CacheSettings.Builder()
+                        .maximumSize(1)
+                        .maximumWeight(1 << 20, (key, value) -> ((String) value).length())
+                        .build();
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(settings, null);
+        final String heavy = repeat('x', 600 * 1024);
+        cache.set(key(0), heavy);
+        for (int i = 1; i <= 100; i++) {
+            cache.set(key(i), "value" + i);
+        }
+
+        assertEquals(heavy, cache.get(key(0)));
+        assertEquals(101, cache.estimatedSize());
+        assertEquals(0, cache.evictionCount());
+
+        // the limit applies to the whole cache, so two heavy entries do not fit
+        cache.set(key(200), repeat('y', 600 * 1024));
+        assertTrue(cache.get(key(0)) == null || cache.get(key(200)) == null);
+    }
+
+    @Test
+    public void testEntryHeavierThanLimitNotCached() {
+        final CacheSettings settings = new CacheSettings.Builder()
+                        .maximumSize(1)
+                        .maximumWeight(100, (key, value) -> ((String) value).length())
+                        .build();
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(settings, null);
+        cache.set(key(1), "one");
+        cache.set(key(2), repeat('x', 101));
+
+        assertNull(cache.get(key(2)));
+        assertEquals("one", cache.get(key(1)));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void testReplaceAndDelete() {
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(CacheSettings.ofSize(10), null);
+        cache.set(key(1), "one");
+        cache.set(key(1), "uno");
+        assertEquals("uno", cache.get(key(1)));
+        assertEquals(1, cache.estimatedSize());
+
+        cache.delete(key(1));
+        assertNull(cache.get(key(1)));
+        assertEquals(0, cache.estimatedSize());
+
+        cache.set(key(2), "two");
+        cache.cleanUp();
+        assertNull(cache.get(key(2)));
+        assertEquals(0, cache.estimatedSize());
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        final CacheSettings settings = new CacheSettings.Builder().maximumSize(10).expireAfterWrite(1).build();
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(settings, null);
+        cache.set(key(1), "one");
+
+        Thread.sleep(5);
+        assertNull(cache.get(key(1)));
+        assertEquals(0, cache.estimatedSize());
+    }
+
+    @Test
+    public void testRefreshAfterWrite() throws Exception {
+        // runs reloads on the reading thread, so they are done when get returns
+        final CacheSettings settings = new CacheSettings.Builder().maximumSize(10).refreshAfterWrite(50, Runnable::run).build();
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(settings, key -> "reloaded");
+        cache.set(key(1), "one");
+        assertEquals("one", cache.get(key(1)));
+
+        Thread.sleep(60);
+        assertEquals("one", cache.get(key(1)));
+        assertEquals("reloaded", cache.get(key(1)));
+    }
+
+    @Test
+    public void testEmptyRefreshRemovesEntry() throws Exception {
+        final CacheSettings settings = new CacheSettings.Builder().maximumSize(10).refreshAfterWrite(50, Runnable::run).build();
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(settings, key -> null);
+        cache.set(key(1), "one");
+
+        Thread.sleep(60);
+        // the read that starts the reload still gets the old value
+        assertEquals("one", cache.get(key(1)));
+        assertNull(cache.get(key(1)));
+        assertEquals(0, cache.estimatedSize());
+    }
+
+    @Test
+    public void testFailedRefreshWaitsAnInterval() throws Exception {
+        final AtomicInteger reloads = new AtomicInteger();
+        final CacheSettings settings = new CacheSettings.Builder().maximumSize(10).refreshAfterWrite(200, Runnable::run).build();
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(settings, key -> {
+            reloads.incrementAndGet();
+            throw new LookupFailureException("database is down");
+        });
+        cache.set(key(1), "one");
+
+        Thread.sleep(250);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("one", cache.get(key(1)));
+        }
+        assertEquals(1, reloads.get());
+
+        Thread.sleep(250);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("one", cache.get(key(1)));
+        }
+        assertEquals(2, reloads.get());
+    }
+
+    @Test
+    public void testLoaderRunsOnMiss() throws Exception {
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(CacheSettings.ofSize(10), null);
+        assertEquals("loaded", cache.get(key(1), key -> "loaded"));
+        assertEquals("loaded", cache.get(key(1), key -> "reloaded"));
+        assertNull(cache.get(key(2), key -> null));
+        assertEquals(1, cache.estimatedSize());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final ClockCacheAdapter<String> cache = new ClockCacheAdapter<>(CacheSettings.ofSize(256), null);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                futures.add(executor.submit(() -> {
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 20000; i++) {
+                        final int id = random.nextInt(1024);
+                        final String value = cache.get(key(id));
+                        if (value == null) {
+                            cache.set(key(id), "value" + id);
+                        } else {
+                            assertEquals("value" + id, value);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(cache.estimatedSize() <= 256);
+        assertEquals(cache.estimatedSize(), cache.asMap().size());
+        for (final CacheKey key : cache.asMap().keySet()) {
+            assertNotNull(cache.get(key));
+        }
+    }
+
+    private static String repeat(final char c, final int length) {
+        final char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static CacheKey key(final int id) {
+        return new CacheKey(QUERY, new String[] { "name" }, new Object[] { String.valueOf(id) });
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import com.mrcsparker.nifi.sqllookup.cache.CacheSettings;
+import com.mrcsparker.nifi.sqllookup.cache.MappedFileAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.OffHeapAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.ValueCodec;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestOffHeapAdapter {
+
+    private static final String QUERY = "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordValues() {
+        final RecordSchema schema = new SimpleRecordSchema(Arrays.asList(
+                        new RecordField("NAME", RecordFieldType.STRING.getDataType()),
+                        new RecordField("PERIOD", RecordFieldType.INT.getDataType()),
+                        new RecordField("PRICE", RecordFieldType.DECIMAL.getDecimalDataType(10, 2)),
+                        new RecordField("UPDATED", RecordFieldType.TIMESTAMP.getDataType()),
+                        new RecordField("TAGS", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.STRING.getDataType())),
+                        new RecordField("MISSING", RecordFieldType.STRING.getDataType())));
+        final Map<String, Object> values = new LinkedHashMap<>();
+        values.put("NAME", "Françoise Sagan");
+        values.put("PERIOD", 9);
+        values.put("PRICE", new BigDecimal("-24.67"));
+        values.put("UPDATED", new Timestamp(1500000000123L));
+        values.put("TAGS", new Object[] { "a", null, "c" });
+        values.put("MISSING", null);
+
+        final OffHeapAdapter<Record> cache = new OffHeapAdapter<>(CacheSettings.ofSize(10), ValueCodec.forType(Record.class),
+                        1 << 20, 0, null);
+        cache.set(key("443771414357476"), new MapRecord(schema, values));
+
+        final Record record = cache.get(key("443771414357476"));
+        assertEquals(schema, record.getSchema());
+        assertEquals("Françoise Sagan", record.getValue("NAME"));
+        assertEquals(9, record.getValue("PERIOD"));
+        assertEquals(new BigDecimal("-24.67"), record.getValue("PRICE"));
+        assertEquals(new Timestamp(1500000000123L), record.getValue("UPDATED"));
+        assertArrayEquals(new Object[] { "a", null, "c" }, (Object[]) record.getValue("TAGS"));
+        assertNull(record.getValue("MISSING"));
+    }
+
+    @Test
+    public void testTimeAndUuidValues() {
+        final RecordSchema schema = new SimpleRecordSchema(Arrays.asList(
+                        new RecordField("DAY", RecordFieldType.DATE.getDataType()),
+                        new RecordField("AT", RecordFieldType.TIME.getDataType()),
+                        new RecordField("LOCAL", RecordFieldType.TIMESTAMP.getDataType()),
+                        new RecordField("INSTANT", RecordFieldType.TIMESTAMP.getDataType()),
+                        new RecordField("OFFSET", RecordFieldType.TIMESTAMP.getDataType()),
+                        new RecordField("OFFSET_TIME", RecordFieldType.TIME.getDataType()),
+                        new RecordField("ZONED", RecordFieldType.TIMESTAMP.getDataType()),
+                        new RecordField("ID", RecordFieldType.STRING.getDataType())));
+        final Map<String, Object> values = new LinkedHashMap<>();
+        values.put("DAY", LocalDate.of(1954, 3, 15));
+        values.put("AT", LocalTime.of(23, 59, 1, 123456789));
+        values.put("LOCAL", LocalDateTime.of(1954, 3, 15, 23, 59, 1, 123456789));
+        values.put("INSTANT", Instant.ofEpochSecond(1500000000L, 987654321));
+        values.put("OFFSET", OffsetDateTime.of(1954, 3, 15, 23, 59, 1, 0, ZoneOffset.ofHours(-5)));
+        values.put("OFFSET_TIME", OffsetTime.of(23, 59, 1, 0, ZoneOffset.ofHoursMinutes(5, 30)));
+        values.put("ZONED", ZonedDateTime.of(2021, 10, 31, 2, 30, 0, 0, ZoneId.of("Europe/Paris")).withLaterOffsetAtOverlap());
+        values.put("ID", UUID.fromString("0f8fad5b-d9cb-469f-a165-70867728950e"));
+
+        final OffHeapAdapter<Record> cache = new OffHeapAdapter<>(CacheSettings.ofSize(10), ValueCodec.forType(Record.class),
+                        1 << 20, 0, null);
+        cache.set(key("443771414357476"), new MapRecord(schema, values));
+
+        final Record record = cache.get(key("443771414357476"));
+        for (final Map.Entry<String, Object> value : values.entrySet()) {
+            assertEquals(value.getKey(), value.getValue(), record.getValue(value.getKey()));
+        }
+    }
+
+    @Test
+    public void testUnsupportedValueNotCached() {
+        final RecordSchema schema = new SimpleRecordSchema(Collections.singletonList(
+                        new RecordField("LENGTH", RecordFieldType.STRING.getDataType())));
+        final OffHeapAdapter<Record> cache = new OffHeapAdapter<>(CacheSettings.ofSize(10), ValueCodec.forType(Record.class),
+                        1 << 20, 0, null);
+
+        cache.set(key("443771414357476"), new MapRecord(schema, Collections.singletonMap("LENGTH", Duration.ofMinutes(5))));
+        assertNull(cache.get(key("443771414357476")));
+        assertEquals(0, cache.estimatedSize());
+    }
+
+    @Test
+    public void testEvictsOldestEntries() {
+        // 16 segments of 4 KB
+        final OffHeapAdapter<String> cache = new OffHeapAdapter<>(CacheSettings.ofSize(10), ValueCodec.forType(String.class),
+                        64 * 1024, 0, null);
+        final char[] chars = new char[100];
+        Arrays.fill(chars, 'x');
+        final String value = new String(chars);
+
+        for (int i = 0; i < 10000; i++) {
+            cache.set(key(String.valueOf(i)), value + i);
+        }
+
+        assertTrue(cache.estimatedSize() > 100);
+        assertTrue(cache.estimatedSize() < 1000);
+        assertEquals(value + 9999, cache.get(key("9999")));
+        assertNull(cache.get(key("0")));
+        assertEquals(cache.estimatedSize(), cache.asMap().size());
+
+        // replacing and deleting keeps the index consistent while the ring wraps
+        for (int i = 0; i < 10000; i++) {
+            cache.set(key(String.valueOf(i % 50)), value + i);
+            if (i % 7 == 0) {
+                cache.delete(key(String.valueOf(i % 50)));
+            }
+        }
+        assertEquals(value + 9999, cache.get(key("49")));
+        assertEquals(value + 9950, cache.get(key("0")));
+        assertNull(cache.get(key("4")));
+        assertEquals(cache.estimatedSize(), cache.asMap().size());
+    }
+
+    @Test
+    public void testValueLargerThanSegment() {
+        final OffHeapAdapter<String> cache = new OffHeapAdapter<>(CacheSettings.ofSize(10), ValueCodec.forType(String.class),
+                        16 * 1024, 0, null);
+        cache.set(key("547897511298456"), new String(new char[2048]).replace('\0', 'x'));
+        assertNull(cache.get(key("547897511298456")));
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        final OffHeapAdapter<String> cache = new OffHeapAdapter<>(new CacheSettings.Builder()
+                        .maximumSize(10)
+                        .expireAfterWrite(100)
+                        .build(), ValueCodec.forType(String.class), 1 << 20, 5, null);
+        cache.set(key("547897511298456"), "Consider the Lilies");
+        assertEquals("Consider the Lilies", cache.get(key("547897511298456")));
+
+        Thread.sleep(200);
+        assertNull(cache.get(key("547897511298456")));
+        assertEquals(0, cache.estimatedSize());
+    }
+
+    @Test
+    public void testMappedFileReopened() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final char[] chars = new char[100];
+        Arrays.fill(chars, 'x');
+        final String value = new String(chars);
+
+        final MappedFileAdapter<String> cache = openMapped(directory, "v1");
+        for (int i = 0; i < 10000; i++) {
+            cache.set(key(String.valueOf(i % 500)), value + i);
+            if (i % 7 == 0) {
+                cache.delete(key(String.valueOf(i % 500)));
+            }
+        }
+        final Map<CacheKey, String> entries = cache.asMap();
+        cache.cleanUp();
+
+        // the ring has wrapped and holds dead entries, only the live ones come back
+        final MappedFileAdapter<String> reopened = openMapped(directory, "v1");
+        assertEquals(entries, reopened.asMap());
+        assertEquals(value + 9999, reopened.get(key("499")));
+        reopened.set(key("new"), "Consider the Lilies");
+        assertEquals("Consider the Lilies", reopened.get(key("new")));
+        reopened.cleanUp();
+
+        assertEquals(0, openMapped(directory, "v2").estimatedSize());
+    }
+
+    @Test
+    public void testMappedFileNotCleanedUp() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final MappedFileAdapter<String> cache = openMapped(directory, "v1");
+        cache.set(key("547897511298456"), "Consider the Lilies");
+        cache.flush();
+
+        // as if the previous run had crashed
+        final MappedFileAdapter<String> reopened = openMapped(directory, "v1");
+        assertEquals("Consider the Lilies", reopened.get(key("547897511298456")));
+        reopened.cleanUp();
+        cache.cleanUp();
+    }
+
+    @Test
+    public void testMappedFileCorruptEntriesDropped() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final MappedFileAdapter<String> cache = openMapped(directory, "v1");
+        cache.set(key("547897511298456"), "Consider the Lilies");
+        cache.cleanUp();
+
+        // as if the entry had not reached the disk intact
+        final Path dataFile = directory.resolve("test.data");
+        final byte[] data = Files.readAllBytes(dataFile);
+        final byte[] value = "Consider the Lilies".getBytes(StandardCharsets.UTF_8);
+        final int at = indexOf(data, value);
+        assertTrue(at >= 0);
+        data[at + 9] ^= 0x20;
+        Files.write(dataFile, data);
+
+        final MappedFileAdapter<String> reopened = openMapped(directory, "v1");
+        assertNull(reopened.get(key("547897511298456")));
+        assertEquals(0, reopened.estimatedSize());
+        reopened.cleanUp();
+    }
+
+    @Test
+    public void testMappedRecordsNotCleanedUp() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final RecordSchema schema = new SimpleRecordSchema(Arrays.asList(
+                        new RecordField("NAME", RecordFieldType.STRING.getDataType()),
+                        new RecordField("PERIOD", RecordFieldType.INT.getDataType())));
+        final Map<String, Object> values = new LinkedHashMap<>();
+        values.put("NAME", "Françoise Sagan");
+        values.put("PERIOD", 9);
+
+        final MappedFileAdapter<Record> cache = MappedFileAdapter.open(CacheSettings.ofSize(10),
+                        ValueCodec.forType(Record.class), directory, "test", new byte[0], 64 * 1024, 0, null);
+        // the schema is new to the file, so the meta file is written again before the record is stored
+        cache.set(key("443771414357476"), new MapRecord(schema, values));
+
+        final MappedFileAdapter<Record> reopened = MappedFileAdapter.open(CacheSettings.ofSize(10),
+                        ValueCodec.forType(Record.class), directory, "test", new byte[0], 64 * 1024, 0, null);
+        final Record record = reopened.get(key("443771414357476"));
+        assertEquals(schema, record.getSchema());
+        assertEquals("Françoise Sagan", record.getValue("NAME"));
+        assertEquals(9, record.getValue("PERIOD"));
+        reopened.cleanUp();
+        cache.cleanUp();
+    }
+
+    private static MappedFileAdapter<String> openMapped(final Path directory, final String fingerprint) throws IOException {
+        return MappedFileAdapter.open(CacheSettings.ofSize(10), ValueCodec.forType(String.class), directory, "test",
+                        fingerprint.getBytes(StandardCharsets.UTF_8), 64 * 1024, 0, null);
+    }
+
+    private static int indexOf(final byte[] data, final byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static CacheKey key(final String name) {
+        return new CacheKey(QUERY, new String[] { "name" }, new Object[] { name });
+    }
+}
@@ -18,19 +18,24 @@
 package com.mrcsparker.nifi.sqllookup;
 
 import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.lookup.LookupFailureException;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestSQLLookupService extends AbstractSQLLookupServiceTest {
 
@@ -65,7 +70,7 @@ public class TestSQLLookupService extends AbstractSQLLookupServiceTest {
 
     @Test
     public void testCorrectKeys() throws Exception {
-        assertEquals(sqlLookupService.getRequiredKeys(), Collections.emptySet());
+        assertEquals(sqlLookupService.getRequiredKeys(), Collections.singleton("name"));
     }
 
     @Test
@@ -120,6 +125,66 @@ public class TestSQLLookupService extends AbstractSQLLookupServiceTest {
         assertEquals("Cabbages and Kings", get1.get());
     }
 
+    @Test
+    public void testMultiValueRequiredKeys() throws Exception {
+        runner.disableControllerService(sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY,
+                        "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name AND (address = :address OR :address IS NULL)");
+        runner.assertValid(sqlLookupService);
+        runner.enableControllerService(sqlLookupService);
+
+        assertEquals(new HashSet<>(Arrays.asList("name", "address")), sqlLookupService.getRequiredKeys());
+    }
+
+    @Test(expected = LookupFailureException.class)
+    public void testMissingCoordinate() throws Exception {
+        runner.disableControllerService(sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY,
+                        "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name AND address = :address");
+        runner.enableControllerService(sqlLookupService);
+
+        sqlLookupService.lookup(Collections.singletonMap("name", "990192861112958"));
+    }
+
+    @Test(expected = LookupFailureException.class)
+    public void testFailOnMultipleRows() throws Exception {
+        runner.disableControllerService(sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE value = :value");
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "NAME");
+        runner.setProperty(sqlLookupService, SQLLookupService.ROW_POLICY, SQLLookupService.ROW_POLICY_FAIL);
+        runner.enableControllerService(sqlLookupService);
+
+        assertEquals(Optional.of("333252881485580"), sqlLookupService.lookup(Collections.singletonMap("value", "A Catskill Eagle")));
+        sqlLookupService.lookup(Collections.singletonMap("value", "All Passion Spent"));
+    }
+
+    @Test
+    public void testFailOnMultipleRowsBatch() throws Exception {
+        runner.disableControllerService(sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE value = :value");
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "NAME");
+        runner.setProperty(sqlLookupService, SQLLookupService.ROW_POLICY, SQLLookupService.ROW_POLICY_FAIL);
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_SIZE, "10");
+        runner.setProperty(sqlLookupService, SQLLookupService.NEGATIVE_CACHE_SIZE, "10");
+        runner.enableControllerService(sqlLookupService);
+
+        try {
+            sqlLookupService.lookupAll(Arrays.asList(Collections.singletonMap("value", "A Catskill Eagle"),
+                            Collections.singletonMap("value", "All Passion Spent"),
+                            Collections.singletonMap("value", "notavalue")));
+            fail("the batch lookup matched three rows for one position");
+        } catch (final LookupFailureException e) {
+            assertTrue(e.getMessage().contains("All Passion Spent"));
+            assertFalse(e.getMessage().contains("A Catskill Eagle"));
+        }
+
+        // only the offending coordinates failed, the others were loaded and cached
+        assertEquals(1, sqlLookupService.getCacheSize());
+        assertEquals(1, sqlLookupService.getNegativeCacheSize());
+        assertEquals(Optional.of("333252881485580"), sqlLookupService.lookup(Collections.singletonMap("value", "A Catskill Eagle")));
+        assertEquals(1, sqlLookupService.getStats().getLoads());
+    }
+
     @Test
     public void testEmptyLookup() throws Exception {
         Map<String, Object> criteria = new HashMap<>();
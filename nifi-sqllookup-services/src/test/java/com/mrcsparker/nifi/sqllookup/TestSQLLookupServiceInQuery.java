@@ -45,7 +45,7 @@ public class TestSQLLookupServiceInQuery extends AbstractSQLLookupServiceTest {
 
     @Test
     public void testCorrectKeys() throws Exception {
-        assertEquals(Collections.emptySet(), sqlNamedLookupService.getRequiredKeys());
+        assertEquals(Collections.singleton("name"), sqlNamedLookupService.getRequiredKeys());
     }
 
     @Test
@@ -17,13 +17,16 @@
 
 package com.mrcsparker.nifi.sqllookup;
 
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
 import org.apache.nifi.dbcp.DBCPService;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -119,6 +122,41 @@ public class TestSQLLookupServiceWithCache extends AbstractSQLLookupServiceTest
         assertEquals(sqlLookupService.getCacheSize(), 10);
     }
 
+    @Test
+    public void testCacheKeyCollision() throws Exception {
+        // "Aa" and "BB" have the same String hash code
+        final CacheKey key1 = CacheKey.of(sqlLookupService.sqlQuery, Collections.singletonMap("name", "Aa"));
+        final CacheKey key2 = CacheKey.of(sqlLookupService.sqlQuery, Collections.singletonMap("name", "BB"));
+        assertEquals(key1.hashCode(), key2.hashCode());
+        assertNotEquals(key1, key2);
+
+        Map<String, Object> criteria1 = new HashMap<>();
+        criteria1.put("name", "458006613841984");
+        criteria1.put("period", 2);
+        Map<String, Object> criteria2 = new HashMap<>();
+        criteria2.put("period", 2);
+        criteria2.put("name", "458006613841984");
+        assertEquals(CacheKey.of(sqlLookupService.sqlQuery, criteria1), CacheKey.of(sqlLookupService.sqlQuery, criteria2));
+    }
+
+    @Test
+    public void testLookupAll() throws Exception {
+        sqlLookupService.lookup(Collections.singletonMap("name", "458006613841984"));
+        assertEquals(sqlLookupService.getCacheSize(), 1);
+
+        final List<Optional<String>> results = sqlLookupService.lookupAll(Arrays.asList(
+                        Collections.singletonMap("name", "458006613841984"),
+                        Collections.singletonMap("name", "456148015917293"),
+                        Collections.singletonMap("name", "notavalue"),
+                        Collections.singletonMap("name", "is-a-null")));
+
+        assertEquals(Optional.of("The Glory and the Dream"), results.get(0));
+        assertEquals(Optional.of("The Wealth of Nations"), results.get(1));
+        assertFalse(results.get(2).isPresent());
+        assertFalse(results.get(3).isPresent());
+        assertEquals(sqlLookupService.getCacheSize(), 2);
+    }
+
     @Test
     public void testRecordLookupEmpty() throws Exception {
         Optional<String> key = sqlLookupService.lookup(Collections.singletonMap("name", "is-a-null"));
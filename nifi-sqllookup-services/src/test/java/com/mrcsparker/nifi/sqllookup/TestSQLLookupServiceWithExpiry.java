@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSQLLookupServiceWithExpiry extends AbstractSQLLookupServiceTest {
+
+    private static final Map<String, Object> CRITERIA = Collections.singletonMap("name", "547897511298456");
+
+    private SQLLookupService sqlLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLLookupService
+        sqlLookupService = new SQLLookupService();
+        runner.addControllerService("SQLLookupService", sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_SIZE, "10");
+
+        runner.enableControllerService(dbcpService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        for (final AllowableValue library : libraries()) {
+            setupDB();
+            configure(library, SQLLookupService.CACHE_EXPIRE_AFTER_WRITE, "200 millis");
+
+            assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+            updateValue("Consider the Lilies, Revised");
+            assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+
+            Thread.sleep(400);
+            assertEquals(library.getValue(), "Consider the Lilies, Revised", awaitValue("Consider the Lilies, Revised"));
+        }
+    }
+
+    @Test
+    public void testExpireAfterAccess() throws Exception {
+        configure(SQLLookupService.CACHING_LIBRARY_CAFFEINE, SQLLookupService.CACHE_EXPIRE_AFTER_ACCESS, "200 millis");
+
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+        updateValue("Consider the Lilies, Revised");
+
+        Thread.sleep(400);
+        assertEquals("Consider the Lilies, Revised", sqlLookupService.lookup(CRITERIA).get());
+    }
+
+    @Test
+    public void testRefreshAfterWrite() throws Exception {
+        for (final AllowableValue library : libraries()) {
+            setupDB();
+            configure(library, SQLLookupService.CACHE_REFRESH_AFTER_WRITE, "200 millis");
+
+            assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+            updateValue("Consider the Lilies, Revised");
+            Thread.sleep(400);
+
+            // the stale value is served while the reload runs in the background
+            assertEquals(library.getValue(), "Consider the Lilies, Revised", awaitValue("Consider the Lilies, Revised"));
+        }
+    }
+
+    @Test
+    public void testValidation() {
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHING_LIBRARY, SQLLookupService.CACHING_LIBRARY_CACHE2k);
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_EXPIRE_AFTER_ACCESS, "1 min");
+        runner.assertNotValid(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHING_LIBRARY, SQLLookupService.CACHING_LIBRARY_CAFFEINE);
+        runner.assertValid(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_EXPIRE_AFTER_WRITE, "1 min");
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_REFRESH_AFTER_WRITE, "1 min");
+        runner.assertNotValid(sqlLookupService);
+    }
+
+    @Test
+    public void testOnDisabled() throws Exception {
+        configure(SQLLookupService.CACHING_LIBRARY_CAFFEINE, SQLLookupService.CACHE_REFRESH_AFTER_WRITE, "1 min");
+        sqlLookupService.lookup(CRITERIA);
+
+        runner.disableControllerService(sqlLookupService);
+        assertEquals(null, sqlLookupService.refreshExecutor);
+    }
+
+    private void configure(final AllowableValue library, final PropertyDescriptor property,
+                    final String value) {
+        if (runner.isControllerServiceEnabled(sqlLookupService)) {
+            runner.disableControllerService(sqlLookupService);
+        }
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHING_LIBRARY, library);
+        runner.setProperty(sqlLookupService, property, value);
+        runner.enableControllerService(sqlLookupService);
+    }
+
+    /**
+     * Looks the value up until it changes to the expected one. Until then only the old value may be returned.
+     */
+    private String awaitValue(final String expected) throws Exception {
+        String value = sqlLookupService.lookup(CRITERIA).get();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!expected.equals(value) && System.currentTimeMillis() < deadline) {
+            assertEquals("Consider the Lilies", value);
+            Thread.sleep(50);
+            value = sqlLookupService.lookup(CRITERIA).get();
+        }
+        return value;
+    }
+
+    private void updateValue(final String value) throws Exception {
+        try (final Connection con = ((DBCPService) runner.getControllerService("dbcpService")).getConnection();
+             final Statement stmt = con.createStatement()) {
+            stmt.execute("update TEST_LOOKUP_DB set value = '" + value.replace("'", "''") + "' where name = '547897511298456'");
+        }
+    }
+
+    private static Iterable<AllowableValue> libraries() {
+        return Arrays.asList(SQLLookupService.CACHING_LIBRARY_CAFFEINE, SQLLookupService.CACHING_LIBRARY_CACHE2k,
+                        SQLLookupService.CACHING_LIBRARY_GUAVA);
+    }
+}
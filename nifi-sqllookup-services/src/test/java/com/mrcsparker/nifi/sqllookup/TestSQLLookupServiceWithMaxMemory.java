@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSQLLookupServiceWithMaxMemory extends AbstractSQLLookupServiceTest {
+
+    private static final List<String> NAMES = Arrays.asList("495304346258559", "456148015917293", "526924199146123",
+                    "860683959429897", "528661513839698", "355663598958946", "911753660676323", "997417069743624",
+                    "986873446696583", "990409804141864", "011340994294624", "547153353139832", "993245649723970",
+                    "528752270770869", "357694592870637", "459447622180312", "013868509203308", "531837644973318",
+                    "011593966480635", "531195924901818");
+
+    private SQLLookupService sqlLookupService;
+    private SQLRecordLookupService sqlRecordLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLLookupService
+        sqlLookupService = new SQLLookupService();
+        runner.addControllerService("SQLLookupService", sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_SIZE, "1000");
+
+        // setup SQLRecordLookupService
+        sqlRecordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHE_SIZE, "1000");
+
+        runner.enableControllerService(dbcpService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testWithoutMaxMemory() throws Exception {
+        runner.enableControllerService(sqlRecordLookupService);
+        lookupAll(sqlRecordLookupService);
+        assertEquals(NAMES.size(), sqlRecordLookupService.getCacheSize());
+    }
+
+    @Test
+    public void testRecordsBoundedByMemory() throws Exception {
+        // a record of this table is estimated at roughly one kilobyte
+        for (final AllowableValue library : Arrays.asList(SQLRecordLookupService.CACHING_LIBRARY_CAFFEINE,
+                        SQLRecordLookupService.CACHING_LIBRARY_GUAVA)) {
+            runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHING_LIBRARY, library);
+            runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHE_MAX_MEMORY, "8 KB");
+            runner.enableControllerService(sqlRecordLookupService);
+
+            lookupAll(sqlRecordLookupService);
+            assertBounded(library, sqlRecordLookupService);
+            runner.disableControllerService(sqlRecordLookupService);
+        }
+    }
+
+    @Test
+    public void testStringsBoundedByMemory() throws Exception {
+        for (final AllowableValue library : Arrays.asList(SQLLookupService.CACHING_LIBRARY_CAFFEINE,
+                        SQLLookupService.CACHING_LIBRARY_CACHE2k, SQLLookupService.CACHING_LIBRARY_GUAVA)) {
+            runner.setProperty(sqlLookupService, SQLLookupService.CACHING_LIBRARY, library);
+            runner.setProperty(sqlLookupService, SQLLookupService.CACHE_MAX_MEMORY, "2 KB");
+            runner.enableControllerService(sqlLookupService);
+
+            lookupAll(sqlLookupService);
+            assertBounded(library, sqlLookupService);
+            runner.disableControllerService(sqlLookupService);
+        }
+    }
+
+    private void lookupAll(final AbstractSQLLookupService<?> service) throws Exception {
+        for (final String name : NAMES) {
+            assertTrue(service.lookup(Collections.singletonMap("name", name)).isPresent());
+        }
+    }
+
+    /**
+     * Waits for eviction, which some libraries run in the background, and checks that only part of the values fit.
+     */
+    private static void assertBounded(final AllowableValue library, final AbstractSQLLookupService<?> service)
+                    throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (service.cache.asMap().size() >= NAMES.size() / 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        final int size = service.cache.asMap().size();
+        assertTrue(library.getValue() + " kept " + size, size > 0 && size < NAMES.size() / 2);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSQLLookupServiceWithNegativeCache extends AbstractSQLLookupServiceTest {
+
+    private SQLLookupService sqlLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLLookupService
+        sqlLookupService = new SQLLookupService();
+        runner.addControllerService("SQLLookupService", sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_SIZE, "10");
+        runner.setProperty(sqlLookupService, SQLLookupService.NEGATIVE_CACHE_SIZE, "10");
+
+        runner.enableControllerService(dbcpService);
+        runner.enableControllerService(sqlLookupService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testNegativeCache() throws Exception {
+        for (final AllowableValue library : Arrays.asList(SQLLookupService.CACHING_LIBRARY_CAFFEINE,
+                        SQLLookupService.CACHING_LIBRARY_CACHE2k, SQLLookupService.CACHING_LIBRARY_GUAVA)) {
+            runner.disableControllerService(sqlLookupService);
+            runner.setProperty(sqlLookupService, SQLLookupService.CACHING_LIBRARY, library);
+            runner.enableControllerService(sqlLookupService);
+
+            assertFalse(sqlLookupService.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+            assertTrue(sqlLookupService.lookup(Collections.singletonMap("name", "547897511298456")).isPresent());
+
+            assertEquals(library.getValue(), 1, sqlLookupService.getNegativeCacheSize());
+            assertEquals(library.getValue(), 1, sqlLookupService.getCacheSize());
+        }
+    }
+
+    @Test
+    public void testMissServedFromNegativeCache() throws Exception {
+        assertFalse(sqlLookupService.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+
+        // the database is no longer needed to answer the miss
+        dropTable();
+        assertFalse(sqlLookupService.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+    }
+
+    @Test
+    public void testWithoutLookupCache() throws Exception {
+        runner.disableControllerService(sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_SIZE, "0");
+        runner.enableControllerService(sqlLookupService);
+
+        assertFalse(sqlLookupService.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+        assertTrue(sqlLookupService.lookup(Collections.singletonMap("name", "547897511298456")).isPresent());
+        assertEquals(1, sqlLookupService.getNegativeCacheSize());
+        assertEquals(0, sqlLookupService.getCacheSize());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        runner.disableControllerService(sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.NEGATIVE_CACHE_EXPIRATION, "100 millis");
+        runner.enableControllerService(sqlLookupService);
+
+        assertFalse(sqlLookupService.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+
+        try (final Connection con = ((DBCPService) runner.getControllerService("dbcpService")).getConnection();
+             final Statement stmt = con.createStatement()) {
+            stmt.execute("insert into TEST_LOOKUP_DB (name, value) VALUES ('notavalue', 'Added Later')");
+        }
+        Thread.sleep(300);
+
+        final Optional<String> get1 = sqlLookupService.lookup(Collections.singletonMap("name", "notavalue"));
+        assertTrue(get1.isPresent());
+        assertEquals("Added Later", get1.get());
+    }
+
+    @Test
+    public void testLookupAll() throws Exception {
+        final List<Map<String, Object>> coordinates = Arrays.asList(
+                        Collections.singletonMap("name", "notavalue"),
+                        Collections.singletonMap("name", "547897511298456"));
+
+        assertFalse(sqlLookupService.lookupAll(coordinates).get(0).isPresent());
+        assertEquals(1, sqlLookupService.getNegativeCacheSize());
+
+        dropTable();
+        final List<Optional<String>> results = sqlLookupService.lookupAll(coordinates);
+        assertFalse(results.get(0).isPresent());
+        assertEquals("Consider the Lilies", results.get(1).get());
+    }
+
+    @Test
+    public void testOnDisabled() throws Exception {
+        sqlLookupService.lookup(Collections.singletonMap("name", "notavalue"));
+        sqlLookupService.onDisabled();
+        assertEquals(0, sqlLookupService.getNegativeCacheSize());
+    }
+
+    private void dropTable() throws Exception {
+        try (final Connection con = ((DBCPService) runner.getControllerService("dbcpService")).getConnection();
+             final Statement stmt = con.createStatement()) {
+            stmt.execute("drop table TEST_LOOKUP_DB");
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSQLLookupServiceWithPersistentCache extends AbstractSQLLookupServiceTest {
+
+    private static final Map<String, Object> CRITERIA = Collections.singletonMap("name", "547897511298456");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SQLLookupService sqlLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLLookupService
+        sqlLookupService = new SQLLookupService();
+        runner.addControllerService("SQLLookupService", sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_SIZE, "10");
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHING_LIBRARY, SQLLookupService.CACHING_LIBRARY_PERSISTENT);
+        runner.setProperty(sqlLookupService, SQLLookupService.PERSISTENT_CACHE_DIRECTORY, folder.getRoot().getAbsolutePath());
+        runner.setProperty(sqlLookupService, SQLLookupService.OFF_HEAP_MEMORY, "1 MB");
+
+        runner.enableControllerService(dbcpService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        runner.enableControllerService(sqlLookupService);
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+        runner.disableControllerService(sqlLookupService);
+
+        assertTrue(new File(folder.getRoot(), "SQLLookupService.data").exists());
+        assertTrue(new File(folder.getRoot(), "SQLLookupService.meta").exists());
+
+        updateValue("Consider the Lilies, Revised");
+
+        runner.enableControllerService(sqlLookupService);
+        assertEquals(1, sqlLookupService.getCacheSize());
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+        runner.disableControllerService(sqlLookupService);
+    }
+
+    @Test
+    public void testChangedQueryDiscardsCache() throws Exception {
+        runner.enableControllerService(sqlLookupService);
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+        runner.disableControllerService(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "ADDRESS");
+        runner.enableControllerService(sqlLookupService);
+        assertEquals(0, sqlLookupService.getCacheSize());
+        runner.disableControllerService(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name AND 1 = 1");
+        runner.enableControllerService(sqlLookupService);
+        assertEquals(0, sqlLookupService.getCacheSize());
+        runner.disableControllerService(sqlLookupService);
+    }
+
+    @Test
+    public void testChangedColumnsDiscardCache() throws Exception {
+        runner.enableControllerService(sqlLookupService);
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+        runner.disableControllerService(sqlLookupService);
+
+        try (final Connection con = ((DBCPService) runner.getControllerService("dbcpService")).getConnection();
+             final Statement stmt = con.createStatement()) {
+            stmt.execute("alter table TEST_LOOKUP_DB add column rating INT");
+        }
+
+        runner.enableControllerService(sqlLookupService);
+        assertEquals(0, sqlLookupService.getCacheSize());
+        runner.disableControllerService(sqlLookupService);
+    }
+
+    @Test
+    public void testNotClosedCacheReused() throws Exception {
+        final File data = new File(folder.getRoot(), "SQLLookupService.data");
+        final File meta = new File(folder.getRoot(), "SQLLookupService.meta");
+        final File crashed = folder.newFolder("crashed");
+
+        runner.enableControllerService(sqlLookupService);
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+        assertTrue(meta.exists());
+        sqlLookupService.onShutdown();
+
+        // as if the process had died here, without disabling the service
+        Files.copy(data.toPath(), crashed.toPath().resolve(data.getName()));
+        Files.copy(meta.toPath(), crashed.toPath().resolve(meta.getName()));
+        runner.disableControllerService(sqlLookupService);
+        Files.copy(crashed.toPath().resolve(data.getName()), data.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(crashed.toPath().resolve(meta.getName()), meta.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        updateValue("Consider the Lilies, Revised");
+
+        runner.enableControllerService(sqlLookupService);
+        assertEquals(1, sqlLookupService.getCacheSize());
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+        runner.disableControllerService(sqlLookupService);
+    }
+
+    @Test
+    public void testRecordLookup() throws Exception {
+        final SQLRecordLookupService sqlRecordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHE_SIZE, "10");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHING_LIBRARY, SQLRecordLookupService.CACHING_LIBRARY_PERSISTENT);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.PERSISTENT_CACHE_DIRECTORY, folder.getRoot().getAbsolutePath());
+
+        runner.enableControllerService(sqlRecordLookupService);
+        final Record loaded = sqlRecordLookupService.lookup(CRITERIA).get();
+        runner.disableControllerService(sqlRecordLookupService);
+
+        updateValue("Consider the Lilies, Revised");
+
+        runner.enableControllerService(sqlRecordLookupService);
+        final Record cached = sqlRecordLookupService.lookup(CRITERIA).get();
+        assertEquals(loaded.getSchema(), cached.getSchema());
+        assertEquals(loaded.toMap(), cached.toMap());
+        assertEquals("Consider the Lilies", cached.getAsString("VALUE"));
+        runner.disableControllerService(sqlRecordLookupService);
+    }
+
+    @Test
+    public void testValidation() {
+        runner.removeProperty(sqlLookupService, SQLLookupService.PERSISTENT_CACHE_DIRECTORY);
+        runner.assertNotValid(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.PERSISTENT_CACHE_DIRECTORY, folder.getRoot().getAbsolutePath());
+        runner.assertValid(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_EXPIRE_AFTER_ACCESS, "1 min");
+        runner.assertNotValid(sqlLookupService);
+    }
+
+    private void updateValue(final String value) throws Exception {
+        try (final Connection con = ((DBCPService) runner.getControllerService("dbcpService")).getConnection();
+             final Statement stmt = con.createStatement()) {
+            stmt.execute("update TEST_LOOKUP_DB set value = '" + value.replace("'", "''") + "' where name = '547897511298456'");
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSQLLookupServiceWithPreload extends AbstractSQLLookupServiceTest {
+
+    private static final Map<String, Object> CRITERIA = Collections.singletonMap("name", "547897511298456");
+
+    private SQLLookupService sqlLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLLookupService
+        sqlLookupService = new SQLLookupService();
+        runner.addControllerService("SQLLookupService", sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_QUERY, "SELECT name, value FROM TEST_LOOKUP_DB ORDER BY id");
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_FETCH_SIZE, "10");
+
+        runner.enableControllerService(dbcpService);
+
+        // the table has to exist before the service is enabled
+        setupDB();
+    }
+
+    @Test
+    public void testPreloadedLookup() throws Exception {
+        runner.enableControllerService(sqlLookupService);
+        assertEquals(100, sqlLookupService.getPreloadedSize());
+
+        // lookups no longer need the database
+        dropTable();
+
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(Collections.singletonMap("name", "547897511298456")).get());
+        assertFalse(sqlLookupService.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+        assertFalse(sqlLookupService.lookup(Collections.singletonMap("name", "is-a-null")).isPresent());
+
+        final List<Optional<String>> results = sqlLookupService.lookupAll(Arrays.asList(
+                        Collections.singletonMap("name", "547897511298456"),
+                        Collections.singletonMap("name", "notavalue"),
+                        Collections.singletonMap("name", "867142279069316")));
+        assertEquals("Consider the Lilies", results.get(0).get());
+        assertFalse(results.get(1).isPresent());
+        assertEquals("The Needles Eye", results.get(2).get());
+    }
+
+    @Test
+    public void testNumericKey() throws Exception {
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE period = :period");
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_QUERY, "SELECT period, value FROM TEST_LOOKUP_DB ORDER BY id");
+        runner.enableControllerService(sqlLookupService);
+
+        // the first row of each key wins, as with a database lookup
+        assertEquals(10, sqlLookupService.getPreloadedSize());
+        assertEquals("Wildfire at Midnight", sqlLookupService.lookup(Collections.singletonMap("period", 7)).get());
+        assertEquals("Wildfire at Midnight", sqlLookupService.lookup(Collections.singletonMap("period", "7")).get());
+        assertEquals("Wildfire at Midnight", sqlLookupService.lookup(Collections.singletonMap("period", 7L)).get());
+        assertFalse(sqlLookupService.lookup(Collections.singletonMap("period", 11)).isPresent());
+    }
+
+    @Test
+    public void testCollectionCoordinate() throws Exception {
+        runner.enableControllerService(sqlLookupService);
+
+        try {
+            sqlLookupService.lookup(Collections.singletonMap("name", Arrays.asList("547897511298456", "867142279069316")));
+            fail("collection coordinates are not supported when preloading");
+        } catch (final LookupFailureException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMaxMemory() {
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_MAX_MEMORY, "1 KB");
+
+        try {
+            runner.enableControllerService(sqlLookupService);
+            fail("the preloaded table is larger than the limit");
+        } catch (final AssertionError e) {
+            // the mock framework reports the failed enable as an assertion
+            assertNull(sqlLookupService.snapshot);
+        }
+    }
+
+    @Test
+    public void testMissingKeyColumn() {
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_QUERY, "SELECT value FROM TEST_LOOKUP_DB");
+
+        try {
+            runner.enableControllerService(sqlLookupService);
+            fail("the preload query does not return the key column");
+        } catch (final AssertionError e) {
+            assertNull(sqlLookupService.snapshot);
+        }
+    }
+
+    @Test
+    public void testFailedPreloadReleasesResources() {
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_QUERY, "SELECT value FROM TEST_LOOKUP_DB");
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_REFRESH_AFTER_WRITE, "1 min");
+        runner.setProperty(sqlLookupService, SQLLookupService.NEGATIVE_CACHE_SIZE, "10");
+        runner.setProperty(sqlLookupService, SQLLookupService.STATEMENT_CACHE_SIZE, "2");
+
+        try {
+            runner.enableControllerService(sqlLookupService);
+            fail("the preload query does not return the key column");
+        } catch (final AssertionError e) {
+            assertNull(sqlLookupService.negativeCache);
+            assertNull(sqlLookupService.refreshExecutor);
+            assertNull(sqlLookupService.statementPool);
+        }
+    }
+
+    @Test
+    public void testPreloadEndsTransaction() throws Exception {
+        final AtomicBoolean rolledBack = new AtomicBoolean();
+        final AtomicBoolean autoCommitOnClose = new AtomicBoolean(true);
+        final DBCPService transactionalDbcpService = new DBCPServiceSimpleImpl() {
+            @Override
+            public String getIdentifier() {
+                return "transactionalDbcpService";
+            }
+
+            @Override
+            public Connection getConnection() {
+                final Connection connection = super.getConnection();
+                try {
+                    connection.setAutoCommit(false);
+                } catch (final SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+                return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                                (proxy, method, args) -> {
+                                    if (method.getName().equals("rollback")) {
+                                        rolledBack.set(true);
+                                    } else if (method.getName().equals("close")) {
+                                        autoCommitOnClose.set(connection.getAutoCommit());
+                                    }
+                                    try {
+                                        return method.invoke(connection, args);
+                                    } catch (final InvocationTargetException e) {
+                                        throw e.getCause();
+                                    }
+                                });
+            }
+        };
+        runner.addControllerService("transactionalDbcpService", transactionalDbcpService);
+        runner.enableControllerService(transactionalDbcpService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CONNECTION_POOL, "transactionalDbcpService");
+
+        runner.enableControllerService(sqlLookupService);
+        assertEquals(100, sqlLookupService.getPreloadedSize());
+
+        // the connection goes back to the pool without an open transaction, in the mode it came in
+        assertTrue(rolledBack.get());
+        assertFalse(autoCommitOnClose.get());
+    }
+
+    @Test
+    public void testValidation() {
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_QUERY, "SELECT name, value FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.assertNotValid(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_QUERY, "SELECT name, value FROM TEST_LOOKUP_DB");
+        runner.assertValid(sqlLookupService);
+    }
+
+    @Test
+    public void testOnDisabled() {
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_RELOAD_INTERVAL, "1 min");
+        runner.enableControllerService(sqlLookupService);
+        runner.disableControllerService(sqlLookupService);
+        assertEquals(0, sqlLookupService.getPreloadedSize());
+        assertNull(sqlLookupService.reloadExecutor);
+    }
+
+    @Test
+    public void testScheduledReload() throws Exception {
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_RELOAD_INTERVAL, "200 millis");
+        runner.enableControllerService(sqlLookupService);
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+
+        execute("update TEST_LOOKUP_DB set value = 'Consider the Lilies, Revised' where name = '547897511298456'");
+        execute("insert into TEST_LOOKUP_DB (name, value) VALUES ('notavalue', 'Added Later')");
+
+        String value = sqlLookupService.lookup(CRITERIA).get();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!"Consider the Lilies, Revised".equals(value) && System.currentTimeMillis() < deadline) {
+            assertEquals("Consider the Lilies", value);
+            Thread.sleep(50);
+            value = sqlLookupService.lookup(CRITERIA).get();
+        }
+        assertEquals("Consider the Lilies, Revised", value);
+        assertEquals("Added Later", sqlLookupService.lookup(Collections.singletonMap("name", "notavalue")).get());
+
+        runner.disableControllerService(sqlLookupService);
+    }
+
+    @Test
+    public void testFailedReloadKeepsSnapshot() throws Exception {
+        runner.enableControllerService(sqlLookupService);
+        final PreloadSnapshot<String> preloaded = sqlLookupService.snapshot;
+
+        dropTable();
+        sqlLookupService.reloadSnapshot();
+
+        assertSame(preloaded, sqlLookupService.snapshot);
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+    }
+
+    @Test
+    public void testReloadAcrossRestartIsDropped() throws Exception {
+        final Runnable[] duringLoad = new Runnable[1];
+        final SQLLookupService service = new SQLLookupService() {
+            @Override
+            PreloadSnapshot<String> loadSnapshot() throws SQLException, IOException, LookupFailureException {
+                final PreloadSnapshot<String> loaded = super.loadSnapshot();
+                final Runnable hook = duringLoad[0];
+                duringLoad[0] = null;
+                if (hook != null) {
+                    hook.run();
+                }
+                return loaded;
+            }
+        };
+        runner.addControllerService("RestartedLookupService", service);
+        runner.setProperty(service, SQLLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(service, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(service, SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+        runner.setProperty(service, SQLLookupService.PRELOAD_QUERY, "SELECT name, value FROM TEST_LOOKUP_DB ORDER BY id");
+        runner.enableControllerService(service);
+
+        final PreloadSnapshot<?>[] restarted = new PreloadSnapshot<?>[1];
+        duringLoad[0] = () -> {
+            runner.disableControllerService(service);
+            runner.enableControllerService(service);
+            restarted[0] = service.snapshot;
+        };
+        service.reloadSnapshot();
+
+        assertSame(restarted[0], service.snapshot);
+        runner.disableControllerService(service);
+    }
+
+    @Test
+    public void testReloadValidation() {
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_RELOAD_INTERVAL, "1 min");
+        runner.assertValid(sqlLookupService);
+
+        runner.removeProperty(sqlLookupService, SQLLookupService.PRELOAD_QUERY);
+        runner.assertNotValid(sqlLookupService);
+    }
+
+    @Test
+    public void testDeltaRefresh() throws Exception {
+        configureDelta();
+        runner.enableControllerService(sqlLookupService);
+        assertEquals(0, sqlLookupService.snapshot.getWatermark());
+
+        execute("update TEST_LOOKUP_DB set value = 'Consider the Lilies, Revised', version = 1 where name = '547897511298456'");
+        execute("insert into TEST_LOOKUP_DB (name, value, version) VALUES ('notavalue', 'Added Later', 2)");
+        execute("update TEST_LOOKUP_DB set deleted = true, version = 3 where name = '867142279069316'");
+        execute("update TEST_LOOKUP_DB set value = NULL, version = 3 where name = '528752270770869'");
+        sqlLookupService.refreshSnapshot();
+
+        assertEquals(3, sqlLookupService.snapshot.getWatermark());
+        assertEquals("Consider the Lilies, Revised", sqlLookupService.lookup(CRITERIA).get());
+        assertEquals("Added Later", sqlLookupService.lookup(Collections.singletonMap("name", "notavalue")).get());
+        assertFalse(sqlLookupService.lookup(Collections.singletonMap("name", "867142279069316")).isPresent());
+        assertFalse(sqlLookupService.lookup(Collections.singletonMap("name", "528752270770869")).isPresent());
+        assertEquals(99, sqlLookupService.getPreloadedSize());
+
+        // rows at or below the watermark were already applied
+        execute("update TEST_LOOKUP_DB set value = 'Not Seen', version = 3 where name = '495304346258559'");
+        sqlLookupService.refreshSnapshot();
+        assertEquals("Wildfire at Midnight", sqlLookupService.lookup(Collections.singletonMap("name", "495304346258559")).get());
+    }
+
+    @Test
+    public void testDeltaRefreshOfEmptyTable() throws Exception {
+        configureDelta();
+        execute("delete from TEST_LOOKUP_DB");
+        runner.enableControllerService(sqlLookupService);
+        assertNull(sqlLookupService.snapshot.getWatermark());
+
+        execute("insert into TEST_LOOKUP_DB (name, value, version) VALUES ('notavalue', 'Added Later', 1)");
+        sqlLookupService.refreshSnapshot();
+
+        assertEquals(1, sqlLookupService.snapshot.getWatermark());
+        assertEquals("Added Later", sqlLookupService.lookup(Collections.singletonMap("name", "notavalue")).get());
+    }
+
+    @Test
+    public void testScheduledDeltaRefresh() throws Exception {
+        configureDelta();
+        runner.setProperty(sqlLookupService, SQLLookupService.DELTA_REFRESH_INTERVAL, "100 millis");
+        runner.enableControllerService(sqlLookupService);
+
+        execute("update TEST_LOOKUP_DB set value = 'Consider the Lilies, Revised', version = 1 where name = '547897511298456'");
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!Integer.valueOf(1).equals(sqlLookupService.snapshot.getWatermark()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("Consider the Lilies, Revised", sqlLookupService.lookup(CRITERIA).get());
+
+        runner.disableControllerService(sqlLookupService);
+    }
+
+    @Test
+    public void testFailedDeltaRefreshKeepsSnapshot() throws Exception {
+        configureDelta();
+        runner.enableControllerService(sqlLookupService);
+
+        dropTable();
+        sqlLookupService.refreshSnapshot();
+
+        assertEquals(0, sqlLookupService.snapshot.getWatermark());
+        assertEquals("Consider the Lilies", sqlLookupService.lookup(CRITERIA).get());
+    }
+
+    @Test
+    public void testDeltaValidation() throws Exception {
+        configureDelta();
+        runner.assertValid(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.DELTA_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE version > :version");
+        runner.assertNotValid(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.DELTA_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE version > :watermark");
+        runner.removeProperty(sqlLookupService, SQLLookupService.WATERMARK_COLUMN);
+        runner.assertNotValid(sqlLookupService);
+
+        runner.setProperty(sqlLookupService, SQLLookupService.WATERMARK_COLUMN, "version");
+        runner.removeProperty(sqlLookupService, SQLLookupService.PRELOAD_QUERY);
+        runner.assertNotValid(sqlLookupService);
+    }
+
+    @Test
+    public void testRecordLookup() throws Exception {
+        final SQLRecordLookupService recordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", recordLookupService);
+        runner.setProperty(recordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(recordLookupService, SQLRecordLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(recordLookupService, SQLRecordLookupService.PRELOAD_QUERY, "SELECT * FROM TEST_LOOKUP_DB ORDER BY id");
+        runner.enableControllerService(recordLookupService);
+
+        dropTable();
+
+        final Record record = recordLookupService.lookup(Collections.singletonMap("name", "547897511298456")).get();
+        assertEquals("Consider the Lilies", record.getAsString("VALUE"));
+        assertEquals("397 Kamille Hill", record.getAsString("ADDRESS"));
+        assertFalse(recordLookupService.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+    }
+
+    private void configureDelta() throws Exception {
+        execute("alter table TEST_LOOKUP_DB add column version INT DEFAULT 0");
+        execute("alter table TEST_LOOKUP_DB add column deleted BOOLEAN DEFAULT FALSE");
+
+        runner.setProperty(sqlLookupService, SQLLookupService.PRELOAD_QUERY, "SELECT name, value, version FROM TEST_LOOKUP_DB ORDER BY id");
+        runner.setProperty(sqlLookupService, SQLLookupService.WATERMARK_COLUMN, "version");
+        runner.setProperty(sqlLookupService, SQLLookupService.DELTA_QUERY,
+                        "SELECT name, value, version, deleted FROM TEST_LOOKUP_DB WHERE version > :watermark ORDER BY version");
+        runner.setProperty(sqlLookupService, SQLLookupService.DELTA_DELETED_COLUMN, "deleted");
+    }
+
+    private void dropTable() throws Exception {
+        execute("drop table TEST_LOOKUP_DB");
+    }
+
+    private void execute(final String sql) throws Exception {
+        try (final Connection con = ((DBCPService) runner.getControllerService("dbcpService")).getConnection();
+             final Statement stmt = con.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+}
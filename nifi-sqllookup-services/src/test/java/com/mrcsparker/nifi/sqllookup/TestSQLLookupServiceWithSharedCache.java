@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestSQLLookupServiceWithSharedCache extends AbstractSQLLookupServiceTest {
+
+    private SQLLookupService first;
+    private SQLLookupService second;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+        runner.enableControllerService(dbcpService);
+
+        // the queries only differ in layout
+        first = addService("first", "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        second = addService("second", "SELECT *\n  FROM TEST_LOOKUP_DB\n WHERE name = :name;");
+        runner.enableControllerService(first);
+        runner.enableControllerService(second);
+
+        setupDB();
+    }
+
+    // regions live as long as the JVM, so services left enabled would leak their references into other tests
+    @After
+    public void after() {
+        for (final SQLLookupService service : new SQLLookupService[] { first, second }) {
+            if (runner.isControllerServiceEnabled(service)) {
+                runner.disableControllerService(service);
+            }
+        }
+    }
+
+    private SQLLookupService addService(final String identifier, final String query) throws Exception {
+        final SQLLookupService service = new SQLLookupService();
+        runner.addControllerService(identifier, service);
+        runner.setProperty(service, SQLLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(service, SQLLookupService.SQL_QUERY, query);
+        runner.setProperty(service, SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+        runner.setProperty(service, SQLLookupService.CACHE_SIZE, "10");
+        runner.setProperty(service, SQLLookupService.NEGATIVE_CACHE_SIZE, "10");
+        runner.setProperty(service, SQLLookupService.SHARED_CACHE_REGION, "books");
+        return service;
+    }
+
+    @Test
+    public void testSharesCaches() throws Exception {
+        assertSame(first.cache, second.cache);
+        assertSame(first.negativeCache, second.negativeCache);
+
+        assertEquals("The Glory and the Dream", first.lookup(Collections.singletonMap("name", "458006613841984")).get());
+        assertFalse(first.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+
+        assertEquals("The Glory and the Dream", second.lookup(Collections.singletonMap("name", "458006613841984")).get());
+        assertFalse(second.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+
+        assertEquals(1, second.getStats().getHits());
+        assertEquals(1, second.getStats().getNegativeHits());
+        assertEquals(0, second.getStats().getMisses());
+    }
+
+    @Test
+    public void testCacheOutlivesOneService() throws Exception {
+        first.lookup(Collections.singletonMap("name", "458006613841984"));
+        final String regionKey = first.regionKey("values");
+        assertEquals(2, SharedCacheRegions.references(regionKey));
+
+        runner.disableControllerService(first);
+        assertEquals(1, SharedCacheRegions.references(regionKey));
+        assertEquals(1, second.getCacheSize());
+
+        runner.disableControllerService(second);
+        assertEquals(0, SharedCacheRegions.references(regionKey));
+    }
+
+    @Test
+    public void testDifferentValuesAreNotShared() throws Exception {
+        runner.disableControllerService(second);
+        runner.setProperty(second, SQLLookupService.LOOKUP_VALUE_COLUMN, "ADDRESS");
+        runner.enableControllerService(second);
+
+        assertNotSame(first.cache, second.cache);
+        first.lookup(Collections.singletonMap("name", "458006613841984"));
+        assertEquals("84164 Gleason Branch", second.lookup(Collections.singletonMap("name", "458006613841984")).get());
+    }
+
+    @Test
+    public void testNotSharedWithPreload() throws Exception {
+        runner.disableControllerService(second);
+        runner.setProperty(second, SQLLookupService.PRELOAD_QUERY, "SELECT name, value FROM TEST_LOOKUP_DB");
+        runner.assertNotValid(second);
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("SELECT * FROM T WHERE a = 'x  y' AND b = :b",
+                        SQLQueryPlan.normalize("  SELECT *\n\tFROM T  WHERE a = 'x  y'\nAND b = :b ;\n"));
+        assertTrue(SQLQueryPlan.normalize("SELECT \"a  b\" FROM T").contains("\"a  b\""));
+    }
+}
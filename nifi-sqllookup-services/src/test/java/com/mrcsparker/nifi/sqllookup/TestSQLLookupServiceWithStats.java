@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSQLLookupServiceWithStats extends AbstractSQLLookupServiceTest {
+
+    private SQLLookupService sqlLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLLookupService
+        sqlLookupService = new SQLLookupService();
+        runner.addControllerService("SQLLookupService", sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlLookupService, SQLLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlLookupService, SQLLookupService.LOOKUP_VALUE_COLUMN, "VALUE");
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHING_LIBRARY, SQLLookupService.CACHING_LIBRARY_GUAVA);
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_SIZE, "10");
+        runner.setProperty(sqlLookupService, SQLLookupService.NEGATIVE_CACHE_SIZE, "10");
+        runner.setProperty(sqlLookupService, SQLLookupService.STATS_REPORTING_INTERVAL, "5 mins");
+
+        runner.enableControllerService(dbcpService);
+        runner.enableControllerService(sqlLookupService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testCountsLookups() throws Exception {
+        sqlLookupService.lookup(Collections.singletonMap("name", "495304346258559"));
+        sqlLookupService.lookup(Collections.singletonMap("name", "495304346258559"));
+        sqlLookupService.lookup(Collections.singletonMap("name", "notavalue"));
+        sqlLookupService.lookup(Collections.singletonMap("name", "notavalue"));
+
+        final LookupStats stats = sqlLookupService.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getNegativeHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(2, stats.getLoads());
+        assertEquals(0, stats.getLoadFailures());
+        assertEquals(1, stats.getCacheSize());
+        assertEquals(0.5, stats.getHitRatio(), 0.0001);
+        assertTrue(stats.getLoadTimeP50(TimeUnit.NANOSECONDS) > 0);
+        assertTrue(stats.getLoadTimeP99(TimeUnit.NANOSECONDS) >= stats.getLoadTimeP50(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testCountsBatchLookups() throws Exception {
+        sqlLookupService.lookup(Collections.singletonMap("name", "495304346258559"));
+        sqlLookupService.lookupAll(Arrays.asList(
+                        Collections.singletonMap("name", "495304346258559"),
+                        Collections.singletonMap("name", "456148015917293"),
+                        Collections.singletonMap("name", "526924199146123")));
+
+        final LookupStats stats = sqlLookupService.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(3, stats.getMisses());
+        // one query for the single lookup, one for the batch
+        assertEquals(2, stats.getLoads());
+    }
+
+    @Test
+    public void testCountsEvictions() throws Exception {
+        runner.disableControllerService(sqlLookupService);
+        runner.setProperty(sqlLookupService, SQLLookupService.CACHE_SIZE, "1");
+        runner.enableControllerService(sqlLookupService);
+
+        for (final String name : Arrays.asList("495304346258559", "456148015917293", "526924199146123", "860683959429897")) {
+            sqlLookupService.lookup(Collections.singletonMap("name", name));
+        }
+
+        assertTrue(sqlLookupService.getStats().getEvictions() > 0);
+    }
+
+    @Test
+    public void testStatsResetWhenEnabled() throws Exception {
+        sqlLookupService.lookup(Collections.singletonMap("name", "495304346258559"));
+
+        runner.disableControllerService(sqlLookupService);
+        runner.enableControllerService(sqlLookupService);
+
+        assertEquals(0, sqlLookupService.getStats().getMisses());
+    }
+
+    @Test
+    public void testReportingOffByDefault() throws Exception {
+        runner.disableControllerService(sqlLookupService);
+        runner.getStateManager(sqlLookupService).clear(Scope.LOCAL);
+        runner.removeProperty(sqlLookupService, SQLLookupService.STATS_REPORTING_INTERVAL);
+        runner.enableControllerService(sqlLookupService);
+
+        sqlLookupService.lookup(Collections.singletonMap("name", "495304346258559"));
+        runner.disableControllerService(sqlLookupService);
+
+        assertTrue(runner.getStateManager(sqlLookupService).getState(Scope.LOCAL).toMap().isEmpty());
+        assertEquals(1, sqlLookupService.getStats().getMisses());
+    }
+
+    @Test
+    public void testStatsWrittenToState() throws Exception {
+        sqlLookupService.lookup(Collections.singletonMap("name", "495304346258559"));
+        sqlLookupService.lookup(Collections.singletonMap("name", "495304346258559"));
+
+        runner.disableControllerService(sqlLookupService);
+
+        final StateMap state = runner.getStateManager(sqlLookupService).getState(Scope.LOCAL);
+        assertEquals("1", state.get("hits"));
+        assertEquals("1", state.get("misses"));
+        assertEquals("0.5000", state.get("hitRatio"));
+    }
+}
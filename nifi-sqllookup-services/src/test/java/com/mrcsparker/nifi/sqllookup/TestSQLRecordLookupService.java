@@ -18,6 +18,7 @@
 package com.mrcsparker.nifi.sqllookup;
 
 import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.lookup.LookupFailureException;
 import org.apache.nifi.serialization.record.Record;
 import org.apache.nifi.serialization.record.RecordFieldType;
 import org.apache.nifi.serialization.record.util.DataTypeUtils;
@@ -27,7 +28,14 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 
@@ -63,7 +71,7 @@ public class TestSQLRecordLookupService extends AbstractSQLLookupServiceTest {
 
     @Test
     public void testCorrectKeys() throws Exception {
-        assertEquals(sqlRecordLookupService.getRequiredKeys(), Collections.emptySet());
+        assertEquals(sqlRecordLookupService.getRequiredKeys(), Collections.singleton("name"));
     }
 
     @Test
@@ -113,6 +121,63 @@ public class TestSQLRecordLookupService extends AbstractSQLLookupServiceTest {
         assertEquals(Optional.empty(), get1);
     }
 
+    @Test
+    public void testReadFailureNotCachedAsMissing() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final DBCPService failingDbcpService = new DBCPServiceSimpleImpl() {
+            @Override
+            public String getIdentifier() {
+                return "failingDbcpService";
+            }
+
+            @Override
+            public Connection getConnection() {
+                return failOnRead(super.getConnection(), Connection.class, failing);
+            }
+        };
+        runner.addControllerService("failingDbcpService", failingDbcpService);
+        runner.enableControllerService(failingDbcpService);
+
+        runner.disableControllerService(sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CONNECTION_POOL, "failingDbcpService");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.NEGATIVE_CACHE_SIZE, "10");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        try {
+            sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476"));
+            fail("reading the row failed");
+        } catch (final LookupFailureException expected) {
+        }
+
+        failing.set(false);
+        assertTrue(sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).isPresent());
+    }
+
+    /**
+     * Wraps a JDBC object so that reading a column value of a result set it creates fails while {@code failing} is set.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T failOnRead(final T target, final Class<T> type, final AtomicBoolean failing) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (type == ResultSet.class && method.getName().equals("getObject") && failing.get()) {
+                throw new SQLException("connection reset while reading");
+            }
+            final Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof PreparedStatement) {
+                return failOnRead((PreparedStatement) result, PreparedStatement.class, failing);
+            }
+            if (result instanceof ResultSet) {
+                return failOnRead((ResultSet) result, ResultSet.class, failing);
+            }
+            return result;
+        });
+    }
+
     @Test
     public void testRecordLookup() throws Exception {
         final Optional<Record> get1 = sqlRecordLookupService
@@ -125,6 +190,41 @@ public class TestSQLRecordLookupService extends AbstractSQLLookupServiceTest {
         assertEquals(24.67, get1.get().getAsDouble("PRICE"), 1.0);
     }
 
+    @Test
+    public void testSchemaReused() throws Exception {
+        assertFalse(sqlRecordLookupService.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+
+        final Record inferred = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+        final Record mapped = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+        assertSame(inferred.getSchema(), mapped.getSchema());
+        assertEquals(inferred.toMap(), mapped.toMap());
+
+        final Record other = sqlRecordLookupService.lookup(Collections.singletonMap("name", "is-a-null")).get();
+        assertSame(inferred.getSchema(), other.getSchema());
+        assertNull(other.getAsString("VALUE"));
+        assertEquals(9, mapped.getAsInt("PERIOD").intValue());
+    }
+
+    @Test
+    public void testJdbcTypesLookup() throws Exception {
+        final Record inferred = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+
+        runner.disableControllerService(sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.USE_JDBC_TYPES, "true");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        final Record typed = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+        assertEquals(inferred.toMap(), typed.toMap());
+        assertEquals(RecordFieldType.INT, typed.getSchema().getDataType("PERIOD").get().getFieldType());
+        assertEquals(RecordFieldType.DOUBLE, typed.getSchema().getDataType("PRICE").get().getFieldType());
+        assertEquals(RecordFieldType.STRING, typed.getSchema().getDataType("VALUE").get().getFieldType());
+
+        final Record withNull = sqlRecordLookupService.lookup(Collections.singletonMap("name", "is-a-null")).get();
+        assertSame(typed.getSchema(), withNull.getSchema());
+        assertNull(withNull.getValue("VALUE"));
+        assertFalse(sqlRecordLookupService.lookup(Collections.singletonMap("name", "notavalue")).isPresent());
+    }
+
     @Test
     public void testArrayLookup() throws Exception {
         runner.disableControllerService(sqlRecordLookupService);
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSQLRecordLookupServiceBatch extends AbstractSQLLookupServiceTest {
+
+    private SQLRecordLookupService sqlRecordLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLRecordLookupService
+        sqlRecordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.SQL_QUERY,
+                        "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name;");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHE_SIZE, "10");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.BATCH_SIZE, "2");
+
+        runner.enableControllerService(dbcpService);
+        runner.enableControllerService(sqlRecordLookupService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testLookupAll() throws Exception {
+        final List<Map<String, Object>> coordinates = new ArrayList<>();
+        coordinates.add(Collections.singletonMap("name", "547897511298456"));
+        coordinates.add(Collections.singletonMap("name", "notavalue"));
+        coordinates.add(Collections.singletonMap("name", "867142279069316"));
+        coordinates.add(Collections.singletonMap("name", "547897511298456"));
+        coordinates.add(Collections.singletonMap("name", "443771414357476"));
+        coordinates.add(Collections.singletonMap("name", "is-a-null"));
+
+        final List<Optional<Record>> results = sqlRecordLookupService.lookupAll(coordinates);
+        assertEquals(6, results.size());
+
+        assertEquals("Consider the Lilies", results.get(0).get().getAsString("VALUE"));
+        assertFalse(results.get(1).isPresent());
+        assertEquals("The Needles Eye", results.get(2).get().getAsString("VALUE"));
+        assertEquals("Consider the Lilies", results.get(3).get().getAsString("VALUE"));
+        assertEquals("Françoise Sagan", results.get(4).get().getAsString("VALUE"));
+        assertTrue(results.get(5).isPresent());
+        assertNull(results.get(5).get().getAsString("VALUE"));
+
+        final Record record = results.get(4).get();
+        assertEquals("443771414357476", record.getAsString("NAME"));
+        assertEquals(9, record.getAsInt("PERIOD").intValue());
+        assertEquals(6, record.getSchema().getFieldCount());
+        assertFalse(record.getSchema().getField(SQLQueryPlan.BATCH_INDEX_COLUMN).isPresent());
+
+        assertEquals(4, sqlRecordLookupService.getCacheSize());
+    }
+
+    @Test
+    public void testLookupAllWithJdbcTypes() throws Exception {
+        runner.disableControllerService(sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.USE_JDBC_TYPES, "true");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        final List<Map<String, Object>> coordinates = new ArrayList<>();
+        coordinates.add(Collections.singletonMap("name", "notavalue"));
+        coordinates.add(Collections.singletonMap("name", "547897511298456"));
+        coordinates.add(Collections.singletonMap("name", "443771414357476"));
+        coordinates.add(Collections.singletonMap("name", "is-a-null"));
+
+        final List<Optional<Record>> results = sqlRecordLookupService.lookupAll(coordinates);
+        assertFalse(results.get(0).isPresent());
+        assertEquals("Consider the Lilies", results.get(1).get().getAsString("VALUE"));
+        assertEquals(9, results.get(2).get().getValue("PERIOD"));
+        assertNull(results.get(3).get().getValue("VALUE"));
+        assertEquals(6, results.get(2).get().getSchema().getFieldCount());
+        assertFalse(results.get(2).get().getSchema().getField(SQLQueryPlan.BATCH_INDEX_COLUMN).isPresent());
+    }
+
+    @Test
+    public void testLookupAllMatchesLookup() throws Exception {
+        final Optional<Record> single = sqlRecordLookupService.lookup(Collections.singletonMap("name", "990192861112958"));
+        sqlRecordLookupService.onDisabled();
+
+        final List<Optional<Record>> batch = sqlRecordLookupService
+                        .lookupAll(Collections.singletonList(Collections.singletonMap("name", "990192861112958")));
+        assertEquals(single.get().toMap(), batch.get(0).get().toMap());
+    }
+
+    @Test
+    public void testLookupAllInQuery() throws Exception {
+        runner.disableControllerService(sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.SQL_QUERY,
+                        "SELECT * FROM TEST_LOOKUP_DB WHERE name IN (:name) ORDER BY name ASC");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        final List<Map<String, Object>> coordinates = Arrays.asList(
+                        Collections.singletonMap("name", Arrays.asList("547897511298456", "867142279069316")),
+                        Collections.singletonMap("name", Collections.singletonList("990192861112958")));
+
+        final List<Optional<Record>> results = sqlRecordLookupService.lookupAll(coordinates);
+        assertEquals("Consider the Lilies", results.get(0).get().getAsString("VALUE"));
+        assertEquals("Cabbages and Kings", results.get(1).get().getAsString("VALUE"));
+    }
+
+    @Test
+    public void testOrderedQueriesAreNotBatched() {
+        assertTrue(SQLQueryPlan.compile("SELECT * FROM TEST_LOOKUP_DB WHERE name = :name").isBatchable());
+        assertTrue(SQLQueryPlan.compile("SELECT array_agg(value ORDER BY name) FROM TEST_LOOKUP_DB WHERE period = :period").isBatchable());
+        assertTrue(SQLQueryPlan.compile("SELECT * FROM TEST_LOOKUP_DB WHERE value = 'order by' AND name = :limit").isBatchable());
+
+        assertFalse(SQLQueryPlan.compile("SELECT * FROM TEST_LOOKUP_DB WHERE name = :name ORDER BY id").isBatchable());
+        assertFalse(SQLQueryPlan.compile("SELECT TOP 1 * FROM TEST_LOOKUP_DB WHERE name = :name").isBatchable());
+        assertFalse(SQLQueryPlan.compile("SELECT * FROM TEST_LOOKUP_DB WHERE name = :name FETCH FIRST 1 ROWS ONLY").isBatchable());
+        assertFalse(SQLQueryPlan.compile("SELECT * FROM TEST_LOOKUP_DB WHERE name = :name limit 1").isBatchable());
+    }
+}
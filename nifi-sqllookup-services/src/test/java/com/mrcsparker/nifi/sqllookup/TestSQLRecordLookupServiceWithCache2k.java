@@ -17,14 +17,21 @@
 
 package com.mrcsparker.nifi.sqllookup;
 
+import com.mrcsparker.nifi.sqllookup.cache.Cache2kAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.CacheAdapterFactories;
+import com.mrcsparker.nifi.sqllookup.cache.CacheAdapterFactory;
+import com.mrcsparker.nifi.sqllookup.cache.EncodedValueAdapter;
 import org.apache.nifi.dbcp.DBCPService;
 import org.apache.nifi.serialization.record.Record;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -124,4 +131,32 @@ public class TestSQLRecordLookupServiceWithCache2k extends AbstractSQLLookupServ
         assertEquals(10, sqlRecordLookupService.getCacheSize());
     }
 
+    @Test
+    public void testUsesCache2k() throws Exception {
+        assertTrue(sqlRecordLookupService.cache instanceof Cache2kAdapter);
+    }
+
+    @Test
+    public void testCompactCacheValues() throws Exception {
+        runner.disableControllerService(sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.COMPACT_CACHE_VALUES, "true");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        assertTrue(sqlRecordLookupService.cache instanceof EncodedValueAdapter);
+        for (int i = 0; i < 2; i++) {
+            final Optional<Record> record = sqlRecordLookupService.lookup(Collections.singletonMap("name", "458006613841984"));
+            assertTrue(record.isPresent());
+            assertEquals("The Glory and the Dream", record.get().getAsString("VALUE"));
+        }
+        assertEquals(1, sqlRecordLookupService.getCacheSize());
+    }
+
+    @Test
+    public void testCacheFactories() {
+        final List<String> names = new ArrayList<>();
+        for (final CacheAdapterFactory factory : CacheAdapterFactories.all()) {
+            names.add(factory.getName());
+        }
+        assertEquals(Arrays.asList("Caffeine", "Cache2k", "Guava", "OffHeap", "Persistent", "Clock"), names);
+    }
 }
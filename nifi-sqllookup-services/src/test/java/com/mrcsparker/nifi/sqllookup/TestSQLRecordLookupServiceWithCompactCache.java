@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mrcsparker.nifi.sqllookup;
+
+import com.mrcsparker.nifi.sqllookup.cache.CacheKey;
+import com.mrcsparker.nifi.sqllookup.cache.CacheSettings;
+import com.mrcsparker.nifi.sqllookup.cache.CaffeineAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.EncodedValueAdapter;
+import com.mrcsparker.nifi.sqllookup.cache.ValueCodec;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestSQLRecordLookupServiceWithCompactCache extends AbstractSQLLookupServiceTest {
+
+    private SQLRecordLookupService sqlRecordLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLRecordLookupService
+        sqlRecordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.SQL_QUERY,
+                        "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHE_SIZE, "10");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.COMPACT_CACHE_VALUES, "true");
+
+        runner.enableControllerService(dbcpService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testServedFromCompactCache() throws Exception {
+        for (final AllowableValue library : Arrays.asList(SQLRecordLookupService.CACHING_LIBRARY_CAFFEINE,
+                        SQLRecordLookupService.CACHING_LIBRARY_GUAVA)) {
+            setupDB();
+            runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHING_LIBRARY, library);
+            runner.enableControllerService(sqlRecordLookupService);
+
+            final Record loaded = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+            dropTable();
+
+            final Record cached = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+            assertNotSame(loaded, cached);
+            assertEquals(loaded.getSchema(), cached.getSchema());
+            assertEquals(loaded.toMap(), cached.toMap());
+            assertEquals("Françoise Sagan", cached.getAsString("VALUE"));
+            assertEquals(9, cached.getAsInt("PERIOD").intValue());
+            assertEquals(1, sqlRecordLookupService.getCacheSize());
+
+            runner.disableControllerService(sqlRecordLookupService);
+        }
+    }
+
+    @Test
+    public void testSharedSchema() throws Exception {
+        runner.enableControllerService(sqlRecordLookupService);
+
+        sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476"));
+        sqlRecordLookupService.lookup(Collections.singletonMap("name", "547897511298456"));
+
+        final Record first = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+        final Record second = sqlRecordLookupService.lookup(Collections.singletonMap("name", "547897511298456")).get();
+        assertSame(first.getSchema(), second.getSchema());
+    }
+
+    @Test
+    public void testSmallerThanRecords() throws Exception {
+        runner.enableControllerService(sqlRecordLookupService);
+        final Record record = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ValueCodec.forType(Record.class).encode(record, new DataOutputStream(encoded));
+        assertTrue(EntrySizeEstimator.estimate(encoded.toByteArray()) * 5 < EntrySizeEstimator.estimate(record));
+    }
+
+    @Test
+    public void testUnsupportedValueNotCached() {
+        final EncodedValueAdapter<Record> cache = new EncodedValueAdapter<>(ValueCodec.forType(Record.class),
+                        new CaffeineAdapter<>(CacheSettings.ofSize(10), null));
+        final RecordSchema schema = new SimpleRecordSchema(Collections.singletonList(
+                        new RecordField("VALUE", RecordFieldType.STRING.getDataType())));
+        final CacheKey key = CacheKey.of("SELECT * FROM TEST_LOOKUP_DB WHERE name = :name",
+                        Collections.singletonMap("name", "443771414357476"));
+
+        final UUID uuid = UUID.randomUUID();
+        cache.set(key, new MapRecord(schema, Collections.singletonMap("VALUE", uuid)));
+        assertEquals(uuid, cache.get(key).getValue("VALUE"));
+
+        cache.set(key, new MapRecord(schema, Collections.singletonMap("VALUE", Duration.ofMinutes(5))));
+        assertNull(cache.get(key));
+    }
+
+    private void dropTable() throws Exception {
+        try (final Connection con = ((DBCPService) runner.getControllerService("dbcpService")).getConnection();
+             final Statement stmt = con.createStatement()) {
+            stmt.execute("drop table TEST_LOOKUP_DB");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestSQLRecordLookupServiceWithOffHeap extends AbstractSQLLookupServiceTest {
+
+    private SQLRecordLookupService sqlRecordLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLRecordLookupService
+        sqlRecordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.SQL_QUERY,
+                        "SELECT * FROM TEST_LOOKUP_DB WHERE name = :name");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHING_LIBRARY,
+                        SQLRecordLookupService.CACHING_LIBRARY_OFF_HEAP);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHE_SIZE, "10");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.OFF_HEAP_MEMORY, "1 MB");
+
+        runner.enableControllerService(dbcpService);
+        runner.enableControllerService(sqlRecordLookupService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testRecordLookup() throws Exception {
+
+        assertEquals(0, sqlRecordLookupService.getCacheSize());
+
+        for (int i = 0; i <= 10; i++) {
+            final Optional<Record> get1 = sqlRecordLookupService
+                            .lookup(Collections.singletonMap("name", "458006613841984"));
+            assertTrue(get1.isPresent());
+            assertEquals("458006613841984", get1.get().getAsString("NAME"));
+            assertEquals("The Glory and the Dream", get1.get().getAsString("VALUE"));
+            assertEquals(2, get1.get().getAsInt("PERIOD").intValue());
+            assertEquals("84164 Gleason Branch", get1.get().getAsString("ADDRESS"));
+            assertEquals(300.34, get1.get().getAsDouble("PRICE"), 0.001);
+
+            assertEquals(1, sqlRecordLookupService.getCacheSize());
+        }
+    }
+
+    @Test
+    public void testServedFromOffHeap() throws Exception {
+        final Record loaded = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+
+        try (final Connection con = ((DBCPService) runner.getControllerService("dbcpService")).getConnection();
+             final Statement stmt = con.createStatement()) {
+            stmt.execute("drop table TEST_LOOKUP_DB");
+        }
+
+        // every read decodes a new record with the same values and schema
+        final Record cached = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+        assertNotSame(loaded, cached);
+        assertEquals(loaded.getSchema(), cached.getSchema());
+        assertEquals(loaded.toMap(), cached.toMap());
+        assertEquals("Françoise Sagan", cached.getAsString("VALUE"));
+    }
+
+    @Test
+    public void testFrontCache() throws Exception {
+        runner.disableControllerService(sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.OFF_HEAP_FRONT_CACHE_SIZE, "5");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        final Record loaded = sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get();
+        assertSame(loaded, sqlRecordLookupService.lookup(Collections.singletonMap("name", "443771414357476")).get());
+        assertEquals(1, sqlRecordLookupService.getCacheSize());
+    }
+
+    @Test
+    public void testValidation() {
+        runner.disableControllerService(sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHE_EXPIRE_AFTER_ACCESS, "1 min");
+        runner.assertNotValid(sqlRecordLookupService);
+    }
+
+    @Test
+    public void testOnDisabled() throws Exception {
+        sqlRecordLookupService.lookup(Collections.singletonMap("name", "458006613841984"));
+        sqlRecordLookupService.onDisabled();
+        assertEquals(0, sqlRecordLookupService.cache.asMap().size());
+    }
+}
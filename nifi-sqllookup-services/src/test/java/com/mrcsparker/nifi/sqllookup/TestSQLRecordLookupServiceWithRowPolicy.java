@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSQLRecordLookupServiceWithRowPolicy extends AbstractSQLLookupServiceTest {
+
+    private SQLRecordLookupService sqlRecordLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLRecordLookupService
+        sqlRecordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.SQL_QUERY,
+                        "SELECT * FROM TEST_LOOKUP_DB WHERE value = :value ORDER BY name");
+        runner.enableControllerService(dbcpService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testFirstRow() throws Exception {
+        runner.enableControllerService(sqlRecordLookupService);
+
+        final Record record = sqlRecordLookupService.lookup(Collections.singletonMap("value", "All Passion Spent")).get();
+        assertEquals("502362600129917", record.getAsString("NAME"));
+    }
+
+    @Test
+    public void testFirstRowBatch() throws Exception {
+        runner.enableControllerService(sqlRecordLookupService);
+
+        final List<Optional<Record>> results = sqlRecordLookupService.lookupAll(Arrays.asList(
+                        Collections.singletonMap("value", "All Passion Spent"),
+                        Collections.singletonMap("value", "A Catskill Eagle")));
+        assertEquals("502362600129917", results.get(0).get().getAsString("NAME"));
+        assertEquals("333252881485580", results.get(1).get().getAsString("NAME"));
+
+        // the query is ordered, so every coordinate runs it on its own
+        assertEquals(2, sqlRecordLookupService.getStats().getLoads());
+    }
+
+    @Test
+    public void testFailOnMultipleRows() throws Exception {
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.RECORD_ROW_POLICY, SQLRecordLookupService.ROW_POLICY_FAIL);
+        runner.enableControllerService(sqlRecordLookupService);
+
+        assertEquals("333252881485580", sqlRecordLookupService.lookup(Collections.singletonMap("value", "A Catskill Eagle"))
+                        .get().getAsString("NAME"));
+        assertFalse(sqlRecordLookupService.lookup(Collections.singletonMap("value", "notavalue")).isPresent());
+
+        try {
+            sqlRecordLookupService.lookup(Collections.singletonMap("value", "All Passion Spent"));
+            fail("the lookup matched three rows");
+        } catch (final LookupFailureException expected) {
+        }
+
+        try {
+            sqlRecordLookupService.lookupAll(Arrays.asList(Collections.singletonMap("value", "A Catskill Eagle"),
+                            Collections.singletonMap("value", "All Passion Spent")));
+            fail("the batch lookup matched three rows for one position");
+        } catch (final LookupFailureException expected) {
+        }
+    }
+
+    @Test
+    public void testFailOnMultipleRowsBatch() throws Exception {
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.SQL_QUERY, "SELECT * FROM TEST_LOOKUP_DB WHERE value = :value");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.RECORD_ROW_POLICY, SQLRecordLookupService.ROW_POLICY_FAIL);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CACHE_SIZE, "10");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        try {
+            sqlRecordLookupService.lookupAll(Arrays.asList(Collections.singletonMap("value", "A Catskill Eagle"),
+                            Collections.singletonMap("value", "All Passion Spent")));
+            fail("the batch lookup matched three rows for one position");
+        } catch (final LookupFailureException e) {
+            assertTrue(e.getMessage().contains("All Passion Spent"));
+            assertFalse(e.getMessage().contains("A Catskill Eagle"));
+        }
+
+        assertEquals(1, sqlRecordLookupService.getCacheSize());
+        assertEquals("333252881485580", sqlRecordLookupService.lookup(Collections.singletonMap("value", "A Catskill Eagle"))
+                        .get().getAsString("NAME"));
+    }
+
+    @Test
+    public void testAllRows() throws Exception {
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.RECORD_ROW_POLICY, SQLRecordLookupService.ROW_POLICY_ALL);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.BATCH_SIZE, "2");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        final Record single = sqlRecordLookupService.lookup(Collections.singletonMap("value", "All Passion Spent")).get();
+        final Object[] rows = single.getAsArray("rows");
+        assertEquals(3, rows.length);
+        assertEquals("502362600129917", ((Record) rows[0]).getAsString("NAME"));
+        assertEquals("997417069743624", ((Record) rows[2]).getAsString("NAME"));
+        assertFalse(sqlRecordLookupService.lookup(Collections.singletonMap("value", "notavalue")).isPresent());
+
+        final List<Optional<Record>> results = sqlRecordLookupService.lookupAll(Arrays.asList(
+                        Collections.singletonMap("value", "notavalue"),
+                        Collections.singletonMap("value", "All Passion Spent"),
+                        Collections.singletonMap("value", "A Catskill Eagle")));
+        assertFalse(results.get(0).isPresent());
+        final Object[] batchRows = results.get(1).get().getAsArray("rows");
+        assertEquals(3, batchRows.length);
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(((Record) rows[i]).toMap(), ((Record) batchRows[i]).toMap());
+        }
+        assertEquals(1, results.get(2).get().getAsArray("rows").length);
+    }
+
+    @Test
+    public void testMaxRows() throws Exception {
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.RECORD_ROW_POLICY, SQLRecordLookupService.ROW_POLICY_ALL);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.ROWS_FIELD, "books");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.MAX_ROWS, "2");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        final Object[] rows = sqlRecordLookupService.lookup(Collections.singletonMap("value", "All Passion Spent")).get()
+                        .getAsArray("books");
+        assertEquals(2, rows.length);
+        assertEquals("502362600129917", ((Record) rows[0]).getAsString("NAME"));
+        assertEquals("526924199146123", ((Record) rows[1]).getAsString("NAME"));
+
+        final List<Optional<Record>> results = sqlRecordLookupService.lookupAll(Arrays.asList(
+                        Collections.singletonMap("value", "All Passion Spent"),
+                        Collections.singletonMap("value", "Wildfire at Midnight")));
+        assertEquals(2, results.get(0).get().getAsArray("books").length);
+        assertEquals(2, results.get(1).get().getAsArray("books").length);
+    }
+
+    @Test
+    public void testPreloadRequiresFirstRow() throws Exception {
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.PRELOAD_QUERY, "SELECT * FROM TEST_LOOKUP_DB");
+        runner.assertValid(sqlRecordLookupService);
+
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.RECORD_ROW_POLICY, SQLRecordLookupService.ROW_POLICY_ALL);
+        runner.assertNotValid(sqlRecordLookupService);
+    }
+}
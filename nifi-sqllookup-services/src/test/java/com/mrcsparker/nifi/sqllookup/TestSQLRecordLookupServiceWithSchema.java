@@ -75,7 +75,7 @@ public class TestSQLRecordLookupServiceWithSchema extends AbstractSQLLookupServi
 
     @Test
     public void testCorrectKeys() throws Exception {
-        assertEquals(Collections.emptySet(), sqlRecordLookupService.getRequiredKeys());
+        assertEquals(Collections.singleton("period"), sqlRecordLookupService.getRequiredKeys());
     }
 
     @Test
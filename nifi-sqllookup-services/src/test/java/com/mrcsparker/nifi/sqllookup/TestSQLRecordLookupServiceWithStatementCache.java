@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mrcsparker.nifi.sqllookup;
+
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSQLRecordLookupServiceWithStatementCache extends AbstractSQLLookupServiceTest {
+
+    private SQLRecordLookupService sqlRecordLookupService;
+
+    @Before
+    public void before() throws Exception {
+        TestProcessor testProcessor = new TestProcessor();
+        runner = TestRunners.newTestRunner(testProcessor);
+
+        // setup mock DBCP Service
+        DBCPService dbcpService = new DBCPServiceSimpleImpl();
+        Map<String, String> dbcpProperties = new HashMap<>();
+
+        runner.addControllerService("dbcpService", dbcpService, dbcpProperties);
+        runner.assertValid(dbcpService);
+
+        // setup SQLRecordLookupService
+        sqlRecordLookupService = new SQLRecordLookupService();
+        runner.addControllerService("SQLRecordLookupService", sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.CONNECTION_POOL, "dbcpService");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.SQL_QUERY,
+                        "SELECT * FROM TEST_LOOKUP_DB WHERE name IN (:name)");
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.STATEMENT_CACHE_SIZE, "2");
+
+        runner.enableControllerService(dbcpService);
+        runner.enableControllerService(sqlRecordLookupService);
+
+        setupDB();
+    }
+
+    @Test
+    public void testStatementReuse() throws Exception {
+        for (int i = 0; i <= 10; i++) {
+            final Optional<Record> get1 = sqlRecordLookupService
+                            .lookup(Collections.singletonMap("name", "547897511298456"));
+            assertTrue(get1.isPresent());
+            assertEquals("Consider the Lilies", get1.get().getAsString("VALUE"));
+        }
+
+        assertEquals(1, sqlRecordLookupService.statementPool.idleCount());
+
+        final PreparedStatementPool.Lease lease = sqlRecordLookupService.statementPool.borrow();
+        assertEquals(1, lease.statementCount());
+        sqlRecordLookupService.statementPool.release(lease, false);
+    }
+
+    @Test
+    public void testStatementCacheLimit() throws Exception {
+        sqlRecordLookupService.lookup(Collections.singletonMap("name", "547897511298456"));
+        sqlRecordLookupService.lookup(Collections.singletonMap("name", Arrays.asList("547897511298456", "867142279069316")));
+        sqlRecordLookupService.lookup(Collections.singletonMap("name",
+                        Arrays.asList("547897511298456", "867142279069316", "443771414357476")));
+
+        final PreparedStatementPool.Lease lease = sqlRecordLookupService.statementPool.borrow();
+        assertEquals(2, lease.statementCount());
+        sqlRecordLookupService.statementPool.release(lease, false);
+    }
+
+    @Test
+    public void testEvictedConnection() throws Exception {
+        assertTrue(sqlRecordLookupService.lookup(Collections.singletonMap("name", "547897511298456")).isPresent());
+
+        // simulate the connection pool closing the connection underneath the service
+        final PreparedStatementPool.Lease lease = sqlRecordLookupService.statementPool.borrow();
+        lease.getConnection().close();
+        sqlRecordLookupService.statementPool.release(lease, false);
+
+        final Optional<Record> get1 = sqlRecordLookupService
+                        .lookup(Collections.singletonMap("name", "867142279069316"));
+        assertTrue(get1.isPresent());
+        assertEquals("The Needles Eye", get1.get().getAsString("VALUE"));
+    }
+
+    @Test
+    public void testRowPolicyViolationKeepsConnection() throws Exception {
+        runner.disableControllerService(sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.RECORD_ROW_POLICY, SQLRecordLookupService.ROW_POLICY_FAIL);
+        runner.enableControllerService(sqlRecordLookupService);
+
+        assertTrue(sqlRecordLookupService.lookup(Collections.singletonMap("name", "547897511298456")).isPresent());
+        PreparedStatementPool.Lease lease = sqlRecordLookupService.statementPool.borrow();
+        final Connection connection = lease.getConnection();
+        sqlRecordLookupService.statementPool.release(lease, false);
+
+        try {
+            sqlRecordLookupService.lookup(Collections.singletonMap("name", Arrays.asList("547897511298456", "867142279069316")));
+            fail("the lookup matched two rows");
+        } catch (final LookupFailureException expected) {
+        }
+
+        lease = sqlRecordLookupService.statementPool.borrow();
+        assertSame(connection, lease.getConnection());
+        assertEquals(2, lease.statementCount());
+        sqlRecordLookupService.statementPool.release(lease, false);
+    }
+
+    @Test
+    public void testBorrowReapsExpiredLeases() throws Exception {
+        final PreparedStatementPool pool = new PreparedStatementPool(new DBCPServiceSimpleImpl(), 2, 200);
+        final PreparedStatementPool.Lease older = pool.borrow();
+        Thread.sleep(120);
+        final PreparedStatementPool.Lease newer = pool.borrow();
+        pool.release(older, false);
+        pool.release(newer, false);
+        assertEquals(2, pool.idleCount());
+
+        // the older lease is past its maximum age, the newer one is reused
+        Thread.sleep(120);
+        assertSame(newer, pool.borrow());
+        assertEquals(0, pool.idleCount());
+        assertTrue(older.getConnection().isClosed());
+        pool.close();
+    }
+
+    @Test
+    public void testFailedHealthCheckClosesLease() throws Exception {
+        final AtomicBoolean closed = new AtomicBoolean();
+        final PreparedStatementPool pool = new PreparedStatementPool(new DBCPServiceSimpleImpl() {
+            @Override
+            public Connection getConnection() {
+                final Connection connection = super.getConnection();
+                return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                                (proxy, method, args) -> {
+                                    if (method.getName().equals("isClosed") && !closed.get()) {
+                                        throw new SQLException("connection reset");
+                                    }
+                                    if (method.getName().equals("close")) {
+                                        closed.set(true);
+                                    }
+                                    return method.invoke(connection, args);
+                                });
+            }
+        }, 2, 60000);
+        final PreparedStatementPool.Lease lease = pool.borrow();
+        pool.release(lease, false);
+
+        final PreparedStatementPool.Lease next = pool.borrow();
+        assertNotSame(lease, next);
+        assertTrue(closed.get());
+        pool.release(next, true);
+        pool.close();
+    }
+
+    @Test
+    public void testIdleLeasesCapped() throws Exception {
+        final PreparedStatementPool pool = new PreparedStatementPool(new DBCPServiceSimpleImpl(), 2, 60000);
+        final List<PreparedStatementPool.Lease> leases = new ArrayList<>();
+        for (int i = 0; i < PreparedStatementPool.MAX_IDLE_LEASES + 2; i++) {
+            leases.add(pool.borrow());
+        }
+        for (final PreparedStatementPool.Lease lease : leases) {
+            pool.release(lease, false);
+        }
+
+        assertEquals(PreparedStatementPool.MAX_IDLE_LEASES, pool.idleCount());
+        assertTrue(leases.get(leases.size() - 1).getConnection().isClosed());
+        assertFalse(leases.get(0).getConnection().isClosed());
+        pool.close();
+    }
+
+    @Test
+    public void testReapWithoutLookups() throws Exception {
+        final PreparedStatementPool pool = new PreparedStatementPool(new DBCPServiceSimpleImpl(), 2, 100);
+        final PreparedStatementPool.Lease lease = pool.borrow();
+        pool.release(lease, false);
+
+        Thread.sleep(150);
+        pool.reap();
+        assertEquals(0, pool.idleCount());
+        assertTrue(lease.getConnection().isClosed());
+    }
+
+    @Test
+    public void testScheduledReap() throws Exception {
+        runner.disableControllerService(sqlRecordLookupService);
+        runner.setProperty(sqlRecordLookupService, SQLRecordLookupService.STATEMENT_CACHE_MAX_CONNECTION_AGE, "1 sec");
+        runner.enableControllerService(sqlRecordLookupService);
+
+        sqlRecordLookupService.lookup(Collections.singletonMap("name", "547897511298456"));
+        assertEquals(1, sqlRecordLookupService.statementPool.idleCount());
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (sqlRecordLookupService.statementPool.idleCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, sqlRecordLookupService.statementPool.idleCount());
+    }
+
+    @Test
+    public void testOnDisabled() throws Exception {
+        sqlRecordLookupService.lookup(Collections.singletonMap("name", "547897511298456"));
+        runner.disableControllerService(sqlRecordLookupService);
+        assertNull(sqlRecordLookupService.statementPool);
+        assertNull(sqlRecordLookupService.statementPoolExecutor);
+    }
+}